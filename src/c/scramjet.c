@@ -100,18 +100,41 @@ usage() {
       NL "  " APP_NAME " -s or --status            (check " JVM_NAME " status)"
       NL "  " APP_NAME " [opt] <classname> <args>  (run Tool <classname> with <args>)"
       NL "  " APP_NAME " [opt] <alias> <args>      (run Tool that has given alias)"
+      NL "  " APP_NAME " [opt] -b <file>           (run batch of commands, one per line)"
+      NL "  " APP_NAME " [opt] -b -                (run batch from STDIN, NUL-separated)"
+      NL "  " APP_NAME " --attach [<id>]           (reattach a detached console tool, or"
+      NL "                                      list detached tools)"
       NL "  sj-<alias> <args>    (where sj-<alias> is a link to " APP_NAME " binary)"
       NL "  <alias> <args>       (where <alias> is a link to " APP_NAME " binary)"
       NL ""
       NL "Options:"
       NL "  -j <jar-or-folder>   (ensure JAR or folder is in classpath)"
       NL "  -R            (restart JVM before running tool, useful after rebuilding)"
+      NL "  -P <count>    (batch: run up to <count> commands in parallel, default 1)"
+      NL "  -v            (batch: report exit status of every command, not just failures)"
       NL ""
       NL "Builtins:     (aliases to net.uazu.scramjet.tool.*)"
       NL "  sj-classpath                  (show classpath)"
       NL "  sj-alias                      (list aliases)"
-      NL "  sj-alias <alias> <classname>  (add an alias)"
-      NL "  sj-threads [-l]               (list running threads, -l: with backtraces)"
+      NL "  sj-alias <alias> <classname> [interactive|batch]  (add an alias)"
+      NL "  sj-threads [-l] [-c]          (list running threads with CPU and allocation,"
+      NL "                                 -l: with backtraces, -c: by CPU used)"
+      NL "  sj-stats                      (show pools: running/queued sessions and waits,"
+      NL "                                 file/memo cache usage, services, and CPU and"
+      NL "                                 allocation by session and by command)"
+      NL "  sj-find [<dir>...] [<test>...] (find files using resident index kept up to"
+      NL "                                 date by watching for changes; -h for tests)"
+      NL "  sj-grep [<opts>] <pattern> [<file-or-dir>...]  (parallel search of files,"
+      NL "                                 -r: using resident index; -h for options)"
+      NL "  sj-javac <javac-args>         (compile in server, incrementally with -d)"
+      NL "  sj-parallel [<opts>] <tool> [<args>...]  (run tool in server once per"
+      NL "                                 line of stdin, on a pool; -h for options)"
+      NL "  sj-watch [<opts>] <tool> [<args>...]  (run tool in server, and again on"
+      NL "                                 changes to files in args; -h for options)"
+      NL "  sj-prof [<opts>] [<cmd>|<slot>]  (sample stacks of running sessions, as"
+      NL "                                 folded stacks for a flame graph; -h for options)"
+      NL "  sj-top [-d <secs>]            (full-screen live view of sessions, their CPU,"
+      NL "                                 allocation and I/O, and heap, GC and pools)"
       NL ""
       NL "Configuration in ." APP_NAME "/config:"
       NL "  #...                       (comment)"
@@ -119,7 +142,28 @@ usage() {
 #ifndef SCRAMJET_ECLIPSE
       NL "  idle_timeout <minutes>     (shutdown after N mins of inactivity, default 15)"
 #endif
-      NL "  alias <alias>=<classname>  (set up <alias> as alias for <classname>)"
+      NL "  cancel_grace <ms>          (time allowed after ^C before tool is killed, default 3000)"
+      NL "  pool <name> <max> [<alias-or-class> ...]"
+      NL "                             (run at most <max> of the listed batch commands at once,"
+      NL "                              queuing the rest, or 0 for no limit; pool 'default'"
+      NL "                              covers all other commands, and is unlimited unless"
+      NL "                              set; to keep interactive commands responsive under"
+      NL "                              load, set it above the longest pipeline of commands)"
+      NL "  quota <alias-or-class> <limit>=<value> ..."
+      NL "                             (cancel a session of the command which goes over a limit:"
+      NL "                              wall=<secs>, cpu=<secs>, alloc=<MB>, threads=<n> or"
+      NL "                              output=<MB>; quota 'default' covers all other commands"
+      NL "                              except builtin tools)"
+      NL "  render_pause <ms>          (hold up batch commands for up to <ms> whilst an"
+      NL "                              interactive command updates the screen, default 0,"
+      NL "                              i.e. off; e.g. 50 to favour interactive commands)"
+      NL "  file_cache <MB>            (memory for file contents cached between commands,"
+      NL "                              default 1/8 of the maximum heap, 0 to disable)"
+      NL "  memo_cache <MB> <disk-MB>  (space for remembered results of memoized tools, in"
+      NL "                              memory and in ." APP_NAME "/cache, default 32 256)"
+      NL "  alias <alias>=<classname> [interactive|batch]"
+      NL "                             (set up <alias> as alias for <classname>, optionally"
+      NL "                              giving the session class; console apps are interactive)"
       NL "  classpath <jar-or-folder>  (add a JAR or folder to the classpath)"
    );
 }
@@ -149,16 +193,34 @@ int tmpbuf_rd;
 int tmpbuf_wr;
 char *tmpbuf;
 
-// Current input/output streams
-FILE *out_pipe;
-int in_fd = -1;
+// Connection to a proxy in the JVM: a pair of named pipes plus the
+// buffer for incoming messages
+typedef struct Conn Conn;
+struct Conn {
+   FILE *out_pipe;   // Messages to JVM
+   int in_fd;        // Messages from JVM, or -1
+   int slot;         // Proxy in use
+   char buf[1024];   // Incoming data
+   int off;
+   int len;
+};
+
+// Current input/output streams.  Normally there is only one
+// connection, but batch mode may use several.
+Conn conn0 = { NULL, -1, 0, { 0 }, 0, 0 };
+Conn *conn = &conn0;
+
+// General-purpose buffer
 char inbuf[1024];
-int in_off;
-int in_len;
-int using_proxy;   // Proxy in use
 
 int stdin_eof;  // Hit EOF?
-char stdinbuf[1024];
+char stdinbuf[65536];
+
+// STDIN flow control: bytes we may still send before the JVM grants
+// more with "stdin-credit".  The initial window must match
+// SJInputStream.WINDOW on the Java side.
+#define STDIN_WINDOW 262144
+int stdin_credit = STDIN_WINDOW;
 
 // Pipe used internally to flag signals
 int signal_pipe[2];
@@ -256,7 +318,7 @@ putf(char *fmt, ...) {
  */
 void
 write_flush() {
-   if (0 != fflush(out_pipe))
+   if (0 != fflush(conn->out_pipe))
       errorE("Unable to write to named pipe:");
 }
 
@@ -331,13 +393,13 @@ write_msg(char *fmt, ...) {
       }
 
       while (packet_len > 0) {
-         rv = fwrite(packet, sizeof(char), packet_len, out_pipe);
+         rv = fwrite(packet, sizeof(char), packet_len, conn->out_pipe);
          if (rv > 0) {
             packet += rv;
             packet_len -= rv;
             continue;
          }
-         if (ferror(out_pipe))
+         if (ferror(conn->out_pipe))
             errorE("Write error on named pipe:");
       }
    }
@@ -345,16 +407,16 @@ write_msg(char *fmt, ...) {
 
 int
 inbuf_get() {
-   if (in_off < in_len)
-      return (int) (uchar) inbuf[in_off++];
+   if (conn->off < conn->len)
+      return (int) (uchar) conn->buf[conn->off++];
 
-   in_off = 0;
-   in_len = 0;
+   conn->off = 0;
+   conn->len = 0;
 
    while (1) {
-      int rv = read(in_fd, inbuf, sizeof(inbuf));
+      int rv = read(conn->in_fd, conn->buf, sizeof(conn->buf));
       if (rv > 0) {
-         in_len = rv;
+         conn->len = rv;
          return inbuf_get();
       }
       if (rv == 0) error("End of file on input named pipe");
@@ -370,7 +432,6 @@ inbuf_get() {
  */
 void
 read_msg() {
-   int a;
    int val = 0;
    while (1) {
       int ch = inbuf_get();
@@ -379,8 +440,23 @@ read_msg() {
       break;
    }
    clear_tmpbuf();
-   for (a = val; a>0; a--)
-      put(inbuf_get());
+   if (val >= tmpbuf_len)
+      mksp(val);
+
+   // Copy whatever is already buffered in one go
+   while (val > 0) {
+      int cnt = conn->len - conn->off;
+      if (cnt <= 0) {
+         put(inbuf_get());
+         val--;
+         continue;
+      }
+      if (cnt > val) cnt = val;
+      memcpy(tmpbuf + tmpbuf_wr, conn->buf + conn->off, cnt);
+      tmpbuf_wr += cnt;
+      conn->off += cnt;
+      val -= cnt;
+   }
 
    if (DEBUG_MESSAGES) {
       int a;
@@ -408,7 +484,7 @@ get(int *err) {
       *err = 1;
       return -1;
    }
-   return tmpbuf[tmpbuf_rd++];
+   return 255 & tmpbuf[tmpbuf_rd++];
 }
 
 int
@@ -554,9 +630,17 @@ struct ClassPath {
 char *startup_cmd = NULL;
 Alias *aliases = NULL;
 ClassPath *classpaths = NULL;
+Alias *pools = NULL;
+Alias *quotas = NULL;
 int idle_timeout = 15;
+int cancel_grace = 3000;
+int render_pause = 0;
+int file_cache = -1;
+int memo_cache = -1;
+int memo_disk = -1;
 
 #define MIN_FREE_PROXIES 4
+#define GRAB_PROXY_TRIES 500
 
 /**
  * Writes a dot-dir filename into tmpbuf.
@@ -594,9 +678,15 @@ create_default_dot_dir_if_reqd() {
 
    fprintf(out, "# Configuration file\n");
    fprintf(out, "\n");
-   fprintf(out, "# alias <name>=<package>.<classname>\n");
+   fprintf(out, "# alias <name>=<package>.<classname> [interactive|batch]\n");
    fprintf(out, "# classpath <jar-path>|<folder-path>\n");
    fprintf(out, "# idle_timeout <shutdown-timeout-minutes>\n");
+   fprintf(out, "# cancel_grace <kill-timeout-ms>\n");
+   fprintf(out, "# render_pause <max-batch-pause-ms>\n");
+   fprintf(out, "# file_cache <MB>\n");
+   fprintf(out, "# memo_cache <MB> <disk-MB>\n");
+   fprintf(out, "# pool <name> <max-running> <alias-or-class> ...\n");
+   fprintf(out, "# quota <alias-or-class> wall=<secs> cpu=<secs> alloc=<MB> threads=<n> output=<MB>\n");
    fprintf(out, "\n");
 #ifdef STANDARD_STARTUP
    clear_tmpbuf();
@@ -620,6 +710,8 @@ create_default_dot_dir_if_reqd() {
 void
 load_config() {
    int idle_timeout_set = 0;
+   int cancel_grace_set = 0;
+   int render_pause_set = 0;
 
    if (startup_cmd)
       error("load_config() run twice");
@@ -662,6 +754,20 @@ load_config() {
          classpaths = cp;
          continue;
       }
+      if (0 == memcmp(inbuf, "pool ", 5)) {
+         Alias *pool = ALLOC(Alias);
+         pool->nxt = pools;
+         pool->alias = StrDup(inbuf+5);
+         pools = pool;
+         continue;
+      }
+      if (0 == memcmp(inbuf, "quota ", 6)) {
+         Alias *quota = ALLOC(Alias);
+         quota->nxt = quotas;
+         quota->alias = StrDup(inbuf+6);
+         quotas = quota;
+         continue;
+      }
       if (0 == memcmp(inbuf, "startup ", 8)) {
          if (startup_cmd)
             error("Error: more than one 'startup' line specified in config");
@@ -677,6 +783,41 @@ load_config() {
          idle_timeout_set = 1;
          continue;
       }
+      if (0 == memcmp(inbuf, "cancel_grace ", 13)) {
+         char dmy;
+         if (cancel_grace_set)
+            error("Error: more than one 'cancel_grace' line specified in config");
+         if (1 != sscanf(inbuf+13, "%d %c", &cancel_grace, &dmy) || cancel_grace < 0)
+            error("Invalid cancel_grace line: %s", inbuf);
+         cancel_grace_set = 1;
+         continue;
+      }
+      if (0 == memcmp(inbuf, "render_pause ", 13)) {
+         char dmy;
+         if (render_pause_set)
+            error("Error: more than one 'render_pause' line specified in config");
+         if (1 != sscanf(inbuf+13, "%d %c", &render_pause, &dmy) || render_pause < 0)
+            error("Invalid render_pause line: %s", inbuf);
+         render_pause_set = 1;
+         continue;
+      }
+      if (0 == memcmp(inbuf, "file_cache ", 11)) {
+         char dmy;
+         if (file_cache >= 0)
+            error("Error: more than one 'file_cache' line specified in config");
+         if (1 != sscanf(inbuf+11, "%d %c", &file_cache, &dmy) || file_cache < 0)
+            error("Invalid file_cache line: %s", inbuf);
+         continue;
+      }
+      if (0 == memcmp(inbuf, "memo_cache ", 11)) {
+         char dmy;
+         if (memo_cache >= 0)
+            error("Error: more than one 'memo_cache' line specified in config");
+         if (2 != sscanf(inbuf+11, "%d %d %c", &memo_cache, &memo_disk, &dmy) ||
+             memo_cache < 0 || memo_disk < 0)
+            error("Invalid memo_cache line: %s", inbuf);
+         continue;
+      }
       error("Bad config line: %s", inbuf);
    }
 
@@ -766,14 +907,45 @@ setup_env_256_color() {
    }
 }   
 
+void
+sleep_ms(int ms) {
+   struct timespec ts;
+   ts.tv_sec = ms/1000;
+   ts.tv_nsec = (ms%1000) * 1000000;
+   nanosleep(&ts, NULL);
+}
+
+/**
+ * Take an exclusive lock on the dot-dir, which is released by
+ * closing the returned file descriptor.  This is a POSIX record lock
+ * so that Java's FileChannel.lock() can take part too.
+ */
+int
+lock_dot_dir() {
+   int fd;
+   dot_dir_fnam("lock");
+   if (-1 == (fd = open(tmpbuf, O_RDWR | O_CREAT, 0600)))
+      errorE("Failed to open lock file: %s", tmpbuf);
+   if (0 != lockf(fd, F_LOCK, 0))
+      errorE("Failed to lock: %s", tmpbuf);
+   return fd;
+}
+
 /**
  * Create FIFOs and 'owner' flag for the given proxy.  Owner flag is
  * created first to stop anyone else trying to connect to this proxy
- * until the Java end of it is up and running.
+ * until the Java end of it is up and running.  Must be called with
+ * the dot-dir locked.  Returns 0 if the proxy has already been
+ * created by someone else, else 1.
  */
-void
+int
 create_proxy(int a) {
    int fd;
+   dot_dir_fnam("");
+   putf("%d-in", a);
+   if (file_exists(tmpbuf))
+      return 0;
+
    dot_dir_fnam("");
    putf("%d-owner", a);
    if (-1 == (fd = creat(tmpbuf, 0600)))
@@ -790,10 +962,12 @@ create_proxy(int a) {
    putf("%d-out", a);
    if (0 != mkfifo(tmpbuf, 0600))
       errorE("Failed to create named pipe: %s", tmpbuf);
+   return 1;
 }
 
 /**
- * Allocate a proxy for sole use of this process.  Sets up out_pipe.
+ * Allocate a proxy for sole use of this process, and attach it to
+ * the current connection.  Sets up conn->out_pipe.
  * The input pipe is not set up right away as the Java process only
  * opens it once a command is run.
  */
@@ -804,9 +978,13 @@ grab_proxy() {
    int a;
    int free = 0;
    int n_proxies = 0;
+   int tries = 0;
    
-   in_fd = -1;
-   out_pipe = NULL;
+   conn->in_fd = -1;
+   conn->out_pipe = NULL;
+   conn->off = conn->len = 0;
+ retry:
+   free = 0;
    for (a = 0; 1; a++) {
       dot_dir_fnam("");
       putf("%d-in", a);
@@ -818,7 +996,7 @@ grab_proxy() {
       putf("%d-owner", a);
       if (file_exists(tmpbuf))
          continue;
-      if (out_pipe) {
+      if (conn->out_pipe) {
          free++;
          continue;
       }
@@ -832,33 +1010,46 @@ grab_proxy() {
       fscanf(in, "%d", &owner);
       fclose(in);
       if (owner == pid) {
-         using_proxy = a;
+         conn->slot = a;
          dot_dir_fnam("");
          putf("%d-in", a);
-         out_pipe = fopen(tmpbuf, "w");
-         if (!out_pipe)
+         conn->out_pipe = fopen(tmpbuf, "w");
+         if (!conn->out_pipe)
             errorE("Unable to open pipe for writing: %s", tmpbuf);
          continue;
       }
    }
-   if (!out_pipe)
+   if (!conn->out_pipe) {
+      // In a burst of front-ends starting at once, the others will
+      // be adding more proxies, so wait a little for one to appear
+      if (++tries < GRAB_PROXY_TRIES) {
+         sleep_ms(10);
+         goto retry;
+      }
       error("All proxies are in use");
+   }
 
-   // Add new proxies if there are less than MIN_FREE_PROXIES free
+   // Add new proxies if there are less than MIN_FREE_PROXIES free.
+   // Front-ends starting at the same moment take turns, so that
+   // they don't try to create the same ones.
    int inuse = n_proxies - free;
-   while (inuse + MIN_FREE_PROXIES > n_proxies) {
-      int ii = n_proxies++;
-      create_proxy(ii);
-      write_msg("new_proxy %i", ii);
+   if (inuse + MIN_FREE_PROXIES > n_proxies) {
+      int lock_fd = lock_dot_dir();
+      while (inuse + MIN_FREE_PROXIES > n_proxies) {
+         int ii = n_proxies++;
+         if (create_proxy(ii))
+            write_msg("new_proxy %i", ii);
+      }
+      close(lock_fd);
    }
 }
 
 void
 setup_in_fd() {
    dot_dir_fnam("");
-   putf("%d-out", using_proxy);
-   in_fd = open(tmpbuf, O_RDONLY);
-   if (in_fd < 0)
+   putf("%d-out", conn->slot);
+   conn->in_fd = open(tmpbuf, O_RDONLY);
+   if (conn->in_fd < 0)
       errorE("Unable to open pipe for reading: %s", tmpbuf);
 }
 
@@ -867,12 +1058,12 @@ setup_in_fd() {
  */
 void
 release_proxy() {
-   if (in_fd >= 0)
-      close(in_fd);
-   if (out_pipe)
-      fclose(out_pipe);
-   in_fd = -1;
-   out_pipe = NULL;
+   if (conn->in_fd >= 0)
+      close(conn->in_fd);
+   if (conn->out_pipe)
+      fclose(conn->out_pipe);
+   conn->in_fd = -1;
+   conn->out_pipe = NULL;
 }
 
 /**
@@ -900,14 +1091,6 @@ server_not_running() {
    return 0;
 }
 
-void
-sleep_ms(int ms) {
-   struct timespec ts;
-   ts.tv_sec = ms/1000;
-   ts.tv_nsec = (ms%1000) * 1000000;
-   nanosleep(&ts, NULL);
-}
-
 /**
  * Check whether server is running, display and return exit status
  * accordingly.
@@ -1030,8 +1213,18 @@ start_server(int verbose, int keep_open) {
       grab_proxy();
 
       write_msg("idle_timeout %i", idle_timeout);
+      write_msg("cancel_grace %i", cancel_grace);
+      write_msg("render_pause %i", render_pause);
+      if (file_cache >= 0)
+         write_msg("file_cache %i", file_cache);
+      if (memo_cache >= 0)
+         write_msg("memo_cache %i %i", memo_cache, memo_disk);
       for (ap = aliases; ap; ap= ap->nxt)
          write_msg("alias %s", ap->alias);
+      for (ap = pools; ap; ap= ap->nxt)
+         write_msg("pool %s", ap->alias);
+      for (ap = quotas; ap; ap= ap->nxt)
+         write_msg("quota %s", ap->alias);
       write_classpaths();
       write_flush();
       if (!keep_open)
@@ -1133,6 +1326,58 @@ con_term() {
    con_cleanup_len = 0;
 }
 
+// Signal handler
+static void
+signal_received(int sig) {
+   char flag = sig == SIGINT ? 'I' : sig == SIGTERM ? 'T' : 'H';
+   if (1 != write(signal_pipe[1], &flag, 1))
+      errorE("Failed to write flag to internal signal_pipe:");
+}
+
+/**
+ * Trap SIGINT, SIGTERM and SIGHUP so that they can be forwarded to
+ * the running tool instead of just killing the front-end.
+ */
+void
+trap_signals() {
+   struct sigaction sa;
+
+   sa.sa_flags = 0;
+   sigemptyset(&sa.sa_mask);
+   sa.sa_handler = signal_received;
+
+   if (0 != sigaction(SIGINT, &sa, NULL) ||
+       0 != sigaction(SIGTERM, &sa, NULL) ||
+       0 != sigaction(SIGHUP, &sa, NULL))
+      errorE("Can't set up signal handlers:");
+}
+
+/**
+ * Convert a flag from signal_pipe into a signal number, or 0 if it
+ * isn't one of the forwarded signals.
+ */
+int
+flag_signal(char flag) {
+   return flag == 'I' ? SIGINT : flag == 'T' ? SIGTERM : flag == 'H' ? SIGHUP : 0;
+}
+
+// Number of signals forwarded so far
+int signals_sent = 0;
+
+/**
+ * Forward a signal to the tool on the current connection.  The first
+ * asks the tool to cancel, the second makes the JVM kill it off
+ * immediately.  If the JVM still doesn't respond, a third signal
+ * makes the front-end give up and exit.
+ */
+void
+send_signal(int sig) {
+   if (signals_sent >= 2)
+      exit(128 + sig);
+   write_msg("signal %i", sig);
+   write_flush();
+}
+
 // Signal handler
 static void
 console_resized(int sig) {
@@ -1215,7 +1460,7 @@ con_process_msg() {
 }
 
 // ------------------------------------------------------------------------
-// MAIN
+// MESSAGES
 //
 
 /**
@@ -1246,6 +1491,12 @@ process_msg() {
       return;
    }
 
+   // "stdin-credit %i"      # Allow more STDIN data to be sent
+   if (match_msg("stdin-credit %i", &len)) {
+      stdin_credit += len;
+      return;
+   }
+
    // "run %s"               # Run an external app and wait for it to complete
    if (match_msg("run %s", &data)) {
       int rv = system(data);
@@ -1285,11 +1536,352 @@ process_msg() {
 
 extern char **environ;
 
+// ------------------------------------------------------------------------
+// BATCH handling
+//
+// A batch runs many commands over a small number of connections.  Each
+// connection is marked with "batch", gets 'env' and 'cwd' just once,
+// and then gets 'arg'/'run' for each command in turn.  The JVM keeps
+// the connection open after each "exit" and waits for the next
+// command.  Commands get no STDIN.  With -P > 1 each command's output
+// is buffered and written out in one piece when it completes, so
+// that the output of parallel commands doesn't get mixed up.
+//
+
+typedef struct Job Job;
+struct Job {
+   char **argv;    // Command-name and arguments, NULL-terminated
+   char *line;     // Original text, for reporting
+};
+
+typedef struct Buf Buf;
+struct Buf {
+   char *data;
+   int len;
+   int max;
+};
+
+typedef struct BatchConn BatchConn;
+struct BatchConn {
+   Conn conn;
+   int job;        // Index of running job, or -1 if none
+   Buf out;        // Buffered STDOUT (for -P > 1)
+   Buf err;        // Buffered STDERR (for -P > 1)
+};
+
+Job *batch_jobs;
+int batch_n_jobs;
+int batch_next;      // Next job to start
+int batch_par = 1;   // -P value
+int batch_verbose;   // -v option
+int batch_failed;    // Number of commands with non-zero exit status
+
+void
+buf_add(Buf *buf, char *data, int len) {
+   if (buf->len + len > buf->max) {
+      int max = buf->max ? buf->max : 1024;
+      while (max < buf->len + len) max *= 2;
+      char *tmp = Alloc(max);
+      memcpy(tmp, buf->data, buf->len);
+      free(buf->data);
+      buf->data = tmp;
+      buf->max = max;
+   }
+   memcpy(buf->data + buf->len, data, len);
+   buf->len += len;
+}
+
+/**
+ * Split a command into words.  Words are separated by whitespace.
+ * Single quotes protect everything up to the closing quote.  Within
+ * double quotes or unquoted, a backslash escapes the next character.
+ * Returns NULL-terminated array, or NULL if there are no words.
+ */
+char **
+batch_split(char *str, int len) {
+   char **argv = Alloc((len/2 + 2) * sizeof(char*));
+   char *word = Alloc(len + 1);
+   char *end = str + len;
+   int argc = 0;
+   while (1) {
+      char *wp = word;
+      int quote = 0;
+      while (str < end && isspace((uchar) *str)) str++;
+      if (str >= end) break;
+      while (str < end && (quote || !isspace((uchar) *str))) {
+         char ch = *str++;
+         if (quote == '\'') {
+            if (ch == '\'') quote = 0; else *wp++ = ch;
+         } else if (ch == '\\' && str < end) {
+            *wp++ = *str++;
+         } else if (quote == '"') {
+            if (ch == '"') quote = 0; else *wp++ = ch;
+         } else if (ch == '\'' || ch == '"') {
+            quote = ch;
+         } else {
+            *wp++ = ch;
+         }
+      }
+      *wp = 0;
+      argv[argc++] = StrDup(word);
+   }
+   free(word);
+   if (argc == 0) {
+      free(argv);
+      return NULL;
+   }
+   argv[argc] = NULL;
+   return argv;
+}
+
+/**
+ * Load the commands to run from the given file, one per line (blank
+ * lines and lines starting with '#' are ignored), or from STDIN if
+ * 'fnam' is "-", as NUL-terminated records.
+ */
+void
+batch_load(char *fnam) {
+   int use_stdin = 0 == strcmp(fnam, "-");
+   int sep = use_stdin ? 0 : '\n';
+   FILE *in = use_stdin ? stdin : fopen(fnam, "r");
+   Buf all = { NULL, 0, 0 };
+   char *p, *end;
+   int max = 0;
+   
+   if (!in)
+      errorE("Can't open batch file: %s", fnam);
+   while (1) {
+      int cnt = fread(inbuf, 1, sizeof(inbuf), in);
+      if (cnt > 0) buf_add(&all, inbuf, cnt);
+      if (cnt < (int) sizeof(inbuf)) break;
+   }
+   if (ferror(in))
+      errorE("Error reading batch file: %s", fnam);
+   if (!use_stdin)
+      fclose(in);
+
+   p = all.data;
+   end = p + all.len;
+   while (p < end) {
+      char *rec = p;
+      char **argv;
+      while (p < end && *p != sep) p++;
+      if (sep == '\n' && *rec == '#') {
+         p++;
+         continue;
+      }
+      argv = batch_split(rec, p - rec);
+      if (argv) {
+         if (batch_n_jobs >= max) {
+            Job *tmp;
+            max = max ? max * 2 : 64;
+            tmp = Alloc(max * sizeof(Job));
+            if (batch_jobs) memcpy(tmp, batch_jobs, batch_n_jobs * sizeof(Job));
+            free(batch_jobs);
+            batch_jobs = tmp;
+         }
+         batch_jobs[batch_n_jobs].argv = argv;
+         batch_jobs[batch_n_jobs].line = Alloc(p - rec + 1);
+         memcpy(batch_jobs[batch_n_jobs].line, rec, p - rec);
+         batch_n_jobs++;
+      }
+      p++;
+   }
+   free(all.data);
+}
+
+/**
+ * Start the next job on the given connection, or release the
+ * connection if there are no more jobs.  Returns 1 if a job was
+ * started, 0 otherwise.
+ */
+int
+batch_start(BatchConn *bc) {
+   char **pp;
+   conn = &bc->conn;
+   if (batch_next >= batch_n_jobs) {
+      bc->job = -1;
+      release_proxy();
+      return 0;
+   }
+   bc->job = batch_next++;
+   for (pp = batch_jobs[bc->job].argv + 1; *pp; pp++)
+      write_msg("arg %s", *pp);
+   write_msg("run %s", batch_jobs[bc->job].argv[0]);
+   write_flush();
+   if (conn->in_fd < 0)
+      setup_in_fd();
+   return 1;
+}
+
+/**
+ * Job on this connection has completed.  Flush out its output and
+ * report its status.
+ */
+void
+batch_done(BatchConn *bc, int status) {
+   write_data(1, bc->out.data, bc->out.len);
+   write_data(2, bc->err.data, bc->err.len);
+   bc->out.len = bc->err.len = 0;
+   if (status != 0)
+      batch_failed++;
+   if (status != 0 || batch_verbose)
+      fprintf(stderr, "[%d] exit %d: %s\n",
+              bc->job + 1, status, batch_jobs[bc->job].line);
+}
+
+/**
+ * Process a message received on a batch connection.
+ */
+void
+batch_process_msg(BatchConn *bc) {
+   char *data;
+   int len;
+   int status;
+
+   if (match_msg("1%t", &data, &len)) {
+      if (batch_par == 1)
+         write_data(1, data, len);
+      else
+         buf_add(&bc->out, data, len);
+      free(data);
+      return;
+   }
+   if (match_msg("2%t", &data, &len)) {
+      if (batch_par == 1)
+         write_data(2, data, len);
+      else
+         buf_add(&bc->err, data, len);
+      free(data);
+      return;
+   }
+   if (match_msg("exit %i", &status)) {
+      batch_done(bc, status);
+      batch_start(bc);
+      return;
+   }
+   process_msg();
+}
+
+/**
+ * Run a batch of commands.  Returns the exit status for the
+ * front-end: 0 if all commands succeeded, otherwise the number of
+ * commands that failed, up to a maximum of 101.  If interrupted by a
+ * signal, the signal is forwarded to the running commands, no more
+ * commands are started, and the status is 128 plus the signal
+ * number.
+ */
+int
+batch_run(char *fnam) {
+   BatchConn *bcs;
+   struct pollfd *pfd;
+   char **pp;
+   int open;
+   int a;
+   int signalled = 0;
+
+   batch_load(fnam);
+   if (batch_n_jobs == 0)
+      return 0;
+   if (batch_par > batch_n_jobs)
+      batch_par = batch_n_jobs;
+   if (!getcwd(inbuf, sizeof(inbuf)))
+      error("Current working directory too long for inbuf[]");
+   
+   bcs = Alloc(batch_par * sizeof(BatchConn));
+   pfd = Alloc((batch_par + 1) * sizeof(struct pollfd));
+   if (0 != pipe(signal_pipe))
+      errorE("Unable to create internal pipe:");
+   trap_signals();
+
+   // Set up connections, sending the common context once
+   conn = &bcs[0].conn;
+   open = start_server(0, 1);
+   for (a = 0; a<batch_par; a++) {
+      conn = &bcs[a].conn;
+      if (a > 0 || !open)
+         grab_proxy();
+      if (a == 0)
+         write_classpaths();
+      write_msg("batch");
+      for (pp = environ; *pp; pp++)
+         write_msg("env %s", *pp);
+      write_msg("cwd %s", inbuf);
+      batch_start(&bcs[a]);
+   }
+
+   // Main loop
+   while (1) {
+      int active = 0;
+      for (a = 0; a<batch_par; a++) {
+         pfd[a].fd = bcs[a].job >= 0 ? bcs[a].conn.in_fd : -1;
+         pfd[a].events = POLLIN;
+         pfd[a].revents = 0;
+         if (bcs[a].job >= 0) active++;
+      }
+      if (!active)
+         break;
+      pfd[batch_par].fd = signal_pipe[0];
+      pfd[batch_par].events = POLLIN;
+      pfd[batch_par].revents = 0;
+      
+      if (poll(pfd, batch_par + 1, -1) < 0) {
+         if (errno == EINTR) continue;
+         errorE("Call to poll failed:");
+      }
+
+      // Forward signals to all running commands, and start no more
+      if (pfd[batch_par].revents & POLLIN) {
+         char buf[16];
+         int cnt = read(signal_pipe[0], buf, sizeof(buf));
+         int b;
+         for (b = 0; b<cnt; b++) {
+            int sig = flag_signal(buf[b]);
+            if (!sig) continue;
+            signalled = sig;
+            batch_next = batch_n_jobs;
+            for (a = 0; a<batch_par; a++) {
+               if (bcs[a].job < 0) continue;
+               conn = &bcs[a].conn;
+               send_signal(sig);
+            }
+            signals_sent++;
+         }
+      }
+      
+      for (a = 0; a<batch_par; a++) {
+         BatchConn *bc = &bcs[a];
+         conn = &bc->conn;
+         if (pfd[a].revents & POLLIN) {
+            while (bc->job >= 0) {
+               read_msg();
+               batch_process_msg(bc);
+               if (conn->off >= conn->len)
+                  break;
+            }
+            continue;
+         }
+         if (pfd[a].revents & POLLHUP)
+            error("Java process hung up pipe");
+         if (pfd[a].revents & (POLLERR | POLLNVAL))
+            error("Error on incoming pipe");
+      }
+   }
+   if (signalled)
+      return 128 + signalled;
+   return batch_failed > 101 ? 101 : batch_failed;
+}
+
+// ------------------------------------------------------------------------
+// MAIN
+//
+
 int
 main(int ac, char **av) {
    char **pp;
    char *cmd = strrchr(av[0], '/');
    char **args;
+   char *batch = NULL;
    cmd = cmd ? cmd+1 : av[0];
 
    if (cmd) {
@@ -1335,13 +1927,45 @@ main(int ac, char **av) {
             ac--; av++;
             continue;
          }
+         if (ac >= 2 && 0 == strcmp(av[0], "-b")) {
+            batch = av[1];
+            ac-=2; av+=2;
+            continue;
+         }
+         if (ac >= 2 && 0 == strcmp(av[0], "-P")) {
+            batch_par = atoi(av[1]);
+            if (batch_par < 1)
+               error("Invalid -P value: %s", av[1]);
+            ac-=2; av+=2;
+            continue;
+         }
+         if (0 == strcmp(av[0], "-v")) {
+            batch_verbose = 1;
+            ac--; av++;
+            continue;
+         }
          break;
       }
 
-      // Get alias/class from command-line
-      if (ac == 0 || ac > 0 && av[0][0] == '-')
-         usage();
-      cmd = *av++;
+      // Batch commands come from file or STDIN instead of command-line
+      if (batch) {
+         if (ac != 0)
+            usage();
+         return batch_run(batch);
+      }
+
+      // Reattach a detached console tool, or list them
+      if (ac >= 1 && 0 == strcmp(av[0], "--attach")) {
+         if (ac > 2)
+            usage();
+         cmd = "attach";
+         av++;
+      } else {
+         // Get alias/class from command-line
+         if (ac == 0 || ac > 0 && av[0][0] == '-')
+            usage();
+         cmd = *av++;
+      }
    } else {
       // Strip "sj-" off front of hard-link alias name if present
       if (0 == memcmp(cmd, "sj-", 3))
@@ -1373,32 +1997,38 @@ main(int ac, char **av) {
    setup_in_fd();
    if (0 != pipe(signal_pipe))
       errorE("Unable to create internal pipe:");
+   trap_signals();
 
    // Main loop
    while (1) {
       struct pollfd pfd[3];
-      pfd[0].fd = in_fd;
+      pfd[0].fd = conn->in_fd;
       pfd[0].events = POLLIN;
       pfd[1].fd = signal_pipe[0];
       pfd[1].events = POLLIN;
       pfd[2].fd = 0;
       pfd[2].events = POLLIN;
 
-      int rv = poll(pfd, stdin_eof ? 2 : 3, -1);
+      // Only watch STDIN whilst the JVM has room for more
+      int want_stdin = !stdin_eof && stdin_credit > 0;
+      int rv = poll(pfd, want_stdin ? 3 : 2, -1);
       if (rv < 0 && errno != EINTR)
          errorE("Call to poll failed:");
       
       // STDIN
-      if (!stdin_eof) {
+      if (want_stdin) {
          if (pfd[2].revents & (POLLERR | POLLNVAL))
             error("Error on STDIN");
-         if (pfd[2].revents & POLLHUP) {
+         // A closed pipe may still hold data, in which case read()
+         // gives the EOF once it has all been read
+         if ((pfd[2].revents & (POLLHUP | POLLIN)) == POLLHUP) {
             stdin_eof = 1;
             write_msg("EOF");
             write_flush();
          }
          if (pfd[2].revents & POLLIN) {
-            int cnt = read(0, stdinbuf, sizeof(stdinbuf));
+            int cnt = read(0, stdinbuf, stdin_credit < (int) sizeof(stdinbuf) ?
+                           stdin_credit : (int) sizeof(stdinbuf));
             if (cnt == 0) {
                stdin_eof = 1;
                write_msg("EOF");
@@ -1406,6 +2036,7 @@ main(int ac, char **av) {
             } else if (cnt < 0) {
                errorE("STDIN error:");
             } else {
+               stdin_credit -= cnt;
                write_msg("0%t", stdinbuf, cnt);
                write_flush();
             }
@@ -1423,7 +2054,10 @@ main(int ac, char **av) {
          for (a = 0; a<cnt; a++) {
             if (buf[a] == 'W')
                sigwinch = 1;
-            else
+            else if (flag_signal(buf[a])) {
+               send_signal(flag_signal(buf[a]));
+               signals_sent++;
+            } else
                error("Unexpected flag in signal_pipe: %c", buf[a]);
          }
          if (sigwinch)
@@ -1441,7 +2075,7 @@ main(int ac, char **av) {
          while (1) {
             read_msg();
             process_msg();
-            if (in_off >= in_len)
+            if (conn->off >= conn->len)
                break;
          }
       }
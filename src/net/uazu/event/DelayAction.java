@@ -74,7 +74,7 @@ public abstract class DelayAction {
          if (timer == null) {
             timer = new Timer(trigger) {
                   public long run(long req, long now) {
-                     synchronized(this) {
+                     synchronized(DelayAction.this) {
                         if (trigger > now)
                            return trigger;
                         timer = null;
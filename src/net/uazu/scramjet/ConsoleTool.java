@@ -14,6 +14,8 @@
 
 package net.uazu.scramjet;
 
+import java.io.FilterInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
 import java.util.List;
@@ -37,9 +39,19 @@ import net.uazu.scramjet.mod.ConsoleMod;
  * net.uazu.con.tile.TiledApp} instance within the {@link #setup}
  * routine.  It is not necessary to override {@link #pass} as the
  * TiledApp handler already handles all events.</p>
+ *
+ * <p>A console tool may be detached from its front-end with {@link
+ * #detach}, and carries on running headless, keeping its model of
+ * the screen.  It can later be attached to a new front-end with
+ * "scramjet --attach &lt;id&gt;", at which point it gets a ResizeEvent
+ * and repaints the whole screen.  With {@link #setDetachable}, it is
+ * also detached instead of cancelled if its front-end goes away,
+ * e.g. when the terminal is closed.</p>
  */
 public class ConsoleTool extends Tool implements EventHandler {
-   public ConsoleTool(SJContext sjc) { super(sjc); }
+   public ConsoleTool(SJContext sjc) {
+      super(sjc);
+   }
 
    /**
     * Console handles updating display
@@ -61,6 +73,23 @@ public class ConsoleTool extends Tool implements EventHandler {
     */
    private ITerminal tif;
 
+   /**
+    * Input stream for the console, which flags to the scheduler that
+    * a new frame is being worked on whenever input arrives.
+    */
+   private final InputStream input = new FilterInputStream(stdin) {
+         public int read() throws IOException {
+            int rv = super.read();
+            SJSession.renderStart();
+            return rv;
+         }
+         public int read(byte[] buf, int off, int len) throws IOException {
+            int rv = super.read(buf, off, len);
+            SJSession.renderStart();
+            return rv;
+         }
+      };
+
    /**
     * Implementation of Tool.run(): Initialise console system.
     */
@@ -88,10 +117,11 @@ public class ConsoleTool extends Tool implements EventHandler {
                mod.rawMode(on);
             }
             public InputStream getInput() {
-               return stdin;
+               return input;
             }
             public void output(byte[] data, int len) {
                writeOut(data, len);
+               SJSession.renderEnd();
             }
             public void setCleanup(byte[] data, int len) {
                mod.setCleanup(data, len);
@@ -136,5 +166,29 @@ public class ConsoleTool extends Tool implements EventHandler {
    public void pass(Event ev, List<Event> out) {
       out.add(ev);
    }
+
+   /**
+    * Set whether the tool is detached, rather than cancelled, if its
+    * front-end goes away.
+    */
+   public void setDetachable(boolean on) {
+      session().detachable = on;
+   }
+
+   /**
+    * Detach from the front-end, restoring the terminal and telling
+    * the user how to attach again.  The tool carries on running, and
+    * its output is dropped until it is attached again.  Must be
+    * called from the event loop thread.
+    * @return false if it couldn't be detached, e.g. because it is a
+    * child session
+    */
+   public boolean detach() {
+      if (session().parent != null)
+         return false;
+      con.pause();
+      mod.cleanup();
+      return session().detach(true);
+   }
 }
 
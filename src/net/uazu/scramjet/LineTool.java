@@ -0,0 +1,198 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.io.InputStream;
+
+/**
+ * Base class for line filters.  Input is read in large chunks into
+ * a reusable buffer, and each line is passed to {@link #line} as a
+ * slice of that buffer, without the trailing newline.  No String or
+ * other object is created per line unless the tool asks for one with
+ * {@link #str}, so a filter that writes its output with {@link
+ * ToolWriter#append(byte[],int,int)} runs without allocation.  For
+ * example a minimal grep for a fixed string:
+ *
+ * <pre>
+ * public class Grep extends LineTool {
+ *    private byte[] pat;
+ *    public Grep(SJContext sjc) { super(sjc); pat = args[0].getBytes(); }
+ *    protected void line(byte[] buf, int off, int len) {
+ *       if (indexOf(buf, off, off + len, pat) &gt;= 0)
+ *          out().append(buf, off, len).newline();
+ *    }
+ * }
+ * </pre>
+ *
+ * <p>The default run() processes stdin and then calls {@link #end}.
+ * Tools that also read files can override run() and call {@link
+ * #process} for each one.  The slice passed to line() is only valid
+ * until line() returns.
+ */
+public abstract class LineTool extends Tool {
+   private static final int CHUNK = 65536;
+
+   private byte[] buf = new byte[CHUNK];
+   private long line_no;
+   private boolean stopped;
+
+   public LineTool(SJContext sjc) {
+      super(sjc);
+   }
+
+   /**
+    * Handle one line of input.
+    * @param buf Buffer holding the line
+    * @param off Offset of the start of the line
+    * @param len Length of the line, excluding the newline
+    */
+   protected abstract void line(byte[] buf, int off, int len) throws Exception;
+
+   /**
+    * Called at the end of input by the default run().  Does nothing
+    * unless overridden.
+    */
+   protected void end() throws Exception {}
+
+   public void run() throws Exception {
+      process(stdin);
+      end();
+   }
+
+   /**
+    * Stop reading input after the current line, e.g. once enough
+    * lines have been seen.
+    */
+   protected final void stop() {
+      stopped = true;
+   }
+
+   /**
+    * Number of the current line, counting from 1, and continuing
+    * across calls to process().
+    */
+   protected final long lineNumber() {
+      return line_no;
+   }
+
+   /**
+    * Pass each line of the stream to line().  A final line without a
+    * newline is passed too.  Returns at EOF or after stop().
+    */
+   protected final void process(InputStream in) throws Exception {
+      stopped = false;
+      int start = 0;   // Start of current line
+      int scan = 0;    // Position to continue scanning for '\n'
+      int fill = 0;    // End of data in buffer
+      while (!stopped) {
+         if (fill == buf.length) {
+            if (start > 0) {
+               // Move the partial line down
+               System.arraycopy(buf, start, buf, 0, fill - start);
+               scan -= start;
+               fill -= start;
+               start = 0;
+            } else {
+               // Line longer than buffer
+               byte[] tmp = new byte[buf.length * 2];
+               System.arraycopy(buf, 0, tmp, 0, fill);
+               buf = tmp;
+            }
+         }
+         int cnt = in.read(buf, fill, buf.length - fill);
+         if (cnt < 0)
+            break;
+         exitCheck();
+         fill += cnt;
+
+         while (!stopped) {
+            int nl = indexOf(buf, scan, fill, (byte) '\n');
+            if (nl < 0) {
+               scan = fill;
+               break;
+            }
+            line_no++;
+            line(buf, start, nl - start);
+            start = scan = nl + 1;
+         }
+         if (start == fill)
+            start = scan = fill = 0;
+      }
+      if (!stopped && start < fill) {
+         line_no++;
+         line(buf, start, fill - start);
+      }
+   }
+
+   /**
+    * Decode a slice as a String using the platform charset.
+    */
+   protected static String str(byte[] buf, int off, int len) {
+      return new String(buf, off, len, Scramjet.charset);
+   }
+
+   /**
+    * Find a byte within buf[from..to).
+    * @return Index, or -1 if not found
+    */
+   public static int indexOf(byte[] buf, int from, int to, byte ch) {
+      // Simple counted loop, which the JIT unrolls
+      for (int a = from; a<to; a++)
+         if (buf[a] == ch)
+            return a;
+      return -1;
+   }
+
+   /**
+    * Find a byte sequence within buf[from..to).
+    * @return Index of the start of the match, or -1 if not found
+    */
+   public static int indexOf(byte[] buf, int from, int to, byte[] pat) {
+      int plen = pat.length;
+      if (plen == 0)
+         return from <= to ? from : -1;
+      byte first = pat[0];
+      int last = to - plen;
+     outer:
+      for (int a = from; a <= last; a++) {
+         if (buf[a] != first)
+            continue;
+         for (int b = 1; b<plen; b++)
+            if (buf[a + b] != pat[b])
+               continue outer;
+         return a;
+      }
+      return -1;
+   }
+
+   /**
+    * Find the start of the given field, where fields are separated by
+    * the given byte, as for "cut -d".
+    * @param field Field number, counting from 0
+    * @return Offset of the start of the field, or -1 if the line has
+    * too few fields.  The field ends at the next separator or the
+    * end of the line.
+    */
+   public static int field(byte[] buf, int off, int len, byte sep, int field) {
+      int end = off + len;
+      for (int a = off; field > 0; field--) {
+         a = indexOf(buf, a, end, sep);
+         if (a < 0)
+            return -1;
+         off = ++a;
+      }
+      return off;
+   }
+}
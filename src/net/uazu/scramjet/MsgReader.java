@@ -56,8 +56,12 @@ public class MsgReader {
          break;
       }
       msg = new byte[len];
-      for (int a = 0; a<len; a++)
-         msg[a] = in_read();
+      for (int a = 0; a<len; ) {
+         int cnt = in.read(msg, a, len - a);
+         if (cnt < 0)
+            throw new EOFException();
+         a += cnt;
+      }
       msg_off = 0;
 
 //      if (ScramJet.DEBUG) {
@@ -23,8 +23,27 @@ import java.io.IOException;
  */
 public class MsgWriter {
    private SJProxy proxy;
-   private ByteArrayOutputStream otmp;
+   private Buffer otmp;
    private OutputStream out;
+
+   /**
+    * Space reserved at the front of the buffer for the length.
+    */
+   private static final int HEADER = 5;
+   private static final byte[] HEADER_SPACE = new byte[HEADER];
+
+   /**
+    * Space that must be left free in front of the data passed to
+    * {@link #writeTail}.  Enough for the length and a short prefix.
+    */
+   public static final int TAIL_HEADROOM = 8;
+
+   /**
+    * ByteArrayOutputStream giving access to its buffer.
+    */
+   private static class Buffer extends ByteArrayOutputStream {
+      byte[] array() { return buf; }
+   }
    
    /**
     * Construct a MsgWriter instance.
@@ -32,7 +51,7 @@ public class MsgWriter {
    public MsgWriter(SJProxy proxy, OutputStream out) {
       this.proxy = proxy;
       this.out = out;
-      otmp = new ByteArrayOutputStream();
+      otmp = new Buffer();
    }
    
    private void
@@ -53,17 +72,17 @@ public class MsgWriter {
       put(127 & val);
    }
 
-   private void 
-   write_int(int val) throws IOException {
-      for (int a = 28; a>0; a-=7) {
-         if ((val >> a) != 0) {
-            for (; a>0; a-=7)
-               out.write(128 | (127 & (val>>a)));
-            out.write(127 & val);
-            return;
-         }
-      }
-      out.write(127 & val);
+   /**
+    * Encode a length backwards into the buffer so that it ends just
+    * before 'end'.
+    * @return Offset of the first byte of the length
+    */
+   private static int
+   put_header(byte[] buf, int end, int len) {
+      buf[--end] = (byte) (127 & len);
+      for (len >>>= 7; len != 0; len >>>= 7)
+         buf[--end] = (byte) (128 | (127 & len));
+      return end;
    }
 
 //   private void
@@ -99,6 +118,7 @@ public class MsgWriter {
    write(String fmt, Object... args) throws SJTerminateError {
       try {
          otmp.reset();
+         otmp.write(HEADER_SPACE, 0, HEADER);
          
          byte[] tail = null;
          int tail_count = 0;
@@ -126,15 +146,41 @@ public class MsgWriter {
                put(ch); break;
             }
          }
-         int msglen = otmp.size();
+         // Send as a single write
          if (tail != null)
-            msglen += tail_count;
-         write_int(msglen);
-         otmp.writeTo(out);
-         if (tail != null)
-            out.write(tail, 0, tail_count);
+            otmp.write(tail, 0, tail_count);
+         byte[] buf = otmp.array();
+         int start = put_header(buf, HEADER, otmp.size() - HEADER);
+         out.write(buf, start, otmp.size() - start);
+      } catch (IOException e) {
+         io_error(e);
+      }
+   }
+
+   /**
+    * Send a message made of a short ASCII prefix followed by tail
+    * data, equivalent to write(prefix + "%t", data, count), but
+    * without any copying or allocation.  The caller must leave
+    * TAIL_HEADROOM bytes free in front of the data, which are
+    * overwritten with the message header, so that the whole message
+    * goes out in a single write.
+    * @param prefix Prefix, e.g. "1" for output to STDOUT; at most 3
+    * characters
+    * @param buf Buffer
+    * @param off Offset of tail data, at least TAIL_HEADROOM
+    * @param len Length of tail data
+    */
+   public synchronized void
+   writeTail(String prefix, byte[] buf, int off, int len) throws SJTerminateError {
+      int plen = prefix.length();
+      int start = off - plen;
+      for (int a = 0; a<plen; a++)
+         buf[start + a] = (byte) prefix.charAt(a);
+      start = put_header(buf, start, plen + len);
+      try {
+         out.write(buf, start, off + len - start);
       } catch (IOException e) {
-         proxy.do_exit(this, 199);
+         io_error(e);
       }
    }
 
@@ -146,8 +192,19 @@ public class MsgWriter {
       try {
          out.flush();
       } catch (IOException e) {
-         proxy.do_exit(this, 199);
+         io_error(e);
       }
    }
+
+   /**
+    * Handle an I/O error.  Without a proxy, i.e. when used outside of
+    * the server, just throw SJTerminateError.
+    */
+   private void
+   io_error(IOException e) throws SJTerminateError {
+      if (proxy == null)
+         throw new SJTerminateError();
+      proxy.do_exit(this, 199);
+   }
 }
       
@@ -0,0 +1,251 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Base class for line filters whose per-line work is CPU-bound and
+ * independent from line to line, which runs {@link #line} across all
+ * processors.  Input is read in chunks of whole lines, each chunk is
+ * processed on a pool from {@link Tool#newForkJoinPool}, so with the
+ * tool's System.* streams and exit handling, and the output of each
+ * chunk is collected separately and written out in input order.  So
+ * the output is the same as if the lines were processed one after
+ * another.  Only a limited number of chunks are in progress at once,
+ * which bounds the memory used for input and for output waiting its
+ * turn.
+ *
+ * <p>{@link #line} is called concurrently from several threads, so
+ * it must not modify shared state without synchronization, and it
+ * must write its output to the ToolWriter passed in, not to stdout or
+ * {@link Tool#out}.  Lines are passed as slices of a chunk buffer as
+ * for {@link LineTool}.
+ *
+ * <p>The default run() treats each argument as a file to process, or
+ * processes stdin if there are none or for "-", like "cat".  Tools
+ * taking options should override run() and call {@link #process} or
+ * {@link #processFiles} themselves.
+ */
+public abstract class ParallelTool extends Tool {
+   private int parallelism = 0;
+   private int chunk_size = 1 << 20;
+   private ForkJoinPool pool;
+
+   /**
+    * Chunks submitted to the pool, in input order.
+    */
+   private final ArrayDeque<Future<Chunk>> pending = new ArrayDeque<Future<Chunk>>();
+
+   /**
+    * Chunks available for reuse.
+    */
+   private final ArrayDeque<Chunk> free = new ArrayDeque<Chunk>();
+
+   public ParallelTool(SJContext sjc) {
+      super(sjc);
+   }
+
+   /**
+    * Handle one line of input.  Called concurrently from the pool's
+    * threads.
+    * @param buf Buffer holding the line
+    * @param off Offset of the start of the line
+    * @param len Length of the line, excluding the newline
+    * @param out Writer for output resulting from this line
+    */
+   protected abstract void line(byte[] buf, int off, int len, ToolWriter out)
+      throws Exception;
+
+   /**
+    * Called on the tool's thread after all input has been processed
+    * and output, by the default run().  Does nothing unless
+    * overridden.
+    */
+   protected void end() throws Exception {}
+
+   /**
+    * Set the number of threads to use, or 0 (the default) for one per
+    * processor.  Must be called before processing starts.
+    */
+   protected final void setParallelism(int threads) {
+      parallelism = threads;
+   }
+
+   /**
+    * Set the size of the chunks in which input is handed out, default
+    * 1MB.  Smaller chunks give more even load for small inputs,
+    * larger ones less overhead.  Lines longer than this are still
+    * passed whole.
+    */
+   protected final void setChunkSize(int size) {
+      chunk_size = Math.max(size, 1024);
+   }
+
+   public void run() throws Exception {
+      processFiles(args.length == 0 ? new String[] { "-" } : args);
+      end();
+   }
+
+   /**
+    * Process the named files one after another, with "-" meaning
+    * stdin.  Relative paths are taken from the command's current
+    * directory.  Processing carries on across file boundaries, so
+    * many small files are still handled in parallel.  Returns once
+    * all output has been written.
+    */
+   protected final void processFiles(String... names) throws Exception {
+      for (String name : names) {
+         if (name.equals("-")) {
+            feed(stdin);
+            continue;
+         }
+         InputStream in = new FileInputStream(file(name));
+         try {
+            feed(in);
+         } finally {
+            in.close();
+         }
+      }
+      drain(0);
+   }
+
+   /**
+    * Process a stream.  Returns once all output has been written.
+    */
+   protected final void process(InputStream in) throws Exception {
+      feed(in);
+      drain(0);
+   }
+
+   /**
+    * Buffer and input/output for one chunk of lines.
+    */
+   private static class Chunk {
+      byte[] data;
+      int len;
+      final ToolWriter out = new ToolWriter();
+      Chunk(int size) {
+         data = new byte[size];
+      }
+   }
+
+   /**
+    * Read the stream in chunks of whole lines and submit them.
+    */
+   private void feed(InputStream in) throws Exception {
+      if (pool == null)
+         pool = newForkJoinPool(parallelism);
+      int max_pending = 2 * pool.getParallelism();
+      Chunk chunk = take_chunk();
+      int clean = 0;    // Data before this is known to have no newline
+      while (true) {
+         if (chunk.len == chunk.data.length) {
+            // No newline in the whole buffer, so enlarge it
+            byte[] tmp = new byte[chunk.data.length * 2];
+            System.arraycopy(chunk.data, 0, tmp, 0, chunk.len);
+            chunk.data = tmp;
+         }
+         int cnt = in.read(chunk.data, chunk.len, chunk.data.length - chunk.len);
+         if (cnt < 0)
+            break;
+         exitCheck();
+         chunk.len += cnt;
+         if (chunk.len < chunk_size)
+            continue;
+
+         // Split after the last newline, carrying the rest over
+         int nl = chunk.len;
+         while (--nl >= clean && chunk.data[nl] != '\n') {}
+         if (nl < clean) {
+            clean = chunk.len;
+            continue;
+         }
+         drain(max_pending - 1);
+         Chunk next = take_chunk();
+         int rest = chunk.len - (nl + 1);
+         if (next.data.length < rest + chunk_size)
+            next.data = new byte[rest + chunk_size];
+         System.arraycopy(chunk.data, nl + 1, next.data, 0, rest);
+         next.len = clean = rest;
+         chunk.len = nl + 1;
+         submit(chunk);
+         chunk = next;
+      }
+      if (chunk.len > 0)
+         submit(chunk);
+      else
+         free.add(chunk);
+   }
+
+   private Chunk take_chunk() {
+      Chunk chunk = free.poll();
+      if (chunk == null)
+         chunk = new Chunk(chunk_size * 5 / 4);
+      chunk.len = 0;
+      return chunk;
+   }
+
+   private void submit(final Chunk chunk) {
+      pending.add(pool.submit(new Callable<Chunk>() {
+            public Chunk call() throws Exception {
+               run_chunk(chunk);
+               return chunk;
+            }
+         }));
+   }
+
+   private void run_chunk(Chunk chunk) throws Exception {
+      byte[] data = chunk.data;
+      int end = chunk.len;
+      for (int start = 0; start < end; ) {
+         int nl = LineTool.indexOf(data, start, end, (byte) '\n');
+         if (nl < 0)
+            nl = end;
+         line(data, start, nl - start, chunk.out);
+         start = nl + 1;
+      }
+   }
+
+   /**
+    * Write out the output of completed chunks in order, waiting as
+    * necessary, until no more than 'limit' remain in progress.
+    */
+   private void drain(int limit) throws Exception {
+      ToolWriter out = out();
+      while (pending.size() > limit) {
+         Chunk chunk;
+         try {
+            chunk = pending.peek().get();
+         } catch (ExecutionException e) {
+            Throwable ee = e.getCause();
+            if (ee instanceof Exception)
+               throw (Exception) ee;
+            if (ee instanceof Error)
+               throw (Error) ee;
+            throw e;
+         }
+         pending.poll();
+         chunk.out.moveTo(out);
+         free.add(chunk);
+      }
+   }
+}
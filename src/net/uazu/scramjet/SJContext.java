@@ -28,6 +28,12 @@ public class SJContext {
     */
    public final SJProxy proxy;
    
+   /**
+    * Session that the tool runs in, or null before the streams have
+    * been added.
+    */
+   public final SJSession session;
+
    /**
     * Command-line arguments.
     */
@@ -75,20 +81,22 @@ public class SJContext {
       this.env = env;
       this.cwd = cwd;
       this.cmd = cmd;
+      session = null;
       stdin = null;
       stdout = null;
       stderr = null;
    }
 
    /**
-    * Constructor to add the streams.
+    * Constructor to add the session and streams.
     */
-   public SJContext(SJContext orig, InputStream in, PrintStream out, PrintStream err) {
+   public SJContext(SJContext orig, SJSession session, InputStream in, PrintStream out, PrintStream err) {
       proxy = orig.proxy;
       args = orig.args;
       env = orig.env;
       cwd = orig.cwd;
       cmd = orig.cmd;
+      this.session = session;
       stdin = in;
       stdout = out;
       stderr = err;
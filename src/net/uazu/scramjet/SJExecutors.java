@@ -0,0 +1,264 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.uazu.scramjet.agent.ExitHook;
+import net.uazu.scramjet.nailgun.ThreadLocalInputStream;
+import net.uazu.scramjet.nailgun.ThreadLocalPrintStream;
+
+/**
+ * Thread pools and task wrappers which carry a tool's session
+ * context, i.e. System.in/out/err and System.exit() handling, across
+ * to the threads that run the tasks.  Normally that context is only
+ * inherited by threads started by the tool itself, so work run on a
+ * thread created earlier, for example by a shared executor or the
+ * common ForkJoinPool (and so parallelStream()), would write to the
+ * server log and could stop the server.
+ *
+ * <p>Pools created here run their threads within the session's
+ * ThreadGroup with the context already bound, and are shut down as
+ * soon as the session finishes, including on cancellation.  For
+ * tasks that must run on some other executor, {@link #wrap(Runnable)}
+ * binds the context for the duration of each task.  Streams from
+ * parallelStream() run on the pool they are started from, so submit
+ * the whole stream operation to a pool from {@link
+ * #newForkJoinPool}.  Access via the methods on {@link Tool}.
+ */
+public class SJExecutors {
+   private final Tool tool;
+   private final SJSession session;
+   private final AtomicInteger count = new AtomicInteger();
+
+   SJExecutors(Tool tool, SJSession session) {
+      this.tool = tool;
+      this.session = session;
+   }
+
+   /**
+    * Thread context: the tool for System.exit() and the System.*
+    * streams.
+    */
+   private static class Binding {
+      final Tool tool;
+      final InputStream in;
+      final PrintStream out;
+      final PrintStream err;
+      Binding(Tool tool, InputStream in, PrintStream out, PrintStream err) {
+         this.tool = tool;
+         this.in = in;
+         this.out = out;
+         this.err = err;
+      }
+   }
+
+   /**
+    * Bind the given context to the current thread.
+    * @return The previous context
+    */
+   private static Binding bind(Binding bb) {
+      ThreadLocalInputStream in = (ThreadLocalInputStream) System.in;
+      ThreadLocalPrintStream out = (ThreadLocalPrintStream) System.out;
+      ThreadLocalPrintStream err = (ThreadLocalPrintStream) System.err;
+      Binding prev = new Binding(ExitHook.getTool(), in.get(), out.get(), err.get());
+      ExitHook.setTool(bb.tool);
+      in.init(bb.in);
+      out.init(bb.out);
+      err.init(bb.err);
+      return prev;
+   }
+
+   private Binding binding() {
+      return new Binding(tool, tool.stdin, tool.stdout, tool.stderr);
+   }
+
+   /**
+    * Wrap a task so that it runs with this tool's context, whichever
+    * thread runs it.  The thread's previous context is restored
+    * afterwards.
+    */
+   public Runnable wrap(final Runnable task) {
+      final Binding bb = binding();
+      return new Runnable() {
+         public void run() {
+            Binding prev = bind(bb);
+            try {
+               task.run();
+            } finally {
+               bind(prev);
+            }
+         }
+      };
+   }
+
+   /**
+    * Wrap a task so that it runs with this tool's context, whichever
+    * thread runs it.  The thread's previous context is restored
+    * afterwards.
+    */
+   public <T> Callable<T> wrap(final Callable<T> task) {
+      final Binding bb = binding();
+      return new Callable<T>() {
+         public T call() throws Exception {
+            Binding prev = bind(bb);
+            try {
+               return task.call();
+            } finally {
+               bind(prev);
+            }
+         }
+      };
+   }
+
+   /**
+    * Priority for threads of the session, according to its class.
+    */
+   private int priority() {
+      return session.interactive ?
+         SJSession.INTERACTIVE_PRIORITY : SJSession.BATCH_PRIORITY;
+   }
+
+   private String thread_name() {
+      Thread main = session.thread;
+      return (main == null ? "SJTool" : main.getName()) +
+         " worker " + count.incrementAndGet();
+   }
+
+   /**
+    * Get a ThreadFactory which creates daemon threads within the
+    * session's ThreadGroup, with this tool's context bound.
+    */
+   public ThreadFactory threadFactory() {
+      final Binding bb = binding();
+      return new ThreadFactory() {
+         public Thread newThread(final Runnable run) {
+            Thread th = new Thread(session.group, new Runnable() {
+                  public void run() {
+                     bind(bb);
+                     try {
+                        run.run();
+                     } finally {
+                        session.usage.sampleCurrent();
+                     }
+                  }
+               }, thread_name());
+            th.setDaemon(true);
+            th.setPriority(priority());
+            return th;
+         }
+      };
+   }
+
+   /**
+    * Default number of threads for a pool: one per processor, but for
+    * a batch session one fewer, so that its CPU-bound work leaves a
+    * processor free for interactive sessions.  This bounds only the
+    * pool's threads, not admission, so it can't hold up a pipeline.
+    */
+   private int default_threads() {
+      int cpus = Runtime.getRuntime().availableProcessors();
+      return session.interactive || cpus < 2 ? cpus : cpus - 1;
+   }
+
+   /**
+    * Create a fixed-size thread pool for this tool.  It is shut down
+    * when the session finishes.
+    * @param threads Number of threads, or 0 for the default, one per
+    * processor, or one fewer for a batch session
+    */
+   public ExecutorService newThreadPool(int threads) {
+      if (threads <= 0)
+         threads = default_threads();
+      ExecutorService ex = Executors.newFixedThreadPool(threads, threadFactory());
+      session.addExecutor(ex);
+      return ex;
+   }
+
+   /**
+    * Create a ForkJoinPool for this tool.  It is shut down when the
+    * session finishes.
+    * @param parallelism Number of threads, or 0 for the default, one
+    * per processor, or one fewer for a batch session
+    */
+   public ForkJoinPool newForkJoinPool(int parallelism) {
+      if (parallelism <= 0)
+         parallelism = default_threads();
+      final Binding bb = binding();
+      ForkJoinPool pool = new ForkJoinPool(
+         parallelism,
+         new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+               // A worker joins the ThreadGroup of the thread that
+               // creates it, which may be any thread submitting work,
+               // so create it from a thread in the session's group
+               if (session.group.parentOf(Thread.currentThread().getThreadGroup()))
+                  return worker(pool, bb);
+               final ForkJoinWorkerThread[] rv = new ForkJoinWorkerThread[1];
+               Thread maker = new Thread(session.group, "SJTool worker maker") {
+                     public void run() {
+                        rv[0] = worker(pool, bb);
+                     }
+                  };
+               maker.start();
+               boolean interrupted = false;
+               while (true) {
+                  try {
+                     maker.join();
+                     break;
+                  } catch (InterruptedException e) {
+                     interrupted = true;
+                  }
+               }
+               if (interrupted)
+                  Thread.currentThread().interrupt();
+               return rv[0];
+            }
+         },
+         null, false);
+      session.addExecutor(pool);
+      return pool;
+   }
+
+   /**
+    * Create a ForkJoinPool worker with this tool's context bound, in
+    * the ThreadGroup of the calling thread, which must belong to the
+    * session.
+    */
+   private ForkJoinWorkerThread worker(ForkJoinPool pool, final Binding bb) {
+      ForkJoinWorkerThread th = new ForkJoinWorkerThread(pool) {
+            protected void onStart() {
+               super.onStart();
+               bind(bb);
+            }
+            protected void onTermination(Throwable e) {
+               session.usage.sampleCurrent();
+               super.onTermination(e);
+            }
+         };
+      th.setName(thread_name());
+      th.setDaemon(true);
+      th.setPriority(priority());
+      return th;
+   }
+}
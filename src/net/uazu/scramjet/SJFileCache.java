@@ -0,0 +1,383 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-wide cache of file contents and of values parsed from them,
+ * shared by all tools and kept between invocations.  Entries are
+ * keyed by the file's identity, i.e. device and inode where the
+ * filesystem provides them, or else the absolute path, and are only
+ * used whilst the file's size and modification time are unchanged.
+ * So a tool run repeatedly over the same unchanged files only pays
+ * for a stat() of each file, with no reading or parsing.
+ *
+ * <p>Parsed values are produced by a {@link Parser}.  Each parser
+ * gets its own entry for a file, so the same file may be cached as
+ * raw bytes, as text, and as some tool-specific structure.  Values
+ * are shared between sessions, so they must be treated as
+ * immutable.
+ *
+ * <p>Memory use is limited to a budget, by default 1/8 of the
+ * maximum heap, or as set by the 'file_cache' config line.  When
+ * over budget, least recently used entries are dropped.  Access from
+ * tools is via {@link Tool#readFile(String)} and {@link
+ * Tool#readFile(String,Parser)}, which resolve relative paths
+ * against the command's current directory.
+ */
+public class SJFileCache {
+   /**
+    * Converts file contents to a cached value.  Parsers are matched
+    * by class, so a parser may be created afresh on each call.  A
+    * parser which takes parameters affecting its result must
+    * override equals() and hashCode() to compare them too.
+    */
+   public static abstract class Parser<T> {
+      /**
+       * Parse the contents of the file.
+       * @param data Read-only buffer holding the whole file
+       */
+      public abstract T parse(ByteBuffer data) throws Exception;
+
+      /**
+       * Estimate the memory used by a parsed value, for the memory
+       * budget.  By default assumes a value twice the size of the
+       * file.
+       */
+      public long weight(T value, long file_size) {
+         return 2 * file_size;
+      }
+
+      public boolean equals(Object obj) {
+         return obj != null && obj.getClass() == getClass();
+      }
+
+      public int hashCode() {
+         return getClass().hashCode();
+      }
+   }
+
+   /**
+    * Parser giving the contents as a String in the platform charset.
+    */
+   public static final Parser<String> TEXT = new Parser<String>() {
+      public String parse(ByteBuffer data) {
+         return Scramjet.charset.decode(data).toString();
+      }
+      public long weight(String value, long file_size) {
+         return 2L * value.length();
+      }
+   };
+
+   /**
+    * Parser giving the lines as an unmodifiable list, without their
+    * line endings.
+    */
+   public static final Parser<List<String>> LINES = new Parser<List<String>>() {
+      public List<String> parse(ByteBuffer data) {
+         String text = Scramjet.charset.decode(data).toString();
+         List<String> rv = new ArrayList<String>();
+         int len = text.length();
+         for (int off = 0; off < len; ) {
+            int nl = text.indexOf('\n', off);
+            if (nl < 0)
+               nl = len;
+            int end = nl > off && text.charAt(nl-1) == '\r' ? nl-1 : nl;
+            rv.add(text.substring(off, end));
+            off = nl + 1;
+         }
+         return Collections.unmodifiableList(rv);
+      }
+      public long weight(List<String> value, long file_size) {
+         return 2 * file_size + 48L * value.size();
+      }
+   };
+
+   /**
+    * Entries are only cached if they take less than this fraction of
+    * the budget.
+    */
+   private static final int MAX_ENTRY_FRACTION = 4;
+
+   /**
+    * Fixed overhead per entry, for the memory budget.
+    */
+   private static final int ENTRY_OVERHEAD = 200;
+
+   /**
+    * Key of an entry: the file's identity and the parser, or a null
+    * parser for the raw contents.
+    */
+   private static class Key {
+      final Object id;
+      final Parser<?> parser;
+      Key(Object id, Parser<?> parser) {
+         this.id = id;
+         this.parser = parser;
+      }
+      public boolean equals(Object obj) {
+         if (!(obj instanceof Key))
+            return false;
+         Key kk = (Key) obj;
+         return id.equals(kk.id) &&
+            (parser == null ? kk.parser == null : parser.equals(kk.parser));
+      }
+      public int hashCode() {
+         return id.hashCode() * 31 + (parser == null ? 0 : parser.hashCode());
+      }
+   }
+
+   private static class Entry {
+      final long size;
+      final long mtime;
+      final Object value;
+      final long weight;
+      Entry(long size, long mtime, Object value, long weight) {
+         this.size = size;
+         this.mtime = mtime;
+         this.value = value;
+         this.weight = weight;
+      }
+   }
+
+   /**
+    * Size and modification time of a file at the time of a lookup.
+    */
+   private static class Stat {
+      final Object id;
+      final long size;
+      final long mtime;
+      Stat(File file) throws IOException {
+         BasicFileAttributes attr =
+            Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+         if (!attr.isRegularFile())
+            throw new IOException("Not a regular file: " + file);
+         Object key = attr.fileKey();
+         id = key != null ? key : file.getAbsolutePath();
+         size = attr.size();
+         mtime = attr.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+      }
+      boolean matches(Entry ent) {
+         return ent.size == size && ent.mtime == mtime;
+      }
+      boolean matches(Stat st) {
+         return st.id.equals(id) && st.size == size && st.mtime == mtime;
+      }
+   }
+
+   /**
+    * Entries in least-recently-used order.  All access is
+    * synchronized on the class.
+    */
+   private static final LinkedHashMap<Key,Entry> entries =
+      new LinkedHashMap<Key,Entry>(64, 0.75f, true);
+
+   /**
+    * Memory budget in bytes.
+    */
+   private static long budget = Runtime.getRuntime().maxMemory() / 8;
+
+   /**
+    * Estimated memory used by the current entries.
+    */
+   private static long used;
+
+   /**
+    * Counts of lookups satisfied from the cache, and of reads and
+    * parses.
+    */
+   private static long hits, reads, parses;
+
+   private SJFileCache() {}
+
+   /**
+    * Set the memory budget, as from the 'file_cache' config line,
+    * dropping entries as necessary.  0 disables caching.
+    * @param mb Budget in MB
+    */
+   public static synchronized void setBudget(int mb) {
+      budget = mb * 1048576L;
+      trim();
+   }
+
+   /**
+    * Drop all entries.
+    */
+   public static synchronized void clear() {
+      entries.clear();
+      used = 0;
+   }
+
+   /**
+    * Get a string which changes whenever the file is replaced or
+    * modified, made from its identity, size and modification time.
+    * Gives "-" if the file doesn't exist or isn't a regular file.
+    */
+   static String fingerprint(File file) {
+      try {
+         Stat st = new Stat(file);
+         return st.id + ":" + st.size + ":" + st.mtime;
+      } catch (IOException e) {
+         return "-";
+      }
+   }
+
+   /**
+    * Get the contents of a file.
+    * @return Read-only buffer of the whole contents
+    */
+   public static ByteBuffer read(File file) throws IOException {
+      Stat st = new Stat(file);
+      return ByteBuffer.wrap(read(file, st)).asReadOnlyBuffer();
+   }
+
+   /**
+    * Get the value parsed from a file by the given parser, parsing
+    * the file only if the cache does not already have a value for the
+    * current version of the file.  IOExceptions are passed through,
+    * and other exceptions from the parser wrapped in an IOException.
+    * Values which fail to parse are not cached.
+    */
+   @SuppressWarnings("unchecked")
+   public static <T> T get(File file, Parser<T> parser) throws IOException {
+      Stat st = new Stat(file);
+      Key key = new Key(st.id, parser);
+      Entry ent = lookup(key, st);
+      if (ent != null)
+         return (T) ent.value;
+
+      byte[] data = read(file, st);
+      T value;
+      try {
+         value = parser.parse(ByteBuffer.wrap(data).asReadOnlyBuffer());
+      } catch (IOException e) {
+         throw e;
+      } catch (RuntimeException e) {
+         throw e;
+      } catch (Exception e) {
+         throw new IOException("Failed to parse " + file + ": " + e, e);
+      }
+      synchronized (SJFileCache.class) {
+         parses++;
+      }
+      store(key, new Entry(st.size, st.mtime, value,
+                           parser.weight(value, st.size)));
+      return value;
+   }
+
+   /**
+    * Get the raw contents, from the cache or by reading the file.
+    * The contents are only cached if the file was unchanged whilst
+    * being read.
+    */
+   private static byte[] read(File file, Stat st) throws IOException {
+      Key key = new Key(st.id, null);
+      Entry ent = lookup(key, st);
+      if (ent != null)
+         return (byte[]) ent.value;
+
+      if (st.size > Integer.MAX_VALUE - 16)
+         throw new IOException("File too large to cache: " + file);
+      byte[] data = new byte[(int) st.size];
+      InputStream in = new FileInputStream(file);
+      try {
+         int len = 0;
+         while (len < data.length) {
+            int cnt = in.read(data, len, data.length - len);
+            if (cnt < 0)
+               break;
+            len += cnt;
+         }
+         if (len < data.length || in.read() >= 0)
+            // Changed under us; return what the file holds now
+            return read_uncached(file);
+      } finally {
+         in.close();
+      }
+      synchronized (SJFileCache.class) {
+         reads++;
+      }
+      if (st.matches(new Stat(file)))
+         store(key, new Entry(st.size, st.mtime, data, data.length));
+      return data;
+   }
+
+   private static byte[] read_uncached(File file) throws IOException {
+      synchronized (SJFileCache.class) {
+         reads++;
+      }
+      return Files.readAllBytes(file.toPath());
+   }
+
+   /**
+    * Find a current entry, dropping it if the file has changed.
+    */
+   private static synchronized Entry lookup(Key key, Stat st) {
+      Entry ent = entries.get(key);
+      if (ent == null)
+         return null;
+      if (!st.matches(ent)) {
+         entries.remove(key);
+         used -= ent.weight;
+         return null;
+      }
+      hits++;
+      return ent;
+   }
+
+   private static synchronized void store(Key key, Entry ent) {
+      long weight = ent.weight + ENTRY_OVERHEAD;
+      if (weight > budget / MAX_ENTRY_FRACTION)
+         return;
+      Entry old = entries.put(key, new Entry(ent.size, ent.mtime, ent.value, weight));
+      if (old != null)
+         used -= old.weight;
+      used += weight;
+      trim();
+   }
+
+   /**
+    * Drop least recently used entries until within budget.
+    */
+   private static void trim() {
+      Iterator<Entry> it = entries.values().iterator();
+      while (used > budget && it.hasNext()) {
+         used -= it.next().weight;
+         it.remove();
+      }
+   }
+
+   /**
+    * Describe the state of the cache in one line, for sj-stats.
+    */
+   public static synchronized String describe() {
+      return String.format(
+         "file cache: %d entries, %dKB used of %dKB, %d hits, %d reads, %d parses",
+         entries.size(), used / 1024, budget / 1024, hits, reads, parses);
+   }
+}
@@ -0,0 +1,849 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.FileVisitor;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Resident index of directory trees, used by sj-find.  Each root is
+ * scanned once by a background thread on first use, and from then on
+ * is kept up to date from WatchService events, so that searches are
+ * answered from memory without touching the filesystem.
+ *
+ * <p>Each {@link Tree} holds one node per file or directory in
+ * parallel primitive arrays: parent node, name, type, size and
+ * modification time.  Names are interned, so a name repeated across
+ * the tree (e.g. "src" or "index.js") is stored once.  A node's
+ * parent always has a lower number than the node, so one pass in
+ * node order can work out which nodes are under a given directory.
+ * Deleted nodes are marked dead and dropped by an occasional
+ * compaction.
+ *
+ * <p>Events are followed for every directory in the tree, which uses
+ * an inotify watch for each on Linux.  If the per-user limit on
+ * watches (fs.inotify.max_user_watches) is reached, the tree is
+ * marked incomplete and is rescanned when used if more than {@link
+ * #RESCAN_SECS} old.  Changes show up in the index a moment after
+ * they are made, not synchronously.
+ */
+public class SJFileIndex extends SJService {
+   /**
+    * Called for each node found by {@link Tree#scan}, whilst the tree
+    * is locked against updates.  It should only record what it needs
+    * and return, and not block, e.g. by writing to the tool's output.
+    */
+   public interface Visitor {
+      /**
+       * @param depth Depth below the directory scanned, which is
+       * itself at depth 0
+       */
+      void visit(Tree tree, int node, int depth);
+   }
+
+   /**
+    * Age in seconds after which an incomplete tree is rescanned.
+    */
+   public static final int RESCAN_SECS = 30;
+
+   /**
+    * Node types, as in the -type option of find(1).  Dead nodes have
+    * type 0.
+    */
+   public static final byte FILE = 'f', DIR = 'd', LINK = 'l', OTHER = 'o';
+
+   /**
+    * Trees by canonical root path.  Access synchronized on the map.
+    */
+   private final Map<String,Tree> trees = new HashMap<String,Tree>();
+   private volatile boolean stopped;
+
+   protected void start() {}
+
+   protected void stop() {
+      stopped = true;
+      List<Tree> list;
+      synchronized (trees) {
+         list = new ArrayList<Tree>(trees.values());
+         trees.clear();
+      }
+      for (Tree tree : list)
+         tree.close();
+   }
+
+   public long memoryUsage() {
+      long rv = 0;
+      synchronized (trees) {
+         for (Tree tree : trees.values())
+            rv += tree.memoryUsage();
+      }
+      return rv;
+   }
+
+   /**
+    * Get the tree covering the given directory: an existing tree for
+    * it or for a directory above it, or else a new tree rooted at it,
+    * whose scan is started in the background.  A new tree replaces
+    * any existing trees below it.  Use {@link Tree#await} before
+    * scanning.
+    */
+   public Tree tree(File dir) throws IOException {
+      Path path = dir.toPath().toRealPath();
+      if (!Files.isDirectory(path))
+         throw new IOException("Not a directory: " + dir);
+      String key = path.toString();
+      List<Tree> drop = new ArrayList<Tree>();
+      Tree rv = null;
+      synchronized (trees) {
+         if (stopped)
+            throw new IOException("File index has been stopped");
+         for (Path pp = path; pp != null && rv == null; pp = pp.getParent()) {
+            Tree tree = trees.get(pp.toString());
+            if (tree != null && tree.stale()) {
+               trees.remove(tree.root_str);
+               drop.add(tree);
+            } else if (tree != null) {
+               rv = tree;
+            }
+         }
+         if (rv == null) {
+            String pre = key.endsWith("/") ? key : key + "/";
+            Iterator<Tree> it = trees.values().iterator();
+            while (it.hasNext()) {
+               Tree tree = it.next();
+               if (tree.root_str.startsWith(pre)) {
+                  it.remove();
+                  drop.add(tree);
+               }
+            }
+            rv = new Tree(path);
+            trees.put(key, rv);
+         }
+      }
+      for (Tree tree : drop)
+         tree.close();
+      rv.start();
+      return rv;
+   }
+
+   /**
+    * Drop all trees, so that they are rescanned on next use.
+    */
+   public void clear() {
+      List<Tree> list;
+      synchronized (trees) {
+         list = new ArrayList<Tree>(trees.values());
+         trees.clear();
+      }
+      for (Tree tree : list)
+         tree.close();
+   }
+
+   /**
+    * Describe the trees held, one line each.
+    */
+   public List<String> describeTrees() {
+      List<Tree> list;
+      synchronized (trees) {
+         list = new ArrayList<Tree>(trees.values());
+      }
+      List<String> rv = new ArrayList<String>();
+      for (Tree tree : list)
+         rv.add(tree.describe());
+      return rv;
+   }
+
+   /**
+    * Index of one directory tree.  Node 0 is the root, named by its
+    * full path.
+    */
+   public final class Tree {
+      private final Path root;
+      private final String root_str;
+      private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+      private final CountDownLatch built = new CountDownLatch(1);
+      private boolean started;
+      private volatile boolean closed;
+      private volatile boolean complete = true;
+      private volatile long build_time;
+      private long build_done;
+      private WatchService watcher;
+      private String error;
+
+      // Nodes, guarded by 'lock'
+      private int count;
+      private int dead;
+      private int[] parent = new int[1024];
+      private int[] name = new int[1024];
+      private byte[] type = new byte[1024];
+      private long[] size = new long[1024];
+      private long[] mtime = new long[1024];
+
+      // Interned names, guarded by 'lock'
+      private String[] names = new String[1024];
+      private int name_count;
+      private final HashMap<String,Integer> name_ids = new HashMap<String,Integer>();
+
+      // Children: open-addressed table from (parent, name) to node,
+      // guarded by 'lock'.  Entries are only overwritten, never
+      // removed, until the next compaction.
+      private long[] child_key = new long[2048];
+      private int[] child_val = new int[2048];
+      private int child_count;
+
+      // Directory node for each watch key, guarded by 'lock'
+      private final HashMap<WatchKey,Integer> keys = new HashMap<WatchKey,Integer>();
+
+      private long events, compactions;
+
+      private Tree(Path root) {
+         this.root = root;
+         this.root_str = root.toString();
+         Arrays.fill(child_key, -1L);
+      }
+
+      /**
+       * Start the scan and watcher threads, if not already started.
+       */
+      private synchronized void start() throws IOException {
+         if (started)
+            return;
+         watcher = FileSystems.getDefault().newWatchService();
+         started = true;
+         startThread("SJFileIndex scan " + root_str, new Runnable() {
+               public void run() {
+                  long t0 = System.nanoTime();
+                  try {
+                     walk(root, -1);
+                  } catch (Throwable e) {
+                     error = e.toString();
+                     Scramjet.log("File index scan of " + root_str + " failed: " + e);
+                  }
+                  build_time = (System.nanoTime() - t0) / 1000000;
+                  build_done = System.currentTimeMillis();
+                  built.countDown();
+                  Scramjet.log("Indexed " + root_str + ": " + count + " entries in " +
+                               build_time + "ms" + (complete ? "" : " (incomplete)"));
+               }
+            });
+         startThread("SJFileIndex watcher " + root_str, new Runnable() {
+               public void run() {
+                  watch_loop();
+               }
+            });
+      }
+
+      /**
+       * Release the watches and stop the threads.  Scanning what is
+       * already indexed still works, but it is no longer updated.
+       */
+      private void close() {
+         closed = true;
+         try {
+            if (watcher != null)
+               watcher.close();
+         } catch (IOException e) {}
+      }
+
+      /**
+       * Is this tree incomplete and old enough to be rescanned?
+       */
+      private boolean stale() {
+         if (closed)
+            return true;
+         return !complete && built.getCount() == 0 &&
+            System.currentTimeMillis() - build_done > RESCAN_SECS * 1000L;
+      }
+
+      /**
+       * Wait for the initial scan to finish.
+       * @return true if finished, false on timeout
+       * @throws IOException if the scan failed or the index was
+       * dropped before it finished
+       */
+      public boolean await(long timeout_ms) throws IOException, InterruptedException {
+         if (!built.await(timeout_ms, TimeUnit.MILLISECONDS))
+            return false;
+         if (error != null)
+            throw new IOException("Scan of " + root_str + " failed: " + error);
+         return true;
+      }
+
+      /**
+       * Root directory, as a canonical path.
+       */
+      public Path root() {
+         return root;
+      }
+
+      /**
+       * Does the index cover every directory in the tree?  False if
+       * some could not be watched.
+       */
+      public boolean isComplete() {
+         return complete;
+      }
+
+      /**
+       * Call the visitor for every node under and including the given
+       * directory, in node order.  This is the order the scan found
+       * them in, followed by nodes added since, so it is not sorted.
+       * @throws FileNotFoundException if the directory is not in the
+       * tree
+       */
+      public void scan(File dir, Visitor visitor) throws IOException {
+         Path path = dir.toPath().toRealPath();
+         lock.readLock().lock();
+         try {
+            int base = lookup(path);
+            if (base < 0 || type[base] != DIR)
+               throw new FileNotFoundException("Not in index: " + dir);
+            // depth[nn] is the depth below base, or -1 if not under it
+            int[] depth = new int[count];
+            depth[base] = 0;
+            visitor.visit(this, base, 0);
+            for (int nn = base + 1; nn < count; nn++) {
+               int pp = parent[nn];
+               if (type[nn] == 0 || pp < base || depth[pp] < 0) {
+                  depth[nn] = -1;
+               } else {
+                  depth[nn] = depth[pp] + 1;
+                  visitor.visit(this, nn, depth[nn]);
+               }
+            }
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      /**
+       * Find the node for a path, which must be canonical, or -1.
+       * Must be called with the lock held.
+       */
+      private int lookup(Path path) {
+         if (!path.startsWith(root))
+            return -1;
+         int nn = count > 0 && type[0] != 0 ? 0 : -1;
+         for (Path part : root.relativize(path)) {
+            String str = part.toString();
+            if (nn < 0 || str.isEmpty())
+               break;
+            Integer id = name_ids.get(str);
+            nn = id == null ? -1 : child(nn, id);
+            if (nn >= 0 && type[nn] == 0)
+               nn = -1;
+         }
+         return nn;
+      }
+
+      // Accessors for use from a Visitor
+
+      /**
+       * Name of the node; for the root node its full path.
+       */
+      public String name(int node) {
+         return names[name[node]];
+      }
+
+      /**
+       * Interned name number of the node, for caching per-name
+       * results, e.g. glob matches, in an array of size {@link
+       * #nameCount}.
+       */
+      public int nameId(int node) {
+         return name[node];
+      }
+
+      /**
+       * Number of interned names, an upper bound on {@link #nameId}.
+       */
+      public int nameCount() {
+         return name_count;
+      }
+
+      /**
+       * Node type: {@link #FILE}, {@link #DIR}, {@link #LINK} or
+       * {@link #OTHER}.
+       */
+      public byte type(int node) {
+         return type[node];
+      }
+
+      /**
+       * Size in bytes, as from stat().
+       */
+      public long size(int node) {
+         return size[node];
+      }
+
+      /**
+       * Modification time in nanoseconds since the epoch.
+       */
+      public long mtime(int node) {
+         return mtime[node];
+      }
+
+      /**
+       * Append the path of a node relative to an ancestor, with '/'
+       * separators.  Nothing is appended for the ancestor itself.
+       */
+      public void path(int node, int ancestor, StringBuilder out) {
+         int depth = 0;
+         for (int nn = node; nn != ancestor && nn >= 0; nn = parent[nn])
+            depth++;
+         int[] ids = new int[depth];
+         int ii = depth;
+         for (int nn = node; nn != ancestor && nn >= 0; nn = parent[nn])
+            ids[--ii] = name[nn];
+         for (ii = 0; ii < depth; ii++) {
+            if (ii > 0)
+               out.append('/');
+            out.append(names[ids[ii]]);
+         }
+      }
+
+      // ------------------------------------------------------------
+      // Updates
+
+      /**
+       * Add a directory tree to the index under the given parent
+       * node, or as the root if -1, registering watches as we go.
+       * Takes the lock for each entry, not for the whole walk.
+       */
+      private void walk(Path start, final int start_parent) throws IOException {
+         Files.walkFileTree(start, new FileVisitor<Path>() {
+               int[] dirs = new int[64];
+               int depth;
+               public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attr) {
+                  if (closed)
+                     return FileVisitResult.TERMINATE;
+                  int pp = depth == 0 ? start_parent : dirs[depth-1];
+                  lock.writeLock().lock();
+                  try {
+                     // Watch before listing, so no change is missed
+                     int nn = update(pp, pp < 0 ? dir.toString() : dir.getFileName().toString(), attr);
+                     watch_dir(dir, nn);
+                     if (depth == dirs.length)
+                        dirs = Arrays.copyOf(dirs, depth * 2);
+                     dirs[depth++] = nn;
+                  } finally {
+                     lock.writeLock().unlock();
+                  }
+                  return FileVisitResult.CONTINUE;
+               }
+               public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
+                  if (closed)
+                     return FileVisitResult.TERMINATE;
+                  if (depth == 0)
+                     return FileVisitResult.CONTINUE;
+                  lock.writeLock().lock();
+                  try {
+                     update(dirs[depth-1], file.getFileName().toString(), attr);
+                  } finally {
+                     lock.writeLock().unlock();
+                  }
+                  return FileVisitResult.CONTINUE;
+               }
+               public FileVisitResult visitFileFailed(Path file, IOException e) {
+                  // Unreadable or vanished; skip it as find would
+                  return FileVisitResult.CONTINUE;
+               }
+               public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+                  depth--;
+                  return FileVisitResult.CONTINUE;
+               }
+            });
+      }
+
+      /**
+       * Register a watch for a directory node.  Must be called with
+       * the write lock held.
+       */
+      private void watch_dir(Path dir, int node) {
+         if (closed)
+            return;
+         try {
+            WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            keys.put(key, node);
+         } catch (ClosedWatchServiceException e) {
+         } catch (IOException e) {
+            if (complete)
+               Scramjet.log("File index of " + root_str + " incomplete, can't watch " +
+                            dir + ": " + e);
+            complete = false;
+         }
+      }
+
+      /**
+       * Add or update the entry with the given name in a directory
+       * node, or the root if 'pp' is -1.  Must be called with the
+       * write lock held.
+       * @return Node number
+       */
+      private int update(int pp, String nam, BasicFileAttributes attr) {
+         int id = intern(nam);
+         int nn = pp < 0 ? (count > 0 ? 0 : -1) : child(pp, id);
+         byte typ = attr.isDirectory() ? DIR : attr.isRegularFile() ? FILE :
+            attr.isSymbolicLink() ? LINK : OTHER;
+         if (nn >= 0 && type[nn] == typ) {
+            size[nn] = attr.size();
+            mtime[nn] = attr.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+            return nn;
+         }
+         if (nn >= 0 && type[nn] != 0) {
+            // Replaced by something of another type
+            type[nn] = 0;
+            dead++;
+         }
+         if (count == parent.length) {
+            int len = count * 2;
+            parent = Arrays.copyOf(parent, len);
+            name = Arrays.copyOf(name, len);
+            type = Arrays.copyOf(type, len);
+            size = Arrays.copyOf(size, len);
+            mtime = Arrays.copyOf(mtime, len);
+         }
+         nn = count++;
+         parent[nn] = pp;
+         name[nn] = id;
+         type[nn] = typ;
+         size[nn] = attr.size();
+         mtime[nn] = attr.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+         if (pp >= 0)
+            put_child(pp, id, nn);
+         return nn;
+      }
+
+      /**
+       * Mark the entry with the given name in a directory node as
+       * deleted, along with everything below it.  Must be called with
+       * the write lock held.
+       */
+      private void delete(int pp, String nam) {
+         Integer id = name_ids.get(nam);
+         int nn = id == null ? -1 : child(pp, id);
+         if (nn >= 0 && type[nn] != 0) {
+            type[nn] = 0;
+            dead++;
+         }
+      }
+
+      private int intern(String nam) {
+         Integer id = name_ids.get(nam);
+         if (id != null)
+            return id;
+         if (name_count == names.length)
+            names = Arrays.copyOf(names, name_count * 2);
+         names[name_count] = nam;
+         name_ids.put(nam, name_count);
+         return name_count++;
+      }
+
+      private int child(int pp, int id) {
+         long kk = ((long) pp << 32) | id;
+         int mask = child_key.length - 1;
+         for (int ii = hash(kk) & mask; child_key[ii] != -1L; ii = (ii + 1) & mask)
+            if (child_key[ii] == kk)
+               return child_val[ii];
+         return -1;
+      }
+
+      private void put_child(int pp, int id, int nn) {
+         if (2 * (child_count + 1) > child_key.length)
+            rehash(child_key.length * 2);
+         long kk = ((long) pp << 32) | id;
+         int mask = child_key.length - 1;
+         int ii = hash(kk) & mask;
+         while (child_key[ii] != -1L && child_key[ii] != kk)
+            ii = (ii + 1) & mask;
+         if (child_key[ii] == -1L)
+            child_count++;
+         child_key[ii] = kk;
+         child_val[ii] = nn;
+      }
+
+      private void rehash(int len) {
+         long[] old_key = child_key;
+         int[] old_val = child_val;
+         child_key = new long[len];
+         child_val = new int[len];
+         Arrays.fill(child_key, -1L);
+         child_count = 0;
+         for (int ii = 0; ii < old_key.length; ii++)
+            if (old_key[ii] != -1L)
+               put_child((int) (old_key[ii] >>> 32), (int) old_key[ii], old_val[ii]);
+      }
+
+      private int hash(long kk) {
+         kk *= 0x9E3779B97F4A7C15L;
+         return (int) (kk ^ (kk >>> 32));
+      }
+
+      /**
+       * Drop dead nodes and everything below them, and names no
+       * longer used, renumbering what remains.  Must be called with
+       * the write lock held.
+       */
+      private void compact() {
+         int[] remap = new int[count];
+         int[] name_remap = new int[name_count];
+         Arrays.fill(name_remap, -1);
+         String[] new_names = new String[Math.max(1024, names.length)];
+         int new_name_count = 0;
+         int nc = 0;
+         for (int nn = 0; nn < count; nn++) {
+            int pp = parent[nn];
+            if (type[nn] == 0 || (pp >= 0 && remap[pp] < 0)) {
+               remap[nn] = -1;
+               continue;
+            }
+            int id = name[nn];
+            if (name_remap[id] < 0) {
+               name_remap[id] = new_name_count;
+               new_names[new_name_count++] = names[id];
+            }
+            remap[nn] = nc;
+            parent[nc] = pp < 0 ? -1 : remap[pp];
+            name[nc] = name_remap[id];
+            type[nc] = type[nn];
+            size[nc] = size[nn];
+            mtime[nc] = mtime[nn];
+            nc++;
+         }
+         count = nc;
+         dead = 0;
+         names = new_names;
+         name_count = new_name_count;
+         name_ids.clear();
+         for (int ii = 0; ii < name_count; ii++)
+            name_ids.put(names[ii], ii);
+         int len = 2048;
+         while (len < 2 * count)
+            len *= 2;
+         child_key = new long[len];
+         child_val = new int[len];
+         Arrays.fill(child_key, -1L);
+         child_count = 0;
+         for (int nn = 1; nn < count; nn++)
+            put_child(parent[nn], name[nn], nn);
+         Iterator<Map.Entry<WatchKey,Integer>> it = keys.entrySet().iterator();
+         while (it.hasNext()) {
+            Map.Entry<WatchKey,Integer> ent = it.next();
+            int nn = remap[ent.getValue()];
+            if (nn < 0) {
+               ent.getKey().cancel();
+               it.remove();
+            } else {
+               ent.setValue(nn);
+            }
+         }
+         compactions++;
+      }
+
+      private void watch_loop() {
+         try {
+            // Changes made during the scan are applied after it, so
+            // that a deletion can't be undone by the scan
+            built.await();
+         } catch (InterruptedException e) {}
+         try {
+            while (!closed) {
+               WatchKey key;
+               try {
+                  key = watcher.take();
+               } catch (InterruptedException e) {
+                  continue;
+               }
+               List<WatchEvent<?>> evs = key.pollEvents();
+               try {
+                  apply(key, evs);
+               } catch (IOException e) {
+                  Scramjet.log("File index of " + root_str + ": " + e);
+               }
+               if (!key.reset()) {
+                  lock.writeLock().lock();
+                  try {
+                     keys.remove(key);
+                  } finally {
+                     lock.writeLock().unlock();
+                  }
+               }
+               lock.writeLock().lock();
+               try {
+                  if (dead > 1000 && dead > count / 4)
+                     compact();
+               } finally {
+                  lock.writeLock().unlock();
+               }
+            }
+         } catch (ClosedWatchServiceException e) {}
+      }
+
+      /**
+       * Apply the events for one directory.
+       */
+      private void apply(WatchKey key, List<WatchEvent<?>> evs) throws IOException {
+         Path dir = (Path) key.watchable();
+         for (WatchEvent<?> ev : evs) {
+            int pp;
+            lock.writeLock().lock();
+            try {
+               events++;
+               Integer node = keys.get(key);
+               pp = node == null ? -1 : node;
+               if (pp < 0 || type[pp] != DIR)
+                  return;
+               if (ev.kind() == OVERFLOW) {
+                  // Events lost: rescan the directory
+                  for (int nn = pp + 1; nn < count; nn++)
+                     if (parent[nn] == pp && type[nn] != 0) {
+                        type[nn] = 0;
+                        dead++;
+                     }
+               }
+            } finally {
+               lock.writeLock().unlock();
+            }
+            if (ev.kind() == OVERFLOW) {
+               rescan(dir, pp);
+               continue;
+            }
+            Path nam = (Path) ev.context();
+            Path path = dir.resolve(nam);
+            BasicFileAttributes attr;
+            try {
+               attr = Files.readAttributes(path, BasicFileAttributes.class,
+                                           LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException e) {
+               attr = null;
+            }
+            if (attr != null && attr.isDirectory() && ev.kind() == ENTRY_CREATE) {
+               walk_under(path, pp);
+               continue;
+            }
+            lock.writeLock().lock();
+            try {
+               if (attr == null)
+                  delete(pp, nam.toString());
+               else
+                  update(pp, nam.toString(), attr);
+            } finally {
+               lock.writeLock().unlock();
+            }
+         }
+      }
+
+      /**
+       * Re-add the contents of a directory node after lost events.
+       */
+      private void rescan(Path dir, int pp) throws IOException {
+         DirectoryStream<Path> ds;
+         try {
+            ds = Files.newDirectoryStream(dir);
+         } catch (IOException e) {
+            return;
+         }
+         try {
+            for (Path path : ds)
+               walk_under(path, pp);
+         } finally {
+            ds.close();
+         }
+      }
+
+      /**
+       * Add a file, or walk a directory, found inside directory node
+       * 'pp'.
+       */
+      private void walk_under(Path path, int pp) throws IOException {
+         BasicFileAttributes attr;
+         try {
+            attr = Files.readAttributes(path, BasicFileAttributes.class,
+                                        LinkOption.NOFOLLOW_LINKS);
+         } catch (IOException e) {
+            return;
+         }
+         if (!attr.isDirectory()) {
+            lock.writeLock().lock();
+            try {
+               update(pp, path.getFileName().toString(), attr);
+            } finally {
+               lock.writeLock().unlock();
+            }
+            return;
+         }
+         walk(path, pp);
+      }
+
+      private long memoryUsage() {
+         lock.readLock().lock();
+         try {
+            return memory_used();
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+
+      /**
+       * Estimate of memory used: the arrays, plus overheads for each
+       * name string and watch key.
+       */
+      private long memory_used() {
+         return 25L * parent.length + 12L * child_key.length +
+            8L * names.length + 100L * name_count + 100L * keys.size();
+      }
+
+      private String describe() {
+         lock.readLock().lock();
+         try {
+            return String.format(
+               "%s: %d entries, %d names, %d dirs watched, %s, scan %dms, " +
+               "%d events, %d compactions, %dKB",
+               root_str, count - dead, name_count, keys.size(),
+               built.getCount() > 0 ? "scanning" : complete ? "complete" : "incomplete",
+               build_time, events, compactions, memory_used() / 1024);
+         } finally {
+            lock.readLock().unlock();
+         }
+      }
+   }
+}
@@ -0,0 +1,235 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * java.util.concurrent.Flow adapters for a tool's stdin and
+ * stdout/stderr, obtained from {@link Tool#stdinPublisher}, {@link
+ * Tool#stdoutSubscriber} and {@link Tool#stderrSubscriber}.  For
+ * example, a pipeline through a SubmissionPublisher-based transform:
+ *
+ * <pre>
+ * Flow.Publisher&lt;ByteBuffer&gt; in = stdinPublisher();
+ * SJFlow.Sink out = stdoutSubscriber();
+ * in.subscribe(transform);
+ * transform.subscribe(out);
+ * out.done().get();
+ * </pre>
+ *
+ * <p>No thread waits on stdin.  Data is delivered on a shared pool,
+ * with this tool's context bound, as it arrives from the front-end
+ * and only as far as the subscriber has requested it.  Data not yet
+ * requested stays unconsumed, so once the stdin window fills, the
+ * front-end stops reading and the process writing to the tool's
+ * stdin is held up (see {@link SJInputStream}).  In the other
+ * direction, the Sink requests more only once each buffer has been
+ * written to the front-end, which blocks when the front-end falls
+ * behind, e.g. writing to a slow terminal or a full pipe.
+ *
+ * <p>The tool's run() must not return until the pipeline has
+ * finished, since the session ends then; wait on {@link Sink#done}.
+ */
+public class SJFlow {
+   /**
+    * Number of buffers requested ahead by a Sink.
+    */
+   private static final int SINK_AHEAD = 4;
+
+   private SJFlow() {}
+
+   /**
+    * Publisher of stdin data as read-only ByteBuffers, in the sizes
+    * received from the front-end.  Only one subscriber is allowed,
+    * and the tool must not also read stdin directly.
+    */
+   static class StdinPublisher implements Flow.Publisher<ByteBuffer> {
+      private final Tool tool;
+      private final SJInputStream stdin;
+      private final SJSession session;
+      private final Executor executor = ForkJoinPool.commonPool();
+      private final AtomicLong demand = new AtomicLong();
+      private final AtomicInteger wip = new AtomicInteger();
+      private Flow.Subscriber<? super ByteBuffer> sub;
+      private volatile boolean done;
+      private final Runnable drain_task;
+
+      StdinPublisher(Tool tool, SJInputStream stdin, SJSession session) {
+         this.tool = tool;
+         this.stdin = stdin;
+         this.session = session;
+         drain_task = tool.wrap(new Runnable() {
+               public void run() {
+                  drain();
+               }
+            });
+      }
+
+      public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+         synchronized (this) {
+            if (sub == null) {
+               sub = subscriber;
+               subscriber = null;
+            }
+         }
+         if (subscriber != null) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                  public void request(long n) {}
+                  public void cancel() {}
+               });
+            subscriber.onError(new IllegalStateException("stdin already subscribed"));
+            return;
+         }
+         sub.onSubscribe(new Flow.Subscription() {
+               public void request(long n) {
+                  if (n <= 0) {
+                     fail(new IllegalArgumentException("request() count must be positive"));
+                     return;
+                  }
+                  long dd;
+                  do {
+                     dd = demand.get();
+                  } while (!demand.compareAndSet(dd, dd + n < 0 ? Long.MAX_VALUE : dd + n));
+                  schedule();
+               }
+               public void cancel() {
+                  done = true;
+               }
+            });
+         stdin.set_listener(new Runnable() {
+               public void run() {
+                  schedule();
+               }
+            });
+      }
+
+      /**
+       * Arrange for drain() to run, unless it is already running, in
+       * which case it loops round again.
+       */
+      private void schedule() {
+         if (wip.getAndIncrement() == 0)
+            executor.execute(drain_task);
+      }
+
+      private void drain() {
+         int missed = 1;
+         do {
+            try {
+               while (!done && demand.get() > 0) {
+                  byte[] data = stdin.poll_chunk();
+                  if (data == null)
+                     break;
+                  demand.decrementAndGet();
+                  sub.onNext(ByteBuffer.wrap(data).asReadOnlyBuffer());
+               }
+               if (!done && session.cancelled) {
+                  fail(new CancellationException("Tool cancelled"));
+               } else if (!done && stdin.at_eof()) {
+                  done = true;
+                  sub.onComplete();
+               }
+            } catch (Throwable e) {
+               // Subscriber broke the rules by throwing
+               done = true;
+               e.printStackTrace(tool.stderr);
+            }
+            missed = wip.addAndGet(-missed);
+         } while (missed != 0);
+      }
+
+      private void fail(Throwable e) {
+         if (done)
+            return;
+         done = true;
+         sub.onError(e);
+      }
+   }
+
+   /**
+    * Subscriber which writes ByteBuffers to the tool's stdout or
+    * stderr, and completes {@link #done} when the publisher finishes.
+    * It accepts one subscription.
+    */
+   public static class Sink implements Flow.Subscriber<ByteBuffer> {
+      private final SJSession session;
+      private final String fmt;
+      private final CompletableFuture<Void> done = new CompletableFuture<Void>();
+      private Flow.Subscription sub;
+      private byte[] tmp = new byte[0];
+
+      Sink(SJSession session, String fmt) {
+         this.session = session;
+         this.fmt = fmt;
+      }
+
+      /**
+       * Completes when the publisher completes, or completes
+       * exceptionally on an error or if the front-end goes away.
+       */
+      public CompletableFuture<Void> done() {
+         return done;
+      }
+
+      public void onSubscribe(Flow.Subscription subscription) {
+         synchronized (this) {
+            if (sub != null) {
+               subscription.cancel();
+               return;
+            }
+            sub = subscription;
+         }
+         subscription.request(SINK_AHEAD);
+      }
+
+      public void onNext(ByteBuffer buf) {
+         int len = buf.remaining();
+         byte[] data;
+         if (buf.hasArray() && buf.arrayOffset() + buf.position() == 0) {
+            data = buf.array();
+         } else {
+            if (tmp.length < len)
+               tmp = new byte[len];
+            buf.duplicate().get(tmp, 0, len);
+            data = tmp;
+         }
+         try {
+            if (len > 0)
+               session.write(fmt, data, len);
+         } catch (SJTerminateError e) {
+            sub.cancel();
+            done.completeExceptionally(e);
+            return;
+         }
+         sub.request(1);
+      }
+
+      public void onError(Throwable e) {
+         done.completeExceptionally(e);
+      }
+
+      public void onComplete() {
+         done.complete(null);
+      }
+   }
+}
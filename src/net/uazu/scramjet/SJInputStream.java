@@ -12,44 +12,142 @@
 // See the License for the specific language governing permissions and
 // limitations under the License.
 
+
 package net.uazu.scramjet;
 
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.util.LinkedList;
 
 /**
- * Input stream which is attached to a SJProxy and which allows access
- * to the STDIN input from the C front-end.  The poll code adds data
- * and flags EOF using the poll_* calls.
+ * Input stream which is attached to a SJSession and which allows
+ * access to the STDIN input from the C front-end.  The proxy thread
+ * adds data and flags EOF using the poll_* calls as messages arrive,
+ * and readers block until data is available.
+ *
+ * <p>A blocked read is woken up when the session is cancelled, and
+ * throws SJTerminateError.  If the reading thread is interrupted for
+ * any other reason, InterruptedIOException is thrown.
+ *
+ * <p>The front-end only sends up to {@link #WINDOW} bytes more than
+ * have been read here, and is granted more with "stdin-credit"
+ * messages as the data is consumed.  So a tool which reads slowly
+ * holds up the process writing to its stdin, as with a normal pipe,
+ * rather than having all its input buffered in the server.
  */
 public class SJInputStream extends InputStream {
+   /**
+    * Initial credit of the front-end: must match STDIN_WINDOW in
+    * scramjet.c.
+    */
+   public static final int WINDOW = 262144;
+
+   /**
+    * Consumed data is credited back in lumps of at least this size.
+    */
+   private static final int CREDIT_STEP = WINDOW / 4;
+
    public final SJProxy proxy;
+   public final SJSession session;
    private LinkedList<byte[]> list = new LinkedList<byte[]>();
    private boolean eof;
    private int off;   // Read offset
+   private int consumed;   // Bytes read but not yet credited
+   private Runnable listener;
    
-   public SJInputStream(SJProxy proxy) {
-      this.proxy = proxy;
+   public SJInputStream(SJSession session) {
+      this.session = session;
+      this.proxy = session.proxy;
    }
 
    /**
-    * Called by poll_incoming(): add more data.
+    * Called by the proxy thread: add more data.
     */
    public void poll_add_data(byte[] data) {
-      list.add(data);
+      session.bytes_in += data.length;
+      Runnable run;
+      synchronized (this) {
+         list.add(data);
+         notifyAll();
+         run = listener;
+      }
+      if (run != null)
+         run.run();
    }
 
    /**
-    * Called by poll_incoming(): set the EOF flag.
+    * Called by the proxy thread: set the EOF flag.
     */
    public void poll_set_eof() {
-      eof = true;
+      Runnable run;
+      synchronized (this) {
+         eof = true;
+         notifyAll();
+         run = listener;
+      }
+      if (run != null)
+         run.run();
+   }
+
+   /**
+    * Set a callback to run on the proxy thread whenever data or EOF
+    * arrives, for non-blocking readers using {@link #poll_chunk}.  It
+    * must return quickly.
+    */
+   void set_listener(Runnable run) {
+      synchronized (this) {
+         listener = run;
+      }
+      run.run();
+   }
+
+   /**
+    * Take the next block of buffered data, without waiting.
+    * @return Data, or null if none is buffered
+    */
+   byte[] poll_chunk() {
+      byte[] rv;
+      synchronized (this) {
+         if (list.isEmpty())
+            return null;
+         rv = list.remove();
+         if (off > 0) {
+            byte[] tmp = new byte[rv.length - off];
+            System.arraycopy(rv, off, tmp, 0, tmp.length);
+            rv = tmp;
+            off = 0;
+         }
+      }
+      consumed(rv.length);
+      return rv;
+   }
+
+   /**
+    * Test whether all data has been taken and EOF has been reached.
+    */
+   synchronized boolean at_eof() {
+      return eof && list.isEmpty();
+   }
+
+   /**
+    * Account for data consumed, granting more credit to the front-end
+    * when enough has built up.  Must not be called with the lock
+    * held, as the message may block.
+    */
+   private void consumed(int cnt) {
+      int grant = 0;
+      synchronized (this) {
+         consumed += cnt;
+         if (consumed >= CREDIT_STEP) {
+            grant = consumed;
+            consumed = 0;
+         }
+      }
+      if (grant > 0)
+         session.grantInput(grant);
    }
 
-   public int available() {
-      if (!eof)
-         proxy.poll_incoming(false);  // Non-blocking
-      
+   public synchronized int available() {
       int rv = 0;
       for (byte[] data : list)
          rv += data.length;
@@ -60,50 +158,64 @@ public class SJInputStream extends InputStream {
       // Nothing
    }
 
-   public int read() {
+   /**
+    * Block until we have data or reach EOF.
+    * @return false on EOF
+    */
+   private boolean wait_data() throws InterruptedIOException {
       while (list.isEmpty() && !eof) {
-         // Block until we have data or reach EOF
-         proxy.poll_incoming(true);
+         session.exitCheck();
+         try {
+            wait();
+         } catch (InterruptedException e) {
+            session.exitCheck();
+            throw new InterruptedIOException();
+         }
       }
+      return !list.isEmpty();
+   }
 
-      if (list.isEmpty())
-         return -1;
+   public int read() throws InterruptedIOException {
+      int rv;
+      synchronized (this) {
+         if (!wait_data())
+            return -1;
 
-      byte[] data = list.getFirst();
-      int rv = 255 & data[off++];
-      if (off == data.length) {
-         list.remove();
-         off = 0;
+         byte[] data = list.getFirst();
+         rv = 255 & data[off++];
+         if (off == data.length) {
+            list.remove();
+            off = 0;
+         }
       }
+      consumed(1);
       return rv;
    }
 
-   public int read(byte[] b) {
+   public int read(byte[] b) throws InterruptedIOException {
       return read(b, 0, b.length);
    }
    
-   public int read(byte[] out, int out_off, int out_len) {
-      while (list.isEmpty() && !eof) {
-         // Block until we have data or reach EOF
-         proxy.poll_incoming(true);
-      }
-
-      if (list.isEmpty())
-         return -1;
-
+   public int read(byte[] out, int out_off, int out_len) throws InterruptedIOException {
       int o0 = out_off;
       int o1 = out_off + out_len;
-      while (o0 < o1 && !list.isEmpty()) {
-         byte[] data = list.getFirst();
-         while (off < data.length && o0 < o1)
-            out[o0++] = data[off++];
-         if (off == data.length) {
-            list.remove();
-            off = 0;
+      synchronized (this) {
+         if (!wait_data())
+            return -1;
+
+         while (o0 < o1 && !list.isEmpty()) {
+            byte[] data = list.getFirst();
+            int cnt = Math.min(data.length - off, o1 - o0);
+            System.arraycopy(data, off, out, o0, cnt);
+            off += cnt;
+            o0 += cnt;
+            if (off == data.length) {
+               list.remove();
+               off = 0;
+            }
          }
       }
-         
+      consumed(o0 - out_off);
       return o0 - out_off;
    }
 }
-      
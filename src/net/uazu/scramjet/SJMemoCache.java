@@ -0,0 +1,489 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Server-wide store of the results of tools marked with {@link
+ * SJMemoize}.  A result is the tool's stdout and stderr output, in
+ * the order written, plus its exit status, and is looked up by a
+ * hash of everything the annotation says the result depends on.  On
+ * a hit the output is replayed straight from memory, so the whole
+ * invocation costs little more than a few stat() calls.
+ *
+ * <p>Results are kept in memory up to a budget, dropping the least
+ * recently used.  Results of tools marked with spill=true are also
+ * written to ~/.scramjet/cache/, which has its own budget, and are
+ * found there after a restart or after being dropped from memory.
+ * The budgets can be set with the 'memo_cache' config line.
+ */
+public class SJMemoCache {
+   private static final int MAGIC = 0x534A4D31;    // "SJM1"
+   private static final int HEAD = MsgWriter.TAIL_HEADROOM;
+   private static final int ENTRY_OVERHEAD = 200;
+
+   /**
+    * A stored result.
+    */
+   private static class Result {
+      final int status;
+      final byte[] streams;   // '1' or '2' for each chunk
+      final byte[][] chunks;  // Output, each with HEAD bytes unused at the start
+      final String[] deps;    // Files found whilst running
+      final String[] prints;  // Their fingerprints
+      final long weight;
+      Result(int status, byte[] streams, byte[][] chunks, String[] deps, String[] prints) {
+         this.status = status;
+         this.streams = streams;
+         this.chunks = chunks;
+         this.deps = deps;
+         this.prints = prints;
+         long ww = ENTRY_OVERHEAD;
+         for (byte[] chunk : chunks)
+            ww += chunk.length + 16;
+         for (String dep : deps)
+            ww += 4 * dep.length() + 100;
+         weight = ww;
+      }
+
+      /**
+       * Check that the files found whilst running are unchanged.
+       */
+      boolean valid() {
+         for (int a = 0; a<deps.length; a++)
+            if (!SJFileCache.fingerprint(new File(deps[a])).equals(prints[a]))
+               return false;
+         return true;
+      }
+   }
+
+   /**
+    * Collects the output of a memoized tool whilst it runs.
+    */
+   static class Recorder {
+      final String key;
+      final Class<?> clas;
+      final SJMemoize memo;
+      private final List<byte[]> chunks = new ArrayList<byte[]>();
+      private final List<Byte> streams = new ArrayList<Byte>();
+      private final List<String> deps = new ArrayList<String>();
+      private final List<String> prints = new ArrayList<String>();
+      private byte stream;
+      private byte[] buf = new byte[HEAD + 256];
+      private int pos = HEAD;
+      private long total;
+      private boolean overflow;
+
+      Recorder(String key, Class<?> clas, SJMemoize memo) {
+         this.key = key;
+         this.clas = clas;
+         this.memo = memo;
+      }
+
+      /**
+       * Record output, coalescing runs of output to the same stream.
+       * @param prefix "1" for STDOUT, "2" for STDERR
+       */
+      synchronized void output(char prefix, byte[] data, int off, int len) {
+         if (overflow)
+            return;
+         total += len;
+         if (total > mem_budget / 4) {
+            overflow = true;
+            return;
+         }
+         if (prefix != stream)
+            end_chunk();
+         stream = (byte) prefix;
+         if (pos + len > buf.length)
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + len));
+         System.arraycopy(data, off, buf, pos, len);
+         pos += len;
+      }
+
+      private void end_chunk() {
+         if (pos == HEAD)
+            return;
+         chunks.add(Arrays.copyOf(buf, pos));
+         streams.add(stream);
+         pos = HEAD;
+      }
+
+      synchronized void depend(File file) {
+         String path = file.getAbsolutePath();
+         if (!deps.contains(path)) {
+            deps.add(path);
+            prints.add(SJFileCache.fingerprint(file));
+         }
+      }
+
+      synchronized Result result(int status) {
+         end_chunk();
+         byte[] ss = new byte[streams.size()];
+         for (int a = 0; a<ss.length; a++)
+            ss[a] = streams.get(a);
+         return new Result(status, ss, chunks.toArray(new byte[0][]),
+                           deps.toArray(new String[0]), prints.toArray(new String[0]));
+      }
+   }
+
+   /**
+    * Results in memory, in least-recently-used order.  All access is
+    * synchronized on the class.
+    */
+   private static final LinkedHashMap<String,Result> results =
+      new LinkedHashMap<String,Result>(64, 0.75f, true);
+
+   /**
+    * Memory and disk budgets in bytes.
+    */
+   private static volatile long mem_budget = 32L << 20;
+   private static volatile long disk_budget = 256L << 20;
+
+   /**
+    * Estimated memory used, and disk space used or -1 if not yet
+    * counted.
+    */
+   private static long mem_used, disk_used = -1;
+
+   /**
+    * Lock for access to the spill directory.
+    */
+   private static final Object disk_lock = new Object();
+
+   private static long hits, misses, stored;
+
+   private SJMemoCache() {}
+
+   /**
+    * Set the budgets, as from the 'memo_cache' config line.  A
+    * memory budget of 0 disables memoization.
+    * @param mem_mb Memory budget in MB
+    * @param disk_mb Budget for ~/.scramjet/cache/ in MB
+    */
+   public static synchronized void setBudget(int mem_mb, int disk_mb) {
+      mem_budget = mem_mb * 1048576L;
+      disk_budget = disk_mb * 1048576L;
+      trim();
+   }
+
+   /**
+    * Calculate the key for an invocation of a memoized tool, or null
+    * if memoization is disabled.
+    */
+   private static String key(Class<?> clas, SJMemoize memo, SJContext sjc) {
+      if (mem_budget == 0)
+         return null;
+      MessageDigest md;
+      try {
+         md = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+         return null;
+      }
+      StringBuilder sb = new StringBuilder();
+      sb.append(clas.getName()).append('\0');
+      sb.append(class_print(clas)).append('\0');
+      sb.append(sjc.args.length).append('\0');
+      for (String arg : sjc.args)
+         sb.append(arg).append('\0');
+      if (memo.cwd())
+         sb.append(sjc.cwd.getPath());
+      sb.append('\0');
+      for (String name : memo.env()) {
+         String val = sjc.env.get(name);
+         sb.append(name).append(val == null ? "\0-\0" : "\0=" + val + "\0");
+      }
+      for (String name : memo.files())
+         sb.append(SJFileCache.fingerprint(resolve(sjc, name))).append('\0');
+      if (memo.fileArgs())
+         for (String arg : sjc.args) {
+            if (arg.length() == 0)
+               continue;
+            File file = resolve(sjc, arg);
+            if (file.isFile())
+               sb.append(SJFileCache.fingerprint(file)).append('\0');
+         }
+      byte[] hash = md.digest(sb.toString().getBytes(Scramjet.charset));
+      StringBuilder hex = new StringBuilder();
+      for (byte bb : hash)
+         hex.append(Character.forDigit((bb >> 4) & 15, 16))
+            .append(Character.forDigit(bb & 15, 16));
+      return hex.toString();
+   }
+
+   private static File resolve(SJContext sjc, String path) {
+      File file = new File(path);
+      return file.isAbsolute() ? file : new File(sjc.cwd, path);
+   }
+
+   /**
+    * Fingerprint of the file the class was loaded from, i.e. the
+    * .class file or the JAR, so that results are not replayed after
+    * the tool is rebuilt.
+    */
+   private static String class_print(Class<?> clas) {
+      URL url = clas.getResource("/" + clas.getName().replace('.', '/') + ".class");
+      if (url == null)
+         return "?";
+      String path = url.getPath();
+      if (url.getProtocol().equals("jar")) {
+         int ii = path.indexOf("!/");
+         if (ii < 0 || !path.startsWith("file:"))
+            return "?";
+         path = path.substring(5, ii);
+      } else if (!url.getProtocol().equals("file")) {
+         return "?";
+      }
+      return SJFileCache.fingerprint(new File(path));
+   }
+
+   /**
+    * Replay a stored result for the invocation if there is one, or
+    * else start recording the session's output.  Called from the
+    * session's main thread before constructing the tool.
+    * @return Exit status of the stored result, or -1 if none
+    */
+   static int replay(Class<?> clas, SJMemoize memo, SJContext sjc) {
+      String key = key(clas, memo, sjc);
+      if (key == null)
+         return -1;
+      Result res = get(key, memo.spill());
+      if (res == null) {
+         synchronized (SJMemoCache.class) {
+            misses++;
+         }
+         sjc.session.recorder = new Recorder(key, clas, memo);
+         return -1;
+      }
+      synchronized (SJMemoCache.class) {
+         hits++;
+      }
+      for (int a = 0; a<res.chunks.length; a++) {
+         byte[] chunk = res.chunks[a];
+         sjc.session.writeTail(res.streams[a] == '1' ? "1" : "2",
+                               chunk, HEAD, chunk.length - HEAD);
+      }
+      return res.status;
+   }
+
+   /**
+    * Store the result of a finished session that was recorded.
+    * Nothing is stored if the session was cancelled, if the output
+    * was too large, or if any input changed whilst it ran.
+    */
+   static void store(SJContext sjc) {
+      SJSession sess = sjc.session;
+      Recorder rec = sess.recorder;
+      sess.recorder = null;
+      int status = sess.getExitStatus();
+      if (rec == null || sess.cancelled || rec.overflow ||
+          (status != 0 && !rec.memo.failures()))
+         return;
+      if (!rec.key.equals(key(rec.clas, rec.memo, sjc)))
+         return;
+      Result res = rec.result(status);
+      if (!res.valid())
+         return;
+      put(rec.key, res);
+      if (rec.memo.spill())
+         spill(rec.key, res);
+   }
+
+   private static Result get(String key, boolean spill) {
+      Result res;
+      synchronized (SJMemoCache.class) {
+         res = results.get(key);
+      }
+      if (res == null && spill) {
+         res = unspill(key);
+         if (res != null)
+            put(key, res);
+      }
+      if (res != null && !res.valid())
+         return null;
+      return res;
+   }
+
+   private static synchronized void put(String key, Result res) {
+      if (res.weight > mem_budget / 4)
+         return;
+      Result old = results.put(key, res);
+      if (old != null)
+         mem_used -= old.weight;
+      else
+         stored++;
+      mem_used += res.weight;
+      trim();
+   }
+
+   private static void trim() {
+      Iterator<Result> it = results.values().iterator();
+      while (mem_used > mem_budget && it.hasNext()) {
+         mem_used -= it.next().weight;
+         it.remove();
+      }
+   }
+
+   private static File cache_dir() {
+      return new File(Scramjet.dotdir, "cache");
+   }
+
+   /**
+    * Write a result to the spill directory.  Failures are logged and
+    * otherwise ignored.
+    */
+   private static void spill(String key, Result res) {
+      synchronized (disk_lock) {
+         File dir = cache_dir();
+         File file = new File(dir, key);
+         File tmp = new File(dir, key + ".tmp");
+         try {
+            if (!dir.isDirectory() && !dir.mkdirs())
+               throw new IOException("Can't create " + dir);
+            long old = file.length();
+            DataOutputStream out = new DataOutputStream(
+               new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+               out.writeInt(MAGIC);
+               out.writeInt(res.status);
+               out.writeInt(res.deps.length);
+               for (int a = 0; a<res.deps.length; a++) {
+                  out.writeUTF(res.deps[a]);
+                  out.writeUTF(res.prints[a]);
+               }
+               out.writeInt(res.chunks.length);
+               for (int a = 0; a<res.chunks.length; a++) {
+                  out.writeByte(res.streams[a]);
+                  out.writeInt(res.chunks[a].length - HEAD);
+                  out.write(res.chunks[a], HEAD, res.chunks[a].length - HEAD);
+               }
+            } finally {
+               out.close();
+            }
+            if (!tmp.renameTo(file))
+               throw new IOException("Can't rename " + tmp);
+            if (disk_used >= 0)
+               disk_used += file.length() - old;
+            trim_disk(dir);
+         } catch (IOException e) {
+            tmp.delete();
+            Scramjet.log("Failed to write memo cache entry: " + e.getMessage());
+         }
+      }
+   }
+
+   /**
+    * Read a result from the spill directory, or return null if it
+    * is not there or can't be read.
+    */
+   private static Result unspill(String key) {
+      synchronized (disk_lock) {
+         File file = new File(cache_dir(), key);
+         if (!file.isFile())
+            return null;
+         try {
+            DataInputStream in = new DataInputStream(
+               new BufferedInputStream(new FileInputStream(file)));
+            try {
+               if (in.readInt() != MAGIC)
+                  throw new IOException("Bad header");
+               int status = in.readInt();
+               String[] deps = new String[in.readInt()];
+               String[] prints = new String[deps.length];
+               for (int a = 0; a<deps.length; a++) {
+                  deps[a] = in.readUTF();
+                  prints[a] = in.readUTF();
+               }
+               int count = in.readInt();
+               byte[] streams = new byte[count];
+               byte[][] chunks = new byte[count][];
+               for (int a = 0; a<count; a++) {
+                  streams[a] = in.readByte();
+                  chunks[a] = new byte[HEAD + in.readInt()];
+                  in.readFully(chunks[a], HEAD, chunks[a].length - HEAD);
+               }
+               file.setLastModified(System.currentTimeMillis());
+               return new Result(status, streams, chunks, deps, prints);
+            } finally {
+               in.close();
+            }
+         } catch (IOException e) {
+            file.delete();
+            disk_used = -1;
+            return null;
+         }
+      }
+   }
+
+   /**
+    * Delete the least recently used files until within the disk
+    * budget.  Called with disk_lock held.
+    */
+   private static void trim_disk(File dir) {
+      File[] list = dir.listFiles();
+      if (list == null)
+         return;
+      if (disk_used < 0) {
+         disk_used = 0;
+         for (File file : list)
+            disk_used += file.length();
+      }
+      if (disk_used <= disk_budget)
+         return;
+      final long[] mtime = new long[list.length];
+      Integer[] order = new Integer[list.length];
+      for (int a = 0; a<list.length; a++) {
+         mtime[a] = list[a].lastModified();
+         order[a] = a;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+               return Long.compare(mtime[a], mtime[b]);
+            }
+         });
+      for (int a = 0; a<order.length && disk_used > disk_budget; a++) {
+         File file = list[order[a]];
+         long len = file.length();
+         if (file.delete())
+            disk_used -= len;
+      }
+   }
+
+   /**
+    * Describe the state of the cache in one line, for sj-stats.
+    */
+   public static synchronized String describe() {
+      return String.format(
+         "memo cache: %d results, %dKB used of %dKB, %d hits, %d misses, %d stored",
+         results.size(), mem_used / 1024, mem_budget / 1024, hits, misses, stored);
+   }
+}
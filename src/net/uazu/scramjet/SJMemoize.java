@@ -0,0 +1,77 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a tool whose output and exit status depend only on its
+ * arguments, the listed environment variables, the current
+ * directory, and the contents of its input files, so that its
+ * results may be remembered and replayed by {@link SJMemoCache}.  On
+ * a repeat invocation with the same inputs, the stored stdout and
+ * stderr output and exit status are sent straight back without
+ * constructing the tool.
+ *
+ * <p>A memoized tool must not read stdin or interact with the
+ * terminal, and must not have side effects that matter, since they
+ * are skipped on a hit.  Input files are given by {@link #files} and
+ * {@link #fileArgs}, and files discovered whilst running, e.g.
+ * included files, by calling {@link Tool#memoDepends}.  A result is
+ * only replayed if none of these files have changed since, nor the
+ * tool's class file.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface SJMemoize {
+   /**
+    * Environment variables which affect the result.
+    */
+   String[] env() default {};
+
+   /**
+    * Does the result depend on the current directory?  This is
+    * needed if relative paths appear in the output, or are read
+    * without being covered by {@link #fileArgs}.
+    */
+   boolean cwd() default true;
+
+   /**
+    * Fixed input files, relative to the current directory.
+    */
+   String[] files() default {};
+
+   /**
+    * Treat every argument naming an existing file as an input file.
+    */
+   boolean fileArgs() default true;
+
+   /**
+    * Also remember results with a non-zero exit status.
+    */
+   boolean failures() default false;
+
+   /**
+    * Also store results under ~/.scramjet/cache/, so that they
+    * survive a server restart, and are still available after being
+    * dropped from memory.
+    */
+   boolean spill() default false;
+}
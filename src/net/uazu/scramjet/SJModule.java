@@ -28,7 +28,9 @@ public interface SJModule {
    /**
     * Sets up the module with the proxy and writer it is connected
     * with.  The module may send messages to the C front-end to
-    * initialise itself.
+    * initialise itself.  If the session is detached (see {@link
+    * SJSession#detach}), this is called with nulls, and then again
+    * with the new proxy and writer when it is attached.
     */
    public void setup(SJProxy sjp, MsgWriter writer);
 
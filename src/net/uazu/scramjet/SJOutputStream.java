@@ -18,15 +18,18 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 /**
- * Output stream which is attached to a MsgWriter and which allows
+ * Output stream which is attached to a SJSession and which allows
  * sending data to the STDOUT or STDERR output of the C front-end.
+ * Once the session is closed, further output is discarded.
  */
 public class SJOutputStream extends ByteArrayOutputStream {
    public final SJProxy proxy;
+   public final SJSession session;
    public final String fmt;
 
-   public SJOutputStream(SJProxy proxy, String fmt) {
-      this.proxy = proxy;
+   public SJOutputStream(SJSession session, String fmt) {
+      this.session = session;
+      this.proxy = session.proxy;
       this.fmt = fmt;
    }
 
@@ -37,14 +40,12 @@ public class SJOutputStream extends ByteArrayOutputStream {
    public void flush() {
       try {
          super.flush();
-         if (count != 0) {
-            proxy.writer.write(fmt, buf, count);
-            proxy.writer.flush();
-         }
+         if (count != 0)
+            session.write(fmt, buf, count);
          reset();
       } catch (IOException e) {
          // I/O problems probably mean that front end has gone away.
-         proxy.curr_tool.exit(199);
+         session.do_exit(199);
       }
    }
 }
@@ -0,0 +1,276 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Admission control for sessions.  Each command belongs to a pool,
+ * either one named in a 'pool' config line which lists it, or else
+ * the "default" pool.  A pool may limit the number of its sessions
+ * that run at the same time.  Sessions beyond the limit wait in
+ * first-come first-served order until a running session finishes.
+ *
+ * <p>Without limits, a burst of CPU-heavy commands all run at once
+ * and fight over the CPUs and the heap, so all of them finish late.
+ * With a limit around the number of cores, they finish in order,
+ * and the total throughput stays close to optimal.
+ *
+ * <p>Builtin tools (net.uazu.scramjet.tool.*) and interactive
+ * sessions are always admitted immediately, so that the server can
+ * still be examined and used when a pool is backed up.  Only batch
+ * sessions are queued.  All pools, including "default", are
+ * unlimited unless configured otherwise, since a limit can deadlock a
+ * pipeline of commands from the same pool: a queued command may be
+ * the one that has to read the output of a running one.  So by
+ * default nothing bounds the number of batch sessions running at
+ * once; to do so, set a limit on "default" greater than the longest
+ * pipeline of batch commands in use.
+ */
+public class SJPool {
+   /**
+    * Pool name.
+    */
+   public final String name;
+
+   /**
+    * Maximum number of sessions allowed to run at the same time, or
+    * 0 for no limit.
+    */
+   private int max_running;
+
+   /**
+    * Sessions currently running.
+    */
+   private final Set<SJSession> running = new HashSet<SJSession>();
+
+   /**
+    * Queue of sessions waiting to run, oldest first.
+    */
+   private final LinkedList<SJSession> queue = new LinkedList<SJSession>();
+
+   /**
+    * Total number of sessions admitted.
+    */
+   private long admitted;
+
+   /**
+    * Number of admitted sessions which had to wait.
+    */
+   private long waited;
+
+   /**
+    * Total and maximum time spent waiting, in ms.
+    */
+   private long wait_total, wait_max;
+
+   /**
+    * Maximum queue depth seen.
+    */
+   private int queue_max;
+
+   /**
+    * All pools, by name.
+    */
+   private static final Map<String,SJPool> pools = new HashMap<String,SJPool>();
+
+   /**
+    * Pool name for each command listed in a 'pool' config line.
+    */
+   private static final Map<String,String> members = new HashMap<String,String>();
+
+   /**
+    * Name of the pool used for commands not listed elsewhere.
+    */
+   public static final String DEFAULT = "default";
+
+   private SJPool(String name) {
+      this.name = name;
+   }
+
+   /**
+    * Get the named pool, creating it if necessary.
+    */
+   public static SJPool get(String name) {
+      synchronized (pools) {
+         SJPool pool = pools.get(name);
+         if (pool == null)
+            pools.put(name, pool = new SJPool(name));
+         return pool;
+      }
+   }
+
+   /**
+    * Get the pool for a command, or null if it is exempt from
+    * admission control.
+    * @param cmd Command name as invoked, normally the alias
+    * @param cls Class name that it resolves to
+    */
+   public static SJPool forCommand(String cmd, String cls) {
+      if (cls.startsWith("net.uazu.scramjet.tool."))
+         return null;
+      String name;
+      synchronized (pools) {
+         name = members.get(cmd);
+         if (name == null)
+            name = members.get(cls);
+      }
+      return get(name == null ? DEFAULT : name);
+   }
+
+   /**
+    * Handle a 'pool' config line: "&lt;name&gt; &lt;max-running&gt;
+    * [&lt;alias-or-class&gt; ...]".  A max-running of 0 means no limit.
+    * @return null on success, or else an error message
+    */
+   public static String configure(String spec) {
+      String[] arr = spec.trim().split("\\s+");
+      if (arr.length < 2)
+         return "Invalid pool definition: " + spec;
+      int max;
+      try {
+         max = Integer.parseInt(arr[1]);
+      } catch (NumberFormatException e) {
+         return "Invalid pool size: " + spec;
+      }
+      if (max < 0)
+         return "Invalid pool size: " + spec;
+      SJPool pool = get(arr[0]);
+      pool.setMaxRunning(max);
+      synchronized (pools) {
+         for (int a = 2; a<arr.length; a++)
+            members.put(arr[a], pool.name);
+      }
+      return null;
+   }
+
+   /**
+    * Get all the pools, sorted by name.
+    */
+   public static List<SJPool> list() {
+      List<String> names;
+      synchronized (pools) {
+         names = new ArrayList<String>(pools.keySet());
+      }
+      Collections.sort(names);
+      List<SJPool> rv = new ArrayList<SJPool>();
+      for (String name : names)
+         rv.add(get(name));
+      return rv;
+   }
+
+   /**
+    * Change the limit on the number of sessions running at once.  0
+    * means no limit.
+    */
+   public synchronized void setMaxRunning(int max) {
+      max_running = max;
+      notifyAll();
+   }
+
+   /**
+    * Wait until the session may run.  If the wait is interrupted,
+    * the session leaves the queue, and InterruptedException is
+    * thrown.  The session also leaves the queue if its thread is
+    * stopped whilst waiting.
+    */
+   public synchronized void acquire(SJSession sess) throws InterruptedException {
+      long t0 = System.currentTimeMillis();
+      queue.add(sess);
+      if (queue.size() > queue_max)
+         queue_max = queue.size();
+      boolean ok = false;
+      try {
+         while (queue.getFirst() != sess ||
+                (max_running > 0 && running.size() >= max_running))
+            wait();
+         ok = true;
+      } finally {
+         if (!ok) {
+            queue.remove(sess);
+            notifyAll();
+         }
+      }
+      queue.removeFirst();
+      running.add(sess);
+      admitted++;
+      long wait = System.currentTimeMillis() - t0;
+      if (wait > 0) {
+         waited++;
+         wait_total += wait;
+         if (wait > wait_max)
+            wait_max = wait;
+      }
+      // Let the next in the queue check whether it can go too
+      notifyAll();
+   }
+
+   /**
+    * Release a session's place, allowing the next waiting session to
+    * run.  Does nothing if the session was never admitted.
+    */
+   public synchronized void release(SJSession sess) {
+      if (running.remove(sess))
+         notifyAll();
+   }
+
+   /**
+    * Limit on sessions running at once, or 0 for no limit.
+    */
+   public synchronized int maxRunning() {
+      return max_running;
+   }
+
+   /**
+    * Number of sessions currently running.
+    */
+   public synchronized int runningCount() {
+      return running.size();
+   }
+
+   /**
+    * Number of sessions waiting to run.
+    */
+   public synchronized int queueLength() {
+      return queue.size();
+   }
+
+   /**
+    * Is the session waiting to be admitted to this pool?
+    */
+   public synchronized boolean isQueued(SJSession sess) {
+      return queue.contains(sess);
+   }
+
+   /**
+    * One-line summary of the pool's current state and statistics.
+    */
+   public synchronized String describe() {
+      return String.format(
+         "%-12s max %-4s running %-4d queued %-4d (peak %d)  " +
+         "admitted %d  waited %d  avg wait %dms  max wait %dms",
+         name, max_running == 0 ? "-" : "" + max_running,
+         running.size(), queue.size(), queue_max,
+         admitted, waited,
+         waited == 0 ? 0 : wait_total / waited, wait_max);
+   }
+}
@@ -31,8 +31,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import net.uazu.scramjet.nailgun.NGSecurityManager;
+import net.uazu.scramjet.agent.ExitHook;
+import net.uazu.scramjet.mod.ConsoleMod;
 import net.uazu.scramjet.nailgun.ThreadLocalInputStream;
 import net.uazu.scramjet.nailgun.ThreadLocalPrintStream;
 
@@ -44,7 +46,9 @@ import net.uazu.scramjet.nailgun.ThreadLocalPrintStream;
  *
  * <p>Handles the main loop, waiting on the input pipe for
  * instructions, then starting a command until it completes, then
- * reinitialising the pipes to start again.
+ * reinitialising the pipes to start again.  The command itself runs
+ * in its own thread as an {@link SJSession}, whilst this thread reads
+ * and acts on incoming messages from the front-end.
  */
 public class SJProxy extends Thread {
    public final int id;
@@ -76,7 +80,7 @@ public class SJProxy extends Thread {
     * Proxy standard input stream, which connects to C front-end
     * STDIN.
     */
-   public SJInputStream stdin;
+   public volatile SJInputStream stdin;
 
    /**
     * Proxy standard output stream, which connects to C front-end
@@ -91,25 +95,17 @@ public class SJProxy extends Thread {
    public PrintStream stderr;
 
    /**
-    * Current running tool.  This is used to make sure that any old
-    * threads from a previous tool's execution can't do any damage.
+    * Current session, i.e. the running tool and its state, or null.
+    * Any old threads from a previous tool's execution refer to their
+    * own closed session, so they can't do any damage.
     */
-   public Tool curr_tool;
+   public volatile SJSession session;
 
    /**
-    * List of modules active in this session.
+    * List of modules active in this session.  Added to from the tool
+    * thread, and scanned by the proxy thread.
     */
-   public List<SJModule> modules = new ArrayList<SJModule>();
-   
-   /**
-    * Has the tool terminated?
-    */
-   public boolean terminated;
-
-   /**
-    * Exit status of the tool.
-    */
-   public int exit_status;
+   public List<SJModule> modules = new CopyOnWriteArrayList<SJModule>();
 
    /**
     * Set to shut down the server on next reinit.
@@ -126,6 +122,13 @@ public class SJProxy extends Thread {
     */
    public long last_active = 0;
 
+   /**
+    * Is this connection running a batch of commands?  If so, the
+    * connection is kept open after each command exits, ready for the
+    * next 'run'.
+    */
+   public boolean batch;
+
    /**
     * Status after running an external app.
     */
@@ -161,6 +164,16 @@ public class SJProxy extends Thread {
     * Temporary result of last system() call.
     */
    private RunResult run_result;
+
+   /**
+    * Lock used to wait for incoming messages to be processed.
+    */
+   private final Object poll_lock = new Object();
+
+   /**
+    * Count of incoming messages processed, protected by poll_lock.
+    */
+   private int poll_count;
    
    /**
     * Construct a SJProxy instance.
@@ -199,21 +212,30 @@ public class SJProxy extends Thread {
    /**
     * Handle initial messages on a connection, either to do some
     * configuration, or to create a new context to run a command in.
+    * @param prev Context of previous command in a batch, whose
+    * environment and current directory are carried over, or null
+    * @param pending Is the first message already loaded in the reader?
     * @return SJContext or null
     */
    private SJContext
-   load_context() {
+   load_context(SJContext prev, boolean pending) {
       List<String> args = new ArrayList<String>();
       Map<String,String> env = new HashMap<String,String>();
       File cwd = null;
       String cmd = null;
+      if (prev != null) {
+         env.putAll(prev.env);
+         cwd = prev.cwd;
+      }
       
       // Loop until initial messages complete, i.e. until we get a
       // 'run' command or an EOF
       while (true) {
          synchronized (reader) {
             try {
-               reader.read();
+               if (!pending)
+                  reader.read();
+               pending = false;
             } catch (EOFException e) {
                // Expect EOF if they just make a few changes and then
                // disconnect
@@ -252,13 +274,10 @@ public class SJProxy extends Thread {
             if (null != (oa = reader.match("alias %s"))) {
                String alias = (String) oa[0];
                int ii = alias.indexOf("=");
-               if (ii < 0) {
-                  log("Invalid alias definition: " + alias);
-               } else {
-                  Scramjet.aliases.put(
-                     alias.substring(0, ii),
-                     alias.substring(ii+1));
-               }
+               String err = ii < 0 ? "Invalid alias definition: " + alias :
+                  Scramjet.setAlias(alias.substring(0, ii), alias.substring(ii+1));
+               if (err != null)
+                  log(err);
                continue;
             }
             if (null != (oa = reader.match("classpath %s"))) {
@@ -277,6 +296,42 @@ public class SJProxy extends Thread {
                Scramjet.setIdleTimeout((Integer) oa[0]);
                continue;
             }
+            if (null != (oa = reader.match("batch"))) {
+               batch = true;
+               continue;
+            }
+            if (null != (oa = reader.match("pool %s"))) {
+               String err = SJPool.configure((String) oa[0]);
+               if (err != null)
+                  log(err);
+               continue;
+            }
+            if (null != (oa = reader.match("quota %s"))) {
+               String err = SJQuota.configure((String) oa[0]);
+               if (err != null)
+                  log(err);
+               continue;
+            }
+            if (null != (oa = reader.match("render_pause %i"))) {
+               SJSession.render_pause = (Integer) oa[0];
+               continue;
+            }
+            if (null != (oa = reader.match("file_cache %i"))) {
+               SJFileCache.setBudget((Integer) oa[0]);
+               continue;
+            }
+            if (null != (oa = reader.match("memo_cache %i %i"))) {
+               SJMemoCache.setBudget((Integer) oa[0], (Integer) oa[1]);
+               continue;
+            }
+            if (null != (oa = reader.match("cancel_grace %i"))) {
+               SJSession.cancel_grace = (Integer) oa[0];
+               continue;
+            }
+            // Signal which arrived just after the last command in a
+            // batch finished
+            if (null != (oa = reader.match("signal %i")))
+               continue;
             log(id + ": Bad initial connection message: " +
                 new String(reader.msg, Scramjet.charset));
          }
@@ -310,10 +365,9 @@ public class SJProxy extends Thread {
             in = null;
          }
          owner_flag.delete();
-         terminated = false;
-         exit_status = 0;
-         curr_tool = null;
+         session = null;
          modules.clear();
+         batch = false;
 
          // Handle shutdown between tool executions
          if (shutdown) {
@@ -342,7 +396,7 @@ public class SJProxy extends Thread {
          Scramjet.ensureProxiesRunning();
          
          // Handle startup commands
-         SJContext sjc = load_context();
+         SJContext sjc = load_context(null, false);
          if (sjc == null) {
             if (Scramjet.DEBUG)
                log(id + ": Immediate commands complete");
@@ -363,87 +417,162 @@ public class SJProxy extends Thread {
          if (Scramjet.DEBUG)
             log(id + ": Write stream connected");
 
-         // Setup standard streams
-         try {
-            stdin = new SJInputStream(this);
-            stdout = new PrintStream(
-               new SJOutputStream(this, "1%t"), true, Scramjet.charset.name());
-            stderr = new PrintStream(
-               new SJOutputStream(this, "2%t"), true, Scramjet.charset.name());
-         } catch (UnsupportedEncodingException e) {
-            log("Character set not recognised: " + Scramjet.charset.name());
-            return;
+         // Run the command, and then for a batch, each following
+         // command on the same connection
+         while (true) {
+            if (!run_tool(sjc))
+               break;
+            sjc = load_context(sjc, true);
+            if (sjc == null) {
+               if (Scramjet.DEBUG)
+                  log(id + ": Batch complete");
+               break;
+            }
          }
-         sjc = new SJContext(sjc, stdin, stdout, stderr);
+      }
+   }
 
-         // Look for constructor and run it
-         Throwable dump = null;
-         try {
-            String cmd = sjc.cmd;
-            String alias = Scramjet.aliases.get(cmd);
-            if (alias != null) cmd = alias;
-            // Allow path-like specification of package/ClassName and
-            // convert to dots
-            cmd = cmd.replace("/", ".");
-            try {
-               Class<?> clas = Class.forName(cmd);
-               if (!Tool.class.isAssignableFrom(clas))
-                  error(sjc, "Class isn't subclass of Tool: " + cmd);
-               Constructor<?> cons = clas.getConstructor(SJContext.class);
-               curr_tool = (Tool) cons.newInstance(sjc);
-            } catch (ClassNotFoundException e) {
-               error(sjc, "Class or alias not found: " + cmd);
-            } catch (NoSuchMethodException e) {
-               error(sjc, "Constructor not found: new " + cmd + "(SJContext)");
-            } catch (InstantiationException e) {
-               error(sjc, "Cannot run an abstract class: " + cmd);
-            } catch (InvocationTargetException e) {
-               error(sjc, "(failure within constructor)", e.getCause());
+   /**
+    * Run a single command in a new session.  The tool runs in its own
+    * thread, whilst this thread handles incoming messages from the
+    * front-end until it disconnects, or for a batch, until the next
+    * command starts to arrive.
+    * @return true if the first message of the next command in a batch
+    * has been read
+    */
+   private boolean
+   run_tool(SJContext sjc) {
+      final SJSession sess = new SJSession(this);
+      modules.clear();
+
+      // Setup standard streams.  A batch command gets no input.
+      try {
+         stdin = new SJInputStream(sess);
+         stdout = new PrintStream(
+            new SJOutputStream(sess, "1%t"), true, Scramjet.charset.name());
+         stderr = new PrintStream(
+            new SJOutputStream(sess, "2%t"), true, Scramjet.charset.name());
+      } catch (UnsupportedEncodingException e) {
+         log("Character set not recognised: " + Scramjet.charset.name());
+         return false;
+      }
+      if (batch)
+         stdin.poll_set_eof();
+      sess.input = stdin;
+      final SJContext ctx = new SJContext(sjc, sess, stdin, stdout, stderr);
+
+      session = sess;
+      sess.thread = new Thread(sess.group, "SJTool " + id) {
+            public void run() {
+               run_session(ctx);
             }
-            
-            // Change System.* streams and System.exit context for this
-            // thread and children
-            NGSecurityManager.setTool(curr_tool);
-            ((ThreadLocalInputStream) System.in).init(stdin);
-            ((ThreadLocalPrintStream) System.out).init(stdout);
-            ((ThreadLocalPrintStream) System.err).init(stderr);
+         };
+      sess.thread.start();
 
-            if (Scramjet.DEBUG)
-               log(id + ": Running command: " + curr_tool.cmd);
-            curr_tool.run();
-            
-         } catch (SJTerminateError e) {
-            // Okay
-         } catch (Throwable t) {
-            dump = t;
-            exit_status = 1;
-         }
+      return pump(sess);
+   }
 
-         terminated = true;
-         sjc.stderr.flush();
-         sjc.stdout.flush();
-         for (SJModule mod : modules)
-            mod.cleanup();
+   /**
+    * Construct and run the tool, then flush its output and report its
+    * exit status.  Runs in the session's main thread.
+    */
+   private void
+   run_session(SJContext sjc) {
+      SJSession sess = sjc.session;
+
+      // Look for constructor and run it
+      Throwable dump = null;
+      try {
+         String cmd = Scramjet.toolClassName(sjc.cmd);
+         Tool tool = null;
+         try {
+            Class<?> clas = Class.forName(cmd);
+            if (!Tool.class.isAssignableFrom(clas))
+               error(sjc, "Class isn't subclass of Tool: " + cmd);
+            Constructor<?> cons = clas.getConstructor(SJContext.class);
+
+            // For a memoized tool, replay the stored result if there
+            // is one, without constructing the tool
+            SJMemoize memo = clas.getAnnotation(SJMemoize.class);
+            if (memo != null) {
+               int status = SJMemoCache.replay(clas, memo, sjc);
+               if (status >= 0)
+                  sess.do_exit(status);
+            }
 
-         while (dump != null) {
-            dump.printStackTrace(sjc.stderr);
-            dump = dump.getCause();
+            // Classify the session, and for a batch session wait for
+            // a free place in the command's pool
+            Boolean inter = Scramjet.alias_interactive.get(sjc.cmd);
+            if (inter != null)
+               sess.classify(inter, true);
+            else
+               sess.classify(ConsoleTool.class.isAssignableFrom(clas), false);
+            sess.admit(SJPool.forCommand(sjc.cmd, cmd));
+            sess.limit(SJQuota.forCommand(sjc.cmd, cmd));
+
+            tool = (Tool) cons.newInstance(sjc);
+         } catch (ClassNotFoundException e) {
+            error(sjc, "Class or alias not found: " + cmd);
+         } catch (NoSuchMethodException e) {
+            error(sjc, "Constructor not found: new " + cmd + "(SJContext)");
+         } catch (InstantiationException e) {
+            error(sjc, "Cannot run an abstract class: " + cmd);
+         } catch (InvocationTargetException e) {
+            error(sjc, "(failure within constructor)", e.getCause());
          }
+         sess.tool = tool;
+         
+         // Change System.* streams and System.exit context for this
+         // thread and children
+         ExitHook.setTool(tool);
+         ((ThreadLocalInputStream) System.in).init(sjc.stdin);
+         ((ThreadLocalPrintStream) System.out).init(sjc.stdout);
+         ((ThreadLocalPrintStream) System.err).init(sjc.stderr);
 
          if (Scramjet.DEBUG)
-            log(id + ": Command exit status: " + exit_status);
+            log(id + ": Running command: " + tool.cmd);
+         tool.run();
+         
+      } catch (SJTerminateError e) {
+         // Okay
+      } catch (Throwable t) {
+         // Exceptions caused by cancellation are expected
+         if (!sess.cancelled) {
+            dump = t;
+            sess.exit_status = 1;
+         }
+      }
+
+      sess.terminated = true;
+      sjc.stderr.flush();
+      sjc.stdout.flush();
+      if (sess.tool != null) {
          try {
-            writer.write("exit %i", exit_status);
-            writer.flush();
-            // Sleep 100ms to allow front-end to receive message
-            // before dropping connection
-            Thread.sleep(100);
+            sess.tool.flushWriters();
          } catch (SJTerminateError e) {
-            // Do nothing -- we'll drop and re-connect anyway
-         } catch (InterruptedException e) {
-            // Ignore
+            // Front-end has gone away
          }
       }
+
+      // Unbind System.* streams, so they don't keep the session alive
+      ((ThreadLocalInputStream) System.in).init(null);
+      ((ThreadLocalPrintStream) System.out).init(null);
+      ((ThreadLocalPrintStream) System.err).init(null);
+      for (SJModule mod : sess.modules)
+         mod.cleanup();
+
+      while (dump != null) {
+         dump.printStackTrace(sjc.stderr);
+         dump = dump.getCause();
+      }
+
+      if (Scramjet.DEBUG)
+         log(id + ": Command exit status: " + sess.getExitStatus());
+      sess.usage.finish(sjc.cmd);
+      log(id + ": '" + sjc.cmd + "' exit " + sess.getExitStatus() + ", " + sess.usage);
+      sess.finish(sess.getExitStatus());
+      if (sess.recorder != null)
+         SJMemoCache.store(sjc);
    }
 
    /**
@@ -451,7 +580,7 @@ public class SJProxy extends Thread {
     */
    private void error(SJContext sjc, String msg) {
       sjc.stderr.println(msg);
-      do_exit(1);
+      sjc.session.do_exit(1);
    }
 
    /**
@@ -460,109 +589,148 @@ public class SJProxy extends Thread {
    private void error(SJContext sjc, String msg, Throwable thr) {
       sjc.stderr.println(msg);
       thr.printStackTrace(sjc.stderr);
-      do_exit(1);
+      sjc.session.do_exit(1);
    }
 
    /**
-    * Look for incoming messages and process them if present.  If
-    * 'block' is set, then will block until at least one message has
-    * been received.
+    * Read incoming messages from the front-end and act on them whilst
+    * a session is running.  Returns when the front-end disconnects,
+    * which normally happens after it receives the exit status.  If
+    * it disconnects before then, it has been killed, so the session
+    * is cancelled, unless it is detachable, in which case it is
+    * detached and carries on running.
+    * @return true if the first message of the next command in a batch
+    * has been read, which is left in the reader for load_context()
     */
-   public void 
-   poll_incoming(boolean block) {
+   private boolean
+   pump(SJSession sess) {
      next_message:
       while (true) {
-         if (!block) {
-            try {
-               if (0 == in.available())
-                  return;
-            } catch (IOException e) {
-               do_exit(199);
-            }
-         }
-         
-         // If blocking set, it only applies to first message
-         block = false;
-         
          synchronized (reader) {
             try {
                reader.read();
             } catch (EOFException e) {
-               // Maybe front end terminated via kill, try to clean up
-               throw new SJTerminateError();
+               if (!sess.detach(false))
+                  sess.cancel(SIGHUP);
+               return false;
             } catch (IOException e) {
                log(id + ": IOException on input pipe: " + e.getMessage());
-               throw new SJTerminateError();
+               if (!sess.detach(false))
+                  sess.cancel(SIGHUP);
+               return false;
             }
             
-            Object[] oa;
-            if (null != (oa = reader.match("0%t"))) {
-               stdin.poll_add_data((byte[]) oa[0]);
-               continue;
-            }
-            if (null != (oa = reader.match("EOF"))) {
-               stdin.poll_set_eof();
-               continue;
-            }
-            if (null != (oa = reader.match("run-status %i %i"))) {
-               run_result = new RunResult((Integer) oa[0], (Integer) oa[1]);
-               continue;
-            }
-           next_mod:
-            for (SJModule sjm : modules) {
-               byte[] pre = sjm.getPrefix();
-               if (pre.length > reader.msg.length) continue;
-               for (int a = 0; a<pre.length; a++)
-                  if (pre[a] != reader.msg[a])
-                     continue next_mod;
-               if (sjm.match(reader))
-                  continue next_message;
+            try {
+               Object[] oa;
+               if (null != (oa = reader.match("0%t"))) {
+                  stdin.poll_add_data((byte[]) oa[0]);
+                  continue;
+               }
+               if (null != (oa = reader.match("EOF"))) {
+                  stdin.poll_set_eof();
+                  continue;
+               }
+               if (null != (oa = reader.match("signal %i"))) {
+                  // A signal for an attached session is passed on
+                  int sig = (Integer) oa[0];
+                  SJSession att = sig == SIGHUP ? null : SJSession.attachedVia(sess);
+                  if (att != null)
+                     att.cancel(sig);
+                  else if (sig != SIGHUP || !sess.detach(false, true))
+                     sess.cancel(sig);
+                  continue;
+               }
+               if (null != (oa = reader.match("run-status %i %i"))) {
+                  synchronized (poll_lock) {
+                     run_result = new RunResult((Integer) oa[0], (Integer) oa[1]);
+                  }
+                  continue;
+               }
+               if (batch && sess.closed &&
+                   (null != reader.match("arg %s") ||
+                    null != reader.match("run %s")))
+                  return true;
+              next_mod:
+               for (SJModule sjm : modules) {
+                  byte[] pre = sjm.getPrefix();
+                  if (pre.length > reader.msg.length) continue;
+                  for (int a = 0; a<pre.length; a++)
+                     if (pre[a] != reader.msg[a])
+                        continue next_mod;
+                  if (sjm.match(reader))
+                     continue next_message;
+               }
+               log(id + ": Invalid message received: " +
+                   new String(reader.msg, Scramjet.charset));
+            } finally {
+               synchronized (poll_lock) {
+                  poll_count++;
+                  poll_lock.notifyAll();
+               }
             }
-            log(id + ": Invalid message received: " +
-                new String(reader.msg, Scramjet.charset));
          }
       }
    }
 
    /**
-    * Change the task to an 'exiting' state, and throw the
-    * SJTerminateError.
+    * Signal number for SIGHUP, used when the front-end disappears.
     */
-   public void do_exit(Tool tool, int status) throws SJTerminateError {
-      if (tool == curr_tool) {
-         terminated = true;
-         exit_status = status;
-      }
-      throw new SJTerminateError();
-   }
+   private static final int SIGHUP = 1;
 
    /**
-    * Change the task to an 'exiting' state, and throw the
-    * SJTerminateError.
+    * Wait for incoming messages to be processed.  Messages are read
+    * and acted on by the proxy thread as soon as they arrive, so
+    * without 'block' set this does nothing.  If 'block' is set, then
+    * waits until at least one more message has been processed.
     */
-   public void do_exit(MsgWriter writer, int status) throws SJTerminateError {
-      if (writer == this.writer) {
-         terminated = true;
-         exit_status = status;
+   public void 
+   poll_incoming(boolean block) {
+      if (!block)
+         return;
+      synchronized (poll_lock) {
+         int count = poll_count;
+         while (count == poll_count) {
+            try {
+               poll_lock.wait();
+            } catch (InterruptedException e) {
+               SJSession sess = session;
+               if (sess != null)
+                  sess.exitCheck();
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
       }
-      throw new SJTerminateError();
    }
 
    /**
-    * Cause the tool to exit.
+    * Change the session to an 'exiting' state following an I/O error
+    * on the given writer, and throw the SJTerminateError.  A
+    * detachable session is left running, to be detached by the
+    * caller.
     */
-   private void do_exit(int status) throws SJTerminateError {
-      terminated = true;
-      exit_status = status;
+   public void do_exit(MsgWriter writer, int status) throws SJTerminateError {
+      SJSession sess = session;
+      if (writer == this.writer && sess != null && !sess.terminated &&
+          !sess.detachable) {
+         sess.terminated = true;
+         sess.exit_status = status;
+      }
       throw new SJTerminateError();
    }
-   
+
    /**
     * Add this module to the list of modules to check when
     * interpreting incoming messages, and connect it to the current
     * SJProxy and MsgWriter instances.
     */
    public void useModule(SJModule mod) {
+      // A tool managing the console is interactive
+      SJSession sess = session;
+      if (mod instanceof ConsoleMod && sess != null)
+         sess.setInteractive();
+      if (sess != null)
+         sess.modules.add(mod);
       modules.add(mod);
       mod.setup(this, writer);
    }
@@ -580,15 +748,25 @@ public class SJProxy extends Thread {
     * net.uazu.con.Console#pause} method takes care of this.
     */
    public RunResult system(String cmd) {
+      synchronized (poll_lock) {
+         run_result = null;
+      }
       writer.write("run %s", cmd);
       writer.flush();
       
       // Wait for result to come back
-      run_result = null;
-      while (run_result == null)
-         poll_incoming(true);
-
-      return run_result;
+      synchronized (poll_lock) {
+         while (run_result == null) {
+            try {
+               poll_lock.wait();
+            } catch (InterruptedException e) {
+               SJSession sess = session;
+               if (sess != null)
+                  sess.exitCheck();
+            }
+         }
+         return run_result;
+      }
    }
 }
       
@@ -0,0 +1,159 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import static net.uazu.scramjet.Scramjet.log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Resource limits for the sessions of a command, set by 'quota'
+ * config lines.  A session may be limited in wall-clock time, CPU
+ * time, heap allocation, live threads and output.  The limits are
+ * checked by the {@link SJUsage} sampler, so they are enforced to
+ * within about {@link SJUsage#INTERVAL} ms.  A session which goes
+ * over a limit is cancelled as if its front-end had received a
+ * signal, and gets a message on its stderr: its threads are
+ * interrupted, {@link Tool#exitCheck} throws SJTerminateError, and
+ * after {@link SJSession#cancel_grace} ms any threads still running
+ * are stopped.  Output beyond an output limit is discarded.  The
+ * signal reported in the exit status is SIGXCPU for time limits and
+ * SIGXFSZ for output, as for ulimit, and SIGKILL for the rest.
+ *
+ * <p>This means one runaway command costs only its own session,
+ * rather than degrading every other user of the server until it is
+ * restarted.
+ */
+public class SJQuota {
+   /**
+    * Name of the quota that covers commands which have no quota of
+    * their own, other than the builtin tools.
+    */
+   public static final String DEFAULT = "default";
+
+   private static final int SIGKILL = 9;
+   private static final int SIGXCPU = 24;
+   private static final int SIGXFSZ = 25;
+
+   /**
+    * Limits, or 0 for no limit: wall-clock and CPU time in ms,
+    * allocated bytes, live threads, and output bytes.
+    */
+   private long wall, cpu, alloc, threads, output;
+
+   /**
+    * Quotas by alias or class name.  Access synchronized on the map.
+    */
+   private static final Map<String,SJQuota> quotas = new HashMap<String,SJQuota>();
+
+   /**
+    * Handle a 'quota' config line: "&lt;alias-or-class&gt;
+    * &lt;limit&gt;=&lt;value&gt; ...", where the limits are wall and
+    * cpu in seconds, alloc and output in MB, and threads.
+    * @return null on success, or else an error message
+    */
+   public static String configure(String spec) {
+      String[] arr = spec.trim().split("\\s+");
+      if (arr.length < 2)
+         return "Invalid quota definition: " + spec;
+      SJQuota quota = new SJQuota();
+      for (int a = 1; a<arr.length; a++) {
+         int ii = arr[a].indexOf('=');
+         long val;
+         try {
+            val = ii < 0 ? -1 : Long.parseLong(arr[a].substring(ii+1));
+         } catch (NumberFormatException e) {
+            val = -1;
+         }
+         String key = ii < 0 ? arr[a] : arr[a].substring(0, ii);
+         if (val < 0)
+            return "Invalid quota limit: " + arr[a];
+         if (key.equals("wall"))
+            quota.wall = val * 1000;
+         else if (key.equals("cpu"))
+            quota.cpu = val * 1000;
+         else if (key.equals("alloc"))
+            quota.alloc = val << 20;
+         else if (key.equals("threads"))
+            quota.threads = val;
+         else if (key.equals("output"))
+            quota.output = val << 20;
+         else
+            return "Unknown quota limit: " + arr[a];
+      }
+      synchronized (quotas) {
+         quotas.put(arr[0], quota);
+      }
+      return null;
+   }
+
+   /**
+    * Get the quota for a command, or null if it is unlimited.
+    * @param cmd Command name as invoked, normally the alias
+    * @param cls Class name that it resolves to
+    */
+   public static SJQuota forCommand(String cmd, String cls) {
+      synchronized (quotas) {
+         SJQuota quota = quotas.get(cmd);
+         if (quota == null)
+            quota = quotas.get(cls);
+         if (quota == null && !cls.startsWith("net.uazu.scramjet.tool."))
+            quota = quotas.get(DEFAULT);
+         return quota;
+      }
+   }
+
+   /**
+    * Check a running session against its quota, if it has one, and
+    * cancel it if it is over a limit.  The session's usage should
+    * have just been sampled.  Called from the sampler thread.
+    */
+   static void check(SJSession sess) {
+      SJQuota quota = sess.quota;
+      if (quota == null || sess.cancelled || sess.closed)
+         return;
+      long used;
+      if (quota.wall > 0 &&
+          (used = System.currentTimeMillis() - sess.quota_start) > quota.wall)
+         exceeded(sess, "wall time", used / 1000 + "s", quota.wall / 1000 + "s", SIGXCPU);
+      else if (quota.cpu > 0 && (used = sess.usage.cpuTime() / 1000000) > quota.cpu)
+         exceeded(sess, "CPU time", used / 1000 + "s", quota.cpu / 1000 + "s", SIGXCPU);
+      else if (quota.alloc > 0 && (used = sess.usage.allocatedBytes()) > quota.alloc)
+         exceeded(sess, "allocation", (used >> 20) + "MB", (quota.alloc >> 20) + "MB", SIGKILL);
+      else if (quota.threads > 0 && (used = sess.threads().length) > quota.threads)
+         exceeded(sess, "live threads", "" + used, "" + quota.threads, SIGKILL);
+      else if (quota.output > 0 && (used = sess.bytesOut()) > quota.output) {
+         sess.output_cut = true;
+         exceeded(sess, "output", (used >> 20) + "MB", (quota.output >> 20) + "MB", SIGXFSZ);
+      }
+   }
+
+   /**
+    * Log that a limit has been exceeded, cancel the session, and warn
+    * its user.  Nothing here waits on the session's output, since a
+    * session over its output quota may well be blocked writing to a
+    * stalled front-end, and waiting would stop the sampler for all
+    * sessions.
+    */
+   private static void exceeded(SJSession sess, String what, String used,
+                                String limit, int sig) {
+      String msg = sess.describe() + " exceeded its " + what + " quota: " +
+         used + " used, limit " + limit + "; cancelling";
+      log(sess.proxy.id + ": " + msg);
+      sess.cancel(sig);
+      sess.notice("scramjet: " + msg + "\n");
+   }
+}
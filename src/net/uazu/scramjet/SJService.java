@@ -0,0 +1,451 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import net.uazu.scramjet.agent.ExitHook;
+import net.uazu.scramjet.nailgun.ThreadLocalInputStream;
+import net.uazu.scramjet.nailgun.ThreadLocalPrintStream;
+
+/**
+ * Resident service, holding expensive state such as a loaded index
+ * across tool invocations.  Subclass this with a public no-argument
+ * constructor, and get the shared instance from a tool with {@link
+ * Tool#service}.  The first call constructs the service and runs
+ * {@link #start}; later calls from any session return the same
+ * instance until it is invalidated.
+ *
+ * <p>A service is invalidated when any file or directory it declared
+ * with {@link #watch} changes, or when it is evicted to free memory
+ * because the heap is nearly full after a GC, least recently used
+ * first.  The next call to {@link Tool#service} then starts a fresh
+ * instance.  An invalidated service is only stopped once no running
+ * session is using it, so a tool may use the instance it got
+ * throughout its run, but should not keep it in a static field.
+ *
+ * <p>Services are used from many sessions at once, so must be
+ * thread-safe.
+ */
+public abstract class SJService {
+   /**
+    * Load the service's state.  Runs in the thread of the tool
+    * that first asked for the service, and may call {@link #watch}.
+    * If it throws, the service is discarded and the exception is
+    * passed to the tool.
+    */
+   protected abstract void start() throws Exception;
+
+   /**
+    * Release the service's resources, e.g. close connections or stop
+    * threads.  Called once the service has been invalidated and is
+    * no longer in use.  Does nothing unless overridden.
+    */
+   protected void stop() {}
+
+   /**
+    * Estimate the memory held by this service in bytes, or -1 if
+    * unknown.  Shown by sj-stats, and used when choosing how many
+    * services to evict under memory pressure.
+    */
+   public long memoryUsage() {
+      return -1;
+   }
+
+   /**
+    * Invalidate the service when the given file or directory
+    * changes.  For a file, this covers it being created, modified,
+    * replaced or deleted.  For a directory, any entry in it being
+    * created, modified or deleted, but not changes further down.
+    */
+   protected final void watch(File path) throws IOException {
+      Path pp = path.getAbsoluteFile().toPath();
+      String name = null;
+      if (!path.isDirectory()) {
+         name = pp.getFileName().toString();
+         pp = pp.getParent();
+      }
+      add_watch(this, pp, name);
+   }
+
+   /**
+    * Has this service been invalidated?
+    */
+   public final boolean isValid() {
+      return valid;
+   }
+
+   /**
+    * Registered name: the class name.
+    */
+   public final String name() {
+      return getClass().getName();
+   }
+
+   /**
+    * Start a daemon thread for the service's own work, e.g. loading
+    * in the background or following changes.  It runs in the
+    * server's thread group, without the context of the tool that
+    * happened to start it, so it may outlive that tool.  It should
+    * finish when the service is stopped.
+    */
+   protected final Thread startThread(String name, Runnable body) {
+      synchronized (services) {
+         return server_thread(name, body);
+      }
+   }
+
+   private boolean started;
+   private volatile boolean valid = true;
+   private boolean stopped;
+   private int users;
+   private long start_time;
+   private volatile long last_used;
+
+   /**
+    * Services by class.  Access synchronized on the map.
+    */
+   private static final Map<Class<?>,SJService> services =
+      new HashMap<Class<?>,SJService>();
+
+   /**
+    * Get the shared instance of a service, starting it if necessary.
+    * The caller must pass it to {@link #release} when finished.
+    * @param group Thread group for the watcher thread if it has to
+    * be started, i.e. the server's own group
+    */
+   static <T extends SJService> T get(Class<T> clas, ThreadGroup group) throws Exception {
+      SJService svc;
+      synchronized (services) {
+         server_group = group;
+         svc = services.get(clas);
+         if (svc == null) {
+            svc = clas.getConstructor().newInstance();
+            services.put(clas, svc);
+         }
+         svc.users++;
+         svc.last_used = System.currentTimeMillis();
+      }
+      try {
+         svc.ensure_started();
+      } catch (Exception e) {
+         invalidate(svc, "start failed");
+         release(svc);
+         throw e;
+      }
+      return clas.cast(svc);
+   }
+
+   private synchronized void ensure_started() throws Exception {
+      if (started)
+         return;
+      if (!valid)
+         throw new IllegalStateException("Service failed to start: " + name());
+      start_time = System.currentTimeMillis();
+      start();
+      started = true;
+      Scramjet.log("Started service " + name() + " in " +
+                   (System.currentTimeMillis() - start_time) + "ms");
+      watch_memory();
+   }
+
+   /**
+    * Drop a session's use of a service, stopping it if it is invalid
+    * and this was the last user.
+    */
+   static void release(SJService svc) {
+      synchronized (services) {
+         svc.users--;
+         svc.last_used = System.currentTimeMillis();
+         if (svc.valid || svc.users > 0)
+            return;
+      }
+      svc.do_stop();
+   }
+
+   /**
+    * Invalidate a service, so that the next request starts a fresh
+    * instance.  It is stopped now if unused, or else when released.
+    */
+   static void invalidate(SJService svc, String why) {
+      synchronized (services) {
+         if (!svc.valid)
+            return;
+         svc.valid = false;
+         if (services.get(svc.getClass()) == svc)
+            services.remove(svc.getClass());
+         Scramjet.log("Invalidated service " + svc.name() + ": " + why);
+         if (svc.users > 0)
+            return;
+      }
+      svc.do_stop();
+   }
+
+   private void do_stop() {
+      remove_watches(this);
+      synchronized (this) {
+         if (stopped || !started)
+            return;
+         stopped = true;
+      }
+      try {
+         stop();
+      } catch (Throwable e) {
+         Scramjet.log("Exception stopping service " + name() + ": " + e);
+      }
+   }
+
+   /**
+    * Invalidate the service of the given class if it is running.
+    * @return true if found
+    */
+   public static boolean invalidate(Class<?> clas) {
+      SJService svc;
+      synchronized (services) {
+         svc = services.get(clas);
+      }
+      if (svc == null)
+         return false;
+      invalidate(svc, "on request");
+      return true;
+   }
+
+   /**
+    * Describe the running services, one line each, for sj-stats.
+    */
+   public static List<String> describe() {
+      List<SJService> list;
+      synchronized (services) {
+         list = new ArrayList<SJService>(services.values());
+      }
+      Collections.sort(list, new Comparator<SJService>() {
+            public int compare(SJService a, SJService b) {
+               return a.name().compareTo(b.name());
+            }
+         });
+      long now = System.currentTimeMillis();
+      List<String> rv = new ArrayList<String>();
+      for (SJService svc : list) {
+         long mem = svc.memoryUsage();
+         rv.add(String.format(
+                   "service %s: %s, users %d, memory %s, up %ds, idle %ds",
+                   svc.name(), svc.started ? "running" : "starting", svc.users,
+                   mem < 0 ? "?" : (mem / 1024) + "KB",
+                   (now - svc.start_time) / 1000, (now - svc.last_used) / 1000));
+      }
+      return rv;
+   }
+
+   // ------------------------------------------------------------
+   // File watching
+
+   /**
+    * Watched directory entry: a service and a file name within the
+    * directory, or null for any change.
+    */
+   private static class Watch {
+      final SJService svc;
+      final String name;
+      Watch(SJService svc, String name) {
+         this.svc = svc;
+         this.name = name;
+      }
+   }
+
+   private static WatchService watcher;
+   private static ThreadGroup server_group;
+   private static final Map<WatchKey,List<Watch>> watches = new HashMap<WatchKey,List<Watch>>();
+
+   private static synchronized void add_watch(SJService svc, Path dir, String name)
+      throws IOException {
+      if (watcher == null) {
+         watcher = FileSystems.getDefault().newWatchService();
+         server_thread("SJService watcher", new Runnable() {
+               public void run() {
+                  watch_loop();
+               }
+            });
+      }
+      WatchKey key = dir.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+      List<Watch> list = watches.get(key);
+      if (list == null)
+         watches.put(key, list = new ArrayList<Watch>());
+      list.add(new Watch(svc, name));
+   }
+
+   /**
+    * Start a daemon thread in the server's thread group, with no tool
+    * context.
+    */
+   private static Thread server_thread(String name, final Runnable body) {
+      Thread thr = new Thread(server_group, name) {
+            public void run() {
+               // Don't keep the context of the session which happened
+               // to start this thread
+               ExitHook.setTool(null);
+               ((ThreadLocalInputStream) System.in).init(null);
+               ((ThreadLocalPrintStream) System.out).init(null);
+               ((ThreadLocalPrintStream) System.err).init(null);
+               body.run();
+            }
+         };
+      thr.setDaemon(true);
+      thr.start();
+      return thr;
+   }
+
+   private static synchronized void remove_watches(SJService svc) {
+      Iterator<Map.Entry<WatchKey,List<Watch>>> it = watches.entrySet().iterator();
+      while (it.hasNext()) {
+         Map.Entry<WatchKey,List<Watch>> ent = it.next();
+         Iterator<Watch> it2 = ent.getValue().iterator();
+         while (it2.hasNext())
+            if (it2.next().svc == svc)
+               it2.remove();
+         if (ent.getValue().isEmpty()) {
+            ent.getKey().cancel();
+            it.remove();
+         }
+      }
+   }
+
+   private static void watch_loop() {
+      while (true) {
+         WatchKey key;
+         try {
+            key = watcher.take();
+         } catch (InterruptedException e) {
+            continue;
+         }
+         Set<SJService> hit = new HashSet<SJService>();
+         String why = null;
+         synchronized (SJService.class) {
+            List<Watch> list = watches.get(key);
+            for (WatchEvent<?> ev : key.pollEvents()) {
+               if (list == null)
+                  continue;
+               String name = ev.kind() == OVERFLOW ? null : ev.context().toString();
+               for (Watch ww : list)
+                  if (name == null || ww.name == null || ww.name.equals(name)) {
+                     hit.add(ww.svc);
+                     why = (name == null ? "events lost" : name + " changed") +
+                        " in " + key.watchable();
+                  }
+            }
+            if (!key.reset() && list != null) {
+               // Directory gone
+               for (Watch ww : list)
+                  hit.add(ww.svc);
+               why = key.watchable() + " no longer accessible";
+            }
+         }
+         for (SJService svc : hit)
+            invalidate(svc, why);
+      }
+   }
+
+   // ------------------------------------------------------------
+   // Memory pressure
+
+   private static boolean memory_watched;
+
+   /**
+    * Set up a notification for when the heap is over 80% full after
+    * a GC, if not done already.
+    */
+   private static synchronized void watch_memory() {
+      if (memory_watched)
+         return;
+      memory_watched = true;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() != MemoryType.HEAP ||
+             !pool.isCollectionUsageThresholdSupported())
+            continue;
+         long max = pool.getUsage().getMax();
+         if (max > 0 && pool.getCollectionUsageThreshold() == 0)
+            pool.setCollectionUsageThreshold(max / 10 * 8);
+      }
+      NotificationEmitter emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+      emitter.addNotificationListener(new NotificationListener() {
+            public void handleNotification(Notification note, Object hand) {
+               memory_pressure();
+            }
+         }, null, null);
+   }
+
+   /**
+    * Evict idle services, least recently used first, until the
+    * memory they hold covers the excess over the threshold.
+    */
+   private static void memory_pressure() {
+      long excess = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() != MemoryType.HEAP ||
+             !pool.isCollectionUsageThresholdSupported())
+            continue;
+         MemoryUsage use = pool.getCollectionUsage();
+         long thresh = pool.getCollectionUsageThreshold();
+         if (use != null && thresh > 0 && use.getUsed() > thresh)
+            excess += use.getUsed() - thresh;
+      }
+      if (excess == 0)
+         return;
+      List<SJService> idle = new ArrayList<SJService>();
+      synchronized (services) {
+         for (SJService svc : services.values())
+            if (svc.users == 0 && svc.started)
+               idle.add(svc);
+      }
+      Collections.sort(idle, new Comparator<SJService>() {
+            public int compare(SJService a, SJService b) {
+               return Long.compare(a.last_used, b.last_used);
+            }
+         });
+      for (SJService svc : idle) {
+         if (excess <= 0)
+            break;
+         excess -= Math.max(0, svc.memoryUsage());
+         invalidate(svc, "evicted under memory pressure");
+      }
+   }
+}
@@ -0,0 +1,951 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import static net.uazu.scramjet.Scramjet.log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single run of a tool on behalf of a front-end.  The tool runs in
+ * its own thread within its own ThreadGroup, so that any threads it
+ * starts can be found again when the session has to be cancelled.
+ * The SJProxy thread meanwhile handles incoming messages from the
+ * front-end.
+ *
+ * <p>Once the exit status has been reported to the front-end the
+ * session is closed, and any further output from threads left behind
+ * by the tool is discarded.  This means that the proxy can safely be
+ * reused for the next command even if the old threads are still
+ * running.
+ *
+ * <p>A tool may also run other tools in-process, each in a child
+ * session (see {@link Tool#runChild}).  A child session shares its
+ * parent's thread group, but holds its output in memory until it is
+ * written out with {@link #emit}, and its exit ends only the child.
+ *
+ * <p>A detachable session, normally a console tool, survives the loss
+ * of its front-end: it is detached instead of being cancelled, its
+ * output is discarded, and it carries on running until a new
+ * front-end is attached to it with "scramjet --attach &lt;id&gt;" (see
+ * {@link #detach} and {@link #attach}).
+ */
+public class SJSession {
+   /**
+    * Proxy connection that this session runs on.
+    */
+   public final SJProxy proxy;
+
+   /**
+    * Session of the tool that this child session was started from,
+    * or null for a session run directly for a front-end.
+    */
+   public final SJSession parent;
+
+   /**
+    * Writer for the connection the session started on, or the one it
+    * was last attached to, or null whilst detached.  Kept here
+    * because the proxy drops its own reference as soon as the
+    * front-end disconnects.  Changed only whilst holding out_lock.
+    */
+   private MsgWriter writer;
+
+   /**
+    * Thread group containing the tool's main thread and any threads
+    * that it starts.
+    */
+   public final ThreadGroup group;
+
+   /**
+    * Time the session started, from System.currentTimeMillis().
+    */
+   public final long start_time;
+
+   /**
+    * CPU time and heap allocation of the session's threads.
+    */
+   public final SJUsage usage;
+
+   /**
+    * Tool instance, or null if not yet constructed.
+    */
+   public volatile Tool tool;
+
+   /**
+    * Tool main thread.
+    */
+   public Thread thread;
+
+   /**
+    * Has the tool been asked to terminate?
+    */
+   public volatile boolean terminated;
+
+   /**
+    * Exit status of the tool.
+    */
+   public volatile int exit_status;
+
+   /**
+    * Has cancellation been requested by the front-end?
+    */
+   public volatile boolean cancelled;
+
+   /**
+    * Signal number that caused the cancellation, or 0.
+    */
+   public volatile int signal;
+
+   /**
+    * Has the exit status been reported to the front-end?  After this
+    * no more output is passed through.
+    */
+   public volatile boolean closed;
+
+   /**
+    * Is this an interactive session?  Interactive sessions skip
+    * admission control and run at a raised thread priority.  All
+    * others are batch sessions, which run at a lowered priority, and
+    * whose thread pools by default leave a processor free.
+    *
+    * <p>That is all that is done by default, and it doesn't bound
+    * the total batch work, since the JVM ignores thread priorities
+    * on Linux unless run with -XX:ThreadPriorityPolicy=1 (which
+    * needs root).  To keep interactive sessions responsive under
+    * heavy batch load, configure 'pool default &lt;N&gt;' to limit
+    * the batch sessions running at once, with N greater than the
+    * longest pipeline of batch commands, and 'render_pause
+    * &lt;ms&gt;' to hold batch sessions up whilst an interactive
+    * session renders.
+    */
+   public volatile boolean interactive;
+
+   /**
+    * Was the session class given explicitly in the alias config?  If
+    * so, it isn't changed automatically.
+    */
+   private boolean class_fixed;
+
+   /**
+    * Lock to keep output in order with the final exit message.  This
+    * is held whilst writing to the front-end, which may block, so it
+    * must never be taken on the cancel path: see state_lock.
+    */
+   private final Object out_lock = new Object();
+
+   /**
+    * Lock for changes to closed and cancelled, and to the reaper,
+    * pool, executors and services.  Never held whilst writing to the
+    * front-end, so that the proxy thread can always cancel a session
+    * even whilst its output is backed up.
+    */
+   private final Object state_lock = new Object();
+
+   /**
+    * Thread waiting to kill off the session after a cancel, or null.
+    * Guarded by state_lock.
+    */
+   private Thread reaper;
+
+   /**
+    * Pool which the session has been admitted to, or null.
+    */
+   private SJPool pool;
+
+   /**
+    * Executors created by the tool through {@link SJExecutors}, to be
+    * shut down when the session finishes.
+    */
+   private final List<ExecutorService> executors = new ArrayList<ExecutorService>();
+
+   /**
+    * Services in use by the tool, to be released when the session
+    * finishes.
+    */
+   private final List<SJService> services = new ArrayList<SJService>();
+
+   /**
+    * Recorder for the output of a memoized tool, or null.
+    */
+   volatile SJMemoCache.Recorder recorder;
+
+   /**
+    * For a child session, the files changed since the tool's previous
+    * run, or null if not known.  See {@link Tool#changedFiles}.
+    */
+   volatile List<File> changed;
+
+   /**
+    * Should the session be detached rather than cancelled if its
+    * front-end goes away?
+    */
+   public volatile boolean detachable;
+
+   /**
+    * Number by which the session can be attached to again, or 0 if
+    * it has never been detached.
+    */
+   public volatile int detach_id;
+
+   /**
+    * Session through whose front-end a detached session is now
+    * attached, or null.  Guarded by out_lock.
+    */
+   private SJSession attached_via;
+
+   /**
+    * Standard input of the session, which a new front-end feeds when
+    * it is attached.
+    */
+   volatile SJInputStream input;
+
+   /**
+    * Modules in use by the tool, which are moved to the new proxy
+    * when it is attached.
+    */
+   final List<SJModule> modules = new CopyOnWriteArrayList<SJModule>();
+
+   /**
+    * Sessions which have been detached and not yet finished, whether
+    * attached again or not, by detach_id.  Access synchronized on the
+    * map.
+    */
+   private static final Map<Integer,SJSession> away = new TreeMap<Integer,SJSession>();
+   private static int last_detach_id;
+
+   /**
+    * Resource limits of the session, or null, and the time they
+    * started to apply, i.e. when the session was admitted.
+    */
+   volatile SJQuota quota;
+   volatile long quota_start;
+
+   /**
+    * Set when the session has gone over its output quota, after
+    * which any further output is discarded.
+    */
+   volatile boolean output_cut;
+
+   /**
+    * Message from the server waiting to go to the front-end's stderr,
+    * or null.  See {@link #notice}.
+    */
+   private final AtomicReference<byte[]> notice = new AtomicReference<byte[]>();
+
+   /**
+    * Bytes of stdin data received from the front-end, and bytes of
+    * output sent to it.  Output of a child session counts towards its
+    * parent when it is emitted.  bytes_out is only changed whilst
+    * holding out_lock.
+    */
+   volatile long bytes_in, bytes_out;
+
+   /**
+    * Output of a child session held until emit(), or null for a
+    * session that writes to the front-end.  Guarded by out_lock.
+    */
+   private final List<Held> held;
+
+   /**
+    * Run of output held for one stream, with {@link
+    * MsgWriter#TAIL_HEADROOM} bytes free at the start as writeTail()
+    * requires.
+    */
+   private static class Held {
+      final String prefix;
+      byte[] buf;
+      int len = MsgWriter.TAIL_HEADROOM;
+      Held(String prefix, int size) {
+         this.prefix = prefix;
+         buf = new byte[MsgWriter.TAIL_HEADROOM + Math.max(size, 256)];
+      }
+   }
+
+   /**
+    * Time in ms to wait after a cancellation request before
+    * forcibly terminating the session's threads.  May be changed by
+    * the 'cancel_grace' configuration line.
+    */
+   public static int cancel_grace = 3000;
+
+   /**
+    * Maximum time in ms that batch sessions are held up whilst an
+    * interactive session renders a frame, or 0 to never hold them.
+    * May be changed by the 'render_pause' configuration line.
+    */
+   public static int render_pause = 0;
+
+   /**
+    * Thread priorities for interactive and batch sessions.
+    */
+   public static final int INTERACTIVE_PRIORITY = Thread.NORM_PRIORITY + 2;
+   public static final int BATCH_PRIORITY = Thread.NORM_PRIORITY - 2;
+
+   /**
+    * Time until which batch sessions are held up, or 0.
+    */
+   private static volatile long pause_until;
+
+   /**
+    * Lock used to wait whilst batch sessions are held up.
+    */
+   private static final Object pause_lock = new Object();
+
+   /**
+    * Construct a session for the given proxy.
+    */
+   public SJSession(SJProxy proxy) {
+      this.proxy = proxy;
+      parent = null;
+      writer = proxy.writer;
+      group = new ThreadGroup("SJSession " + proxy.id);
+      start_time = System.currentTimeMillis();
+      usage = new SJUsage(this);
+      held = null;
+   }
+
+   /**
+    * Construct a child session for a tool run in-process on behalf
+    * of the given session's tool.  It runs in the parent's thread
+    * group and class, and is never admitted to a pool, since the
+    * parent already holds its place.
+    */
+   public SJSession(SJSession parent) {
+      this.parent = parent;
+      proxy = parent.proxy;
+      writer = parent.writer;
+      group = parent.group;
+      start_time = System.currentTimeMillis();
+      usage = parent.usage;
+      interactive = parent.interactive;
+      class_fixed = true;
+      held = new ArrayList<Held>();
+   }
+
+   /**
+    * Write a message to the front-end and flush it, unless the
+    * session has already been closed.  Format is as for {@link
+    * MsgWriter#write}.
+    */
+   public void write(String fmt, byte[] data, int count) throws SJTerminateError {
+      if (held != null && fmt.length() == 3 && fmt.endsWith("%t")) {
+         hold(fmt.substring(0, 1), data, 0, count);
+         return;
+      }
+      synchronized (out_lock) {
+         if (closed || writer == null) return;
+         if (output_cut && fmt.length() == 3 && fmt.endsWith("%t")) return;
+         try {
+            writer.write(fmt, data, count);
+            writer.flush();
+         } catch (SJTerminateError e) {
+            lost(e);
+            return;
+         }
+         if (fmt.length() == 3 && fmt.endsWith("%t")) {
+            bytes_out += count;
+            SJMemoCache.Recorder rec = recorder;
+            if (rec != null)
+               rec.output(fmt.charAt(0), data, 0, count);
+         }
+      }
+   }
+
+   /**
+    * Hold output of a child session, coalescing runs of output to
+    * the same stream.
+    */
+   private void hold(String prefix, byte[] data, int off, int len) {
+      synchronized (out_lock) {
+         if (closed) return;
+         int last = held.size() - 1;
+         Held hh = last < 0 ? null : held.get(last);
+         if (hh == null || !hh.prefix.equals(prefix))
+            held.add(hh = new Held(prefix, len));
+         if (hh.len + len > hh.buf.length)
+            hh.buf = Arrays.copyOf(hh.buf, Math.max(hh.buf.length * 2, hh.len + len));
+         System.arraycopy(data, off, hh.buf, hh.len, len);
+         hh.len += len;
+      }
+   }
+
+   /**
+    * Write out the output held by a finished child session to its
+    * parent, all together, so that it isn't interleaved with the
+    * output of other children.  The held output is then dropped.
+    */
+   public void emit() throws SJTerminateError {
+      List<Held> list;
+      synchronized (out_lock) {
+         list = new ArrayList<Held>(held);
+         held.clear();
+      }
+      synchronized (parent.out_lock) {
+         for (Held hh : list)
+            parent.writeTail(hh.prefix, hh.buf, MsgWriter.TAIL_HEADROOM,
+                             hh.len - MsgWriter.TAIL_HEADROOM);
+      }
+   }
+
+   /**
+    * Allow the front-end to send more stdin data.  Ignored if the
+    * session is closed.
+    */
+   public void grantInput(int count) throws SJTerminateError {
+      synchronized (out_lock) {
+         if (closed || writer == null) return;
+         try {
+            writer.write("stdin-credit %i", count);
+            writer.flush();
+         } catch (SJTerminateError e) {
+            lost(e);
+         }
+      }
+   }
+
+   /**
+    * Send output in the form used by {@link ToolWriter}; see {@link
+    * MsgWriter#writeTail}.  Discarded if the session is closed.
+    */
+   public void writeTail(String prefix, byte[] buf, int off, int len) throws SJTerminateError {
+      if (held != null) {
+         hold(prefix, buf, off, len);
+         return;
+      }
+      synchronized (out_lock) {
+         if (closed || output_cut || writer == null) return;
+         try {
+            writer.writeTail(prefix, buf, off, len);
+            writer.flush();
+         } catch (SJTerminateError e) {
+            lost(e);
+            return;
+         }
+         bytes_out += len;
+         SJMemoCache.Recorder rec = recorder;
+         if (rec != null)
+            rec.output(prefix.charAt(0), buf, off, len);
+      }
+   }
+
+   /**
+    * Bytes of stdin data received from the front-end so far.
+    */
+   public long bytesIn() {
+      return bytes_in;
+   }
+
+   /**
+    * Bytes of stdout and stderr data sent to the front-end so far.
+    */
+   public long bytesOut() {
+      return bytes_out;
+   }
+
+   /**
+    * Report the exit status to the front-end and close the session.
+    * Does nothing if it has already been closed.
+    */
+   public void finish(int status) {
+      synchronized (state_lock) {
+         if (closed) return;
+         closed = true;
+         if (reaper != null)
+            reaper.interrupt();
+         if (pool != null)
+            pool.release(this);
+      }
+      // Waits for any write in progress, so the exit comes last
+      synchronized (out_lock) {
+         write_notice();
+         // A child's status is read from exit_status by its parent,
+         // and an attached session's by the tool it is attached via
+         if (parent == null && writer != null && attached_via == null) {
+            try {
+               writer.write("exit %i", status);
+               writer.flush();
+            } catch (SJTerminateError e) {
+               // Front-end has gone away, nothing more to do
+            }
+         }
+      }
+      if (detach_id != 0) {
+         synchronized (away) {
+            away.remove(detach_id);
+         }
+      }
+      for (ExecutorService ex : executors)
+         ex.shutdownNow();
+      for (SJService svc : services)
+         SJService.release(svc);
+   }
+
+   /**
+    * Send a message from the server to the front-end's stderr, even if
+    * the session's output has been cut off.  The caller doesn't wait:
+    * the message is written by a short-lived thread, or by {@link
+    * #finish} before the exit status if the session finishes first, so
+    * a stalled front-end can't hold up the caller.
+    */
+   void notice(String msg) {
+      notice.set(msg.getBytes(Scramjet.charset));
+      Thread thr = new Thread("SJNotice " + proxy.id) {
+            public void run() {
+               synchronized (out_lock) {
+                  // If closed, finish() writes it
+                  if (!closed)
+                     write_notice();
+               }
+            }
+         };
+      thr.setDaemon(true);
+      thr.start();
+   }
+
+   /**
+    * Write the pending notice, if any.  Called whilst holding
+    * out_lock.
+    */
+   private void write_notice() {
+      byte[] data = notice.getAndSet(null);
+      if (data == null || writer == null || parent != null)
+         return;
+      try {
+         writer.write("2%t", data, data.length);
+         writer.flush();
+      } catch (SJTerminateError e) {
+         // Front-end has gone away
+      }
+   }
+
+   /**
+    * Handle the loss of the front-end found on writing to it.  A
+    * detachable session is detached, and otherwise the error is
+    * passed on.  Called whilst holding out_lock.
+    */
+   private void lost(SJTerminateError e) throws SJTerminateError {
+      if (!detachable || !detach(false))
+         throw e;
+   }
+
+   /**
+    * Detach the session from its front-end, leaving the tool
+    * running.  Output is discarded until a front-end is attached
+    * again with {@link #attach}, which is possible because the
+    * session's console keeps its own model of the screen, and
+    * repaints it all on the resize which follows.  Modules are told
+    * through {@link SJModule#setup} with null arguments.
+    * @param tell True to tell the user how to attach again, and send
+    * the front-end an exit status of 0 so that it exits; false if
+    * the front-end has gone away.  If true, the session is made
+    * detachable if it wasn't already.
+    * @return true if the session is now detached, false if it is not
+    * detachable or has already finished
+    */
+   public boolean detach(boolean tell) {
+      return detach(tell, tell);
+   }
+
+   /**
+    * Detach the session, as for {@link #detach(boolean)}.
+    * @param release True to send the front-end an exit status of 0,
+    * so that it exits and its proxy is freed.  Used without 'tell'
+    * when the front-end is still connected but its terminal has gone,
+    * i.e. on SIGHUP.
+    */
+   boolean detach(boolean tell, boolean release) {
+      synchronized (out_lock) {
+         if (closed || parent != null || (!detachable && !tell))
+            return false;
+         if (writer == null)
+            return true;
+         detachable = true;
+         if (detach_id == 0) {
+            synchronized (away) {
+               detach_id = ++last_detach_id;
+               away.put(detach_id, this);
+            }
+         }
+         if (tell || release) {
+            try {
+               if (tell) {
+                  byte[] msg = ("Detached session " + detach_id +
+                                "; attach again with: scramjet --attach " + detach_id +
+                                "\n").getBytes(Scramjet.charset);
+                  writer.write("2%t", msg, msg.length);
+               }
+               if (release)
+                  writer.write("exit %i", 0);
+               writer.flush();
+            } catch (SJTerminateError e) {
+               // Front-end has gone away already
+            }
+         }
+         writer = null;
+         attached_via = null;
+         for (SJModule mod : modules)
+            mod.setup(null, null);
+      }
+      log(proxy.id + ": Detached " + describe() + " as " + detach_id);
+      return true;
+   }
+
+   /**
+    * Attach a detached session to the front-end of another session,
+    * normally that of the "attach" tool, which must then wait until
+    * the detached session finishes, or else detach it again when its
+    * own front-end goes away.  The front-end's input is passed to the
+    * detached session, and its modules are set up again on the new
+    * proxy, which for a console tool brings a resize and a full
+    * repaint.  Both sessions send the exit status to the front-end.
+    * @return the session attached, or null if there is no detached
+    * session with that number
+    */
+   public static SJSession attach(int id, SJSession via) {
+      SJSession sess;
+      synchronized (away) {
+         sess = away.get(id);
+      }
+      if (sess == null)
+         return null;
+      SJProxy px = via.proxy;
+      synchronized (sess.out_lock) {
+         if (sess.closed || sess.writer != null || via.writer == null)
+            return null;
+         sess.writer = via.writer;
+         sess.attached_via = via;
+         if (sess.input != null)
+            px.stdin = sess.input;
+         for (SJModule mod : sess.modules) {
+            px.modules.add(mod);
+            mod.setup(px, via.writer);
+         }
+      }
+      log(px.id + ": Attached " + sess.describe() + " (" + id + ")");
+      return sess;
+   }
+
+   /**
+    * Is the session attached through the given session's front-end?
+    */
+   public boolean isAttachedVia(SJSession via) {
+      synchronized (out_lock) {
+         return attached_via == via;
+      }
+   }
+
+   /**
+    * Get the session attached through the given session's front-end,
+    * if any.
+    */
+   public static SJSession attachedVia(SJSession via) {
+      for (SJSession sess : detached())
+         if (sess.isAttachedVia(via))
+            return sess;
+      return null;
+   }
+
+   /**
+    * Get the sessions which have been detached and not yet finished,
+    * whether now attached again or not, in order of detach_id.
+    */
+   public static List<SJSession> detached() {
+      synchronized (away) {
+         return new ArrayList<SJSession>(away.values());
+      }
+   }
+
+   /**
+    * Is the session currently detached from any front-end?
+    */
+   public boolean isDetached() {
+      synchronized (out_lock) {
+         return writer == null && detach_id != 0;
+      }
+   }
+
+   /**
+    * Register an executor to be shut down when the session finishes.
+    * If it has already finished, shuts it down immediately.
+    */
+   void addExecutor(ExecutorService ex) {
+      synchronized (state_lock) {
+         if (!closed) {
+            executors.add(ex);
+            return;
+         }
+      }
+      ex.shutdownNow();
+   }
+
+   /**
+    * Register a service in use, to be released when the session
+    * finishes.  If it has already finished, releases it immediately.
+    */
+   void addService(SJService svc) {
+      synchronized (state_lock) {
+         if (!closed) {
+            services.add(svc);
+            return;
+         }
+      }
+      SJService.release(svc);
+   }
+
+   /**
+    * Set the session class and the matching thread priority.  Called
+    * from the tool's main thread before the tool is constructed.
+    * @param inter Interactive?
+    * @param fixed Given explicitly, and so not to be changed later?
+    */
+   public void classify(boolean inter, boolean fixed) {
+      class_fixed = fixed;
+      interactive = inter;
+      group.setMaxPriority(inter ? Thread.MAX_PRIORITY : BATCH_PRIORITY);
+      Thread.currentThread().setPriority(
+         inter ? INTERACTIVE_PRIORITY : BATCH_PRIORITY);
+   }
+
+   /**
+    * Change a batch session to interactive, for example because it
+    * has started managing the console.  Its place in a pool is given
+    * up, and its threads' priorities are raised.  Does nothing if the
+    * class was given explicitly.
+    */
+   public void setInteractive() {
+      SJPool pl;
+      synchronized (state_lock) {
+         if (interactive || class_fixed) return;
+         interactive = true;
+         pl = pool;
+         pool = null;
+      }
+      if (pl != null)
+         pl.release(this);
+      group.setMaxPriority(Thread.MAX_PRIORITY);
+      for (Thread thr : threads())
+         thr.setPriority(INTERACTIVE_PRIORITY);
+   }
+
+   /**
+    * Wait for admission to the given pool, which may be null if the
+    * command is exempt.  Interactive sessions are always admitted
+    * immediately.  The place is released when the session closes.
+    * Throws SJTerminateError if the session is cancelled whilst
+    * waiting.
+    */
+   public void admit(SJPool pool) throws SJTerminateError {
+      if (pool == null || interactive) return;
+      synchronized (state_lock) {
+         exitCheck();
+         this.pool = pool;
+      }
+      try {
+         pool.acquire(this);
+      } catch (InterruptedException e) {
+         exitCheck();
+         do_exit(1);
+      }
+      // Closed by kill() just as the wait finished
+      if (closed) {
+         pool.release(this);
+         throw new SJTerminateError();
+      }
+   }
+
+   /**
+    * Apply resource limits to the session from now on.  See {@link
+    * SJQuota}.
+    */
+   public void limit(SJQuota quota) {
+      quota_start = System.currentTimeMillis();
+      this.quota = quota;
+   }
+
+   /**
+    * Change the session to an 'exiting' state, and throw the
+    * SJTerminateError.
+    */
+   public void do_exit(int status) throws SJTerminateError {
+      terminated = true;
+      exit_status = status;
+      throw new SJTerminateError();
+   }
+
+   /**
+    * Throw SJTerminateError if the tool has terminated or has been
+    * cancelled.  For a batch session, first waits if batch work is
+    * being held up whilst an interactive session renders.
+    */
+   public void exitCheck() throws SJTerminateError {
+      if (pause_until != 0 && !interactive)
+         pause();
+      if (terminated || cancelled || closed)
+         throw new SJTerminateError();
+      if (parent != null)
+         parent.exitCheck();
+   }
+
+   /**
+    * Has cancellation been requested, for this session or for the
+    * session that started it?
+    */
+   public boolean isCancelled() {
+      return cancelled || (parent != null && parent.isCancelled());
+   }
+
+   /**
+    * Wait until batch work is no longer held up.
+    */
+   private static void pause() {
+      synchronized (pause_lock) {
+         while (true) {
+            long until = pause_until;
+            long delay = until - System.currentTimeMillis();
+            if (until == 0 || delay <= 0)
+               return;
+            try {
+               pause_lock.wait(delay);
+            } catch (InterruptedException e) {
+               Thread.currentThread().interrupt();
+               return;
+            }
+         }
+      }
+   }
+
+   /**
+    * Called by an interactive session when it starts work on a new
+    * frame, e.g. on receiving a keypress.  Batch sessions are held
+    * up in {@link #exitCheck} until {@link #renderEnd} is called, or
+    * for at most {@link #render_pause} ms.
+    */
+   public static void renderStart() {
+      if (render_pause > 0)
+         pause_until = System.currentTimeMillis() + render_pause;
+   }
+
+   /**
+    * Called by an interactive session when it has finished rendering
+    * a frame, to release any batch sessions held up.
+    */
+   public static void renderEnd() {
+      if (pause_until != 0) {
+         synchronized (pause_lock) {
+            pause_until = 0;
+            pause_lock.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Exit status to report: the tool's own status, or for a
+    * cancelled session, 128 plus the signal number, as a shell would
+    * report it.
+    */
+   public int getExitStatus() {
+      return cancelled ? 128 + signal : exit_status;
+   }
+
+   /**
+    * Request cancellation following a signal received by the
+    * front-end.  The cancelled flag is set so that {@link
+    * Tool#exitCheck} throws, and all the threads in the session are
+    * interrupted.  If the session hasn't finished after {@link
+    * #cancel_grace} ms, its threads are forcibly stopped and the
+    * session is closed.  A repeated request skips the grace period.
+    * This never waits for output to get through to the front-end, so
+    * it is safe to call from the proxy thread.
+    */
+   public void cancel(int sig) {
+      Thread thr = new Thread("SJReaper " + proxy.id) {
+            public void run() {
+               try {
+                  Thread.sleep(cancel_grace);
+               } catch (InterruptedException e) {}
+               kill();
+            }
+         };
+      thr.setDaemon(true);
+      synchronized (state_lock) {
+         if (closed) return;
+         if (cancelled) {
+            // Have the reaper kill it now
+            reaper.interrupt();
+            return;
+         }
+         signal = sig;
+         cancelled = true;
+         reaper = thr;
+      }
+      log(proxy.id + ": Cancelling " + describe() + " on signal " + sig);
+      thr.start();
+      group.interrupt();
+   }
+
+   /**
+    * Forcibly stop all the threads of the session if it has not
+    * already finished, and close it.  Threads that can't be stopped
+    * are abandoned, and their output discarded.
+    */
+   @SuppressWarnings("deprecation")
+   public void kill() {
+      if (closed) return;
+      Thread[] list = threads();
+      log(proxy.id + ": Forcibly terminating " + describe() +
+          " (" + list.length + " threads)");
+      for (Thread thr : list) {
+         try {
+            thr.stop();
+         } catch (UnsupportedOperationException e) {
+            // Not available on this JVM: leave it running
+         } catch (SecurityException e) {
+            // Leave it running
+         }
+      }
+      finish(getExitStatus());
+   }
+
+   /**
+    * Get the live threads belonging to this session.
+    */
+   public Thread[] threads() {
+      Thread[] list = new Thread[group.activeCount() + 8];
+      int cnt = group.enumerate(list);
+      while (cnt == list.length) {
+         list = new Thread[list.length * 2];
+         cnt = group.enumerate(list);
+      }
+      Thread[] rv = new Thread[cnt];
+      System.arraycopy(list, 0, rv, 0, cnt);
+      return rv;
+   }
+
+   /**
+    * Short description for logging.
+    */
+   public String describe() {
+      Tool tt = tool;
+      return tt == null ? "session" : "'" + tt.cmd + "'";
+   }
+}
@@ -0,0 +1,275 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * CPU time and heap allocation of the threads of a session, i.e. of
+ * its thread group, which includes any threads the tool starts.
+ * Figures come from com.sun.management.ThreadMXBean.  They are
+ * sampled for all running sessions every {@link #INTERVAL} ms, and
+ * exactly by each thread of a tool pool, and the tool's main thread,
+ * as it finishes.  So only threads the tool starts itself which
+ * finish between samples are under-counted, by at most one interval
+ * of their use.  Totals are logged when a session ends, and kept per
+ * command for {@link #describe}.
+ *
+ * <p>A child session (see {@link Tool#runChild}) shares the usage of
+ * its parent, since it runs in the parent's threads.
+ */
+public class SJUsage {
+   /**
+    * Interval between samples of running sessions, in ms.
+    */
+   public static final int INTERVAL = 1000;
+
+   private static final com.sun.management.ThreadMXBean mx;
+   private static final boolean cpu_ok, alloc_ok;
+   static {
+      java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      mx = bean instanceof com.sun.management.ThreadMXBean ?
+         (com.sun.management.ThreadMXBean) bean : null;
+      boolean cpu = false, alloc = false;
+      if (mx != null) {
+         try {
+            cpu = mx.isThreadCpuTimeSupported();
+            if (cpu && !mx.isThreadCpuTimeEnabled())
+               mx.setThreadCpuTimeEnabled(true);
+            alloc = mx.isThreadAllocatedMemorySupported();
+            if (alloc && !mx.isThreadAllocatedMemoryEnabled())
+               mx.setThreadAllocatedMemoryEnabled(true);
+         } catch (UnsupportedOperationException e) {
+            // Go without
+         } catch (SecurityException e) {
+            // Go without
+         }
+      }
+      cpu_ok = cpu;
+      alloc_ok = alloc;
+   }
+
+   private final SJSession session;
+
+   /**
+    * Latest CPU time in ns and allocated bytes of each thread seen,
+    * by thread ID.  Thread IDs aren't reused, so entries for finished
+    * threads just stop changing.
+    */
+   private final Map<Long,long[]> threads = new HashMap<Long,long[]>();
+   private long cpu, alloc;
+
+   SJUsage(SJSession session) {
+      this.session = session;
+   }
+
+   /**
+    * Sample all the live threads of the session.
+    */
+   public void sample() {
+      if (mx == null)
+         return;
+      Thread[] list = session.threads();
+      long[] ids = new long[list.length];
+      for (int a = 0; a<ids.length; a++)
+         ids[a] = list[a].getId();
+      long[] cc = cpu_ok ? mx.getThreadCpuTime(ids) : null;
+      long[] aa = alloc_ok ? mx.getThreadAllocatedBytes(ids) : null;
+      synchronized (this) {
+         for (int a = 0; a<ids.length; a++)
+            update(ids[a], cc == null ? -1 : cc[a], aa == null ? -1 : aa[a]);
+      }
+   }
+
+   /**
+    * Record the final figures for the calling thread, which must
+    * belong to the session and be about to finish.
+    */
+   void sampleCurrent() {
+      if (mx == null)
+         return;
+      long id = Thread.currentThread().getId();
+      long cc = cpu_ok ? mx.getCurrentThreadCpuTime() : -1;
+      long aa = alloc_ok ? mx.getCurrentThreadAllocatedBytes() : -1;
+      synchronized (this) {
+         update(id, cc, aa);
+      }
+   }
+
+   private void update(long id, long cc, long aa) {
+      long[] prev = threads.get(id);
+      if (prev == null)
+         threads.put(id, prev = new long[2]);
+      // -1 means the thread has gone, so keep the last figures
+      if (cc >= prev[0]) {
+         cpu += cc - prev[0];
+         prev[0] = cc;
+      }
+      if (aa >= prev[1]) {
+         alloc += aa - prev[1];
+         prev[1] = aa;
+      }
+   }
+
+   /**
+    * CPU time used so far in ns, or 0 if not available.
+    */
+   public synchronized long cpuTime() {
+      return cpu;
+   }
+
+   /**
+    * Bytes allocated on the heap so far, or 0 if not available.
+    */
+   public synchronized long allocatedBytes() {
+      return alloc;
+   }
+
+   /**
+    * Number of threads that have been seen running in the session.
+    */
+   public synchronized int threadCount() {
+      return threads.size();
+   }
+
+   /**
+    * Short description of the usage so far.
+    */
+   public synchronized String toString() {
+      return String.format("cpu %dms, alloc %dKB, %d threads",
+                           cpu / 1000000, alloc / 1024, threads.size());
+   }
+
+   /**
+    * Get the CPU time in ns and allocated bytes of the given thread
+    * so far, or -1 for each if not available.
+    */
+   public static long[] threadUsage(Thread thr) {
+      long id = thr.getId();
+      return new long[] {
+         cpu_ok ? mx.getThreadCpuTime(id) : -1,
+         alloc_ok ? mx.getThreadAllocatedBytes(id) : -1 };
+   }
+
+   // ------------------------------------------------------------------------
+   // Sampling and totals per command
+   //
+
+   /**
+    * Totals for finished sessions by command: sessions, CPU time in
+    * ns, allocated bytes.  Access synchronized on the map.
+    */
+   private static final Map<String,long[]> by_command = new HashMap<String,long[]>();
+
+   private static Thread sampler;
+
+   /**
+    * Start the thread which samples running sessions and checks them
+    * against their quotas (see {@link SJQuota}), if not already
+    * started.  Called at server start-up.
+    */
+   static synchronized void start() {
+      if (sampler != null)
+         return;
+      sampler = new Thread("SJUsage sampler") {
+            public void run() {
+               while (true) {
+                  try {
+                     Thread.sleep(INTERVAL);
+                  } catch (InterruptedException e) {}
+                  for (SJSession sess : Scramjet.sessions()) {
+                     sess.usage.sample();
+                     SJQuota.check(sess);
+                  }
+               }
+            }
+         };
+      sampler.setDaemon(true);
+      sampler.start();
+   }
+
+   /**
+    * Take the final figures for a session which is finishing, called
+    * from its main thread, and add them to the totals for its
+    * command.
+    */
+   void finish(String cmd) {
+      sampleCurrent();
+      sample();
+      long cc, aa;
+      synchronized (this) {
+         cc = cpu;
+         aa = alloc;
+      }
+      synchronized (by_command) {
+         long[] tot = by_command.get(cmd);
+         if (tot == null)
+            by_command.put(cmd, tot = new long[3]);
+         tot[0]++;
+         tot[1] += cc;
+         tot[2] += aa;
+      }
+   }
+
+   /**
+    * Describe usage: running sessions, and then totals for finished
+    * sessions by command, both with the largest CPU users first.
+    */
+   public static List<String> describe() {
+      List<String> rv = new ArrayList<String>();
+      List<SJSession> sessions = Scramjet.sessions();
+      for (SJSession sess : sessions)
+         sess.usage.sample();
+      Collections.sort(sessions, new Comparator<SJSession>() {
+            public int compare(SJSession aa, SJSession bb) {
+               return Long.compare(bb.usage.cpuTime(), aa.usage.cpuTime());
+            }
+         });
+      long now = System.currentTimeMillis();
+      for (SJSession sess : sessions) {
+         SJUsage uu = sess.usage;
+         rv.add(String.format(
+                   "session %-3d %-12s cpu %6dms  alloc %8dKB  threads %-3d  up %dms",
+                   sess.proxy.id, sess.describe(), uu.cpuTime() / 1000000,
+                   uu.allocatedBytes() / 1024, uu.threadCount(), now - sess.start_time));
+      }
+
+      List<Map.Entry<String,long[]>> list;
+      synchronized (by_command) {
+         list = new ArrayList<Map.Entry<String,long[]>>();
+         for (Map.Entry<String,long[]> ent : by_command.entrySet())
+            list.add(new AbstractMap.SimpleEntry<String,long[]>(ent.getKey(), ent.getValue().clone()));
+      }
+      Collections.sort(list, new Comparator<Map.Entry<String,long[]>>() {
+            public int compare(Map.Entry<String,long[]> aa, Map.Entry<String,long[]> bb) {
+               return Long.compare(bb.getValue()[1], aa.getValue()[1]);
+            }
+         });
+      for (Map.Entry<String,long[]> ent : list) {
+         long[] tot = ent.getValue();
+         rv.add(String.format(
+                   "command %-12s runs %-6d cpu %6dms  alloc %8dKB",
+                   ent.getKey(), tot[0], tot[1] / 1000000, tot[2] / 1024));
+      }
+      return rv;
+   }
+}
@@ -30,6 +30,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import net.uazu.scramjet.agent.ExitAgent;
 import net.uazu.scramjet.nailgun.NGSecurityManager;
 import net.uazu.scramjet.nailgun.ThreadLocalInputStream;
 import net.uazu.scramjet.nailgun.ThreadLocalPrintStream;
@@ -119,6 +120,15 @@ public class Scramjet {
       aliases.put("classpath", "net.uazu.scramjet.tool.SJClasspath");
       aliases.put("alias", "net.uazu.scramjet.tool.SJAlias");
       aliases.put("threads", "net.uazu.scramjet.tool.SJThreads");
+      aliases.put("stats", "net.uazu.scramjet.tool.SJStats");
+      aliases.put("find", "net.uazu.scramjet.tool.SJFind");
+      aliases.put("grep", "net.uazu.scramjet.tool.SJGrep");
+      aliases.put("javac", "net.uazu.scramjet.tool.SJJavac");
+      aliases.put("parallel", "net.uazu.scramjet.tool.SJParallel");
+      aliases.put("watch", "net.uazu.scramjet.tool.SJWatch");
+      aliases.put("prof", "net.uazu.scramjet.tool.SJProf");
+      aliases.put("top", "net.uazu.scramjet.tool.SJTop");
+      aliases.put("attach", "net.uazu.scramjet.tool.SJAttach");
    }
    
    /**
@@ -139,6 +149,11 @@ public class Scramjet {
             if (pr.last_active > last_active)
                last_active = pr.last_active;
          }
+         // Detached sessions are still running
+         if (!SJSession.detached().isEmpty()) {
+            all_sleeping = false;
+            last_active = now;
+         }
          long timeout = last_active + 60000 * idle_timeout;
          if (timeout < now && all_sleeping)
             shutdown();
@@ -189,8 +204,23 @@ public class Scramjet {
       old_stdin = System.in;
       old_stdout = System.out;
       old_stderr = System.err;
-      old_sm = System.getSecurityManager();
-      System.setSecurityManager(new NGSecurityManager(old_sm));
+      if (ExitAgent.isActive()) {
+         log("Trapping tool exit calls with ExitAgent");
+      } else {
+         // Fall back to a SecurityManager, which costs a permission
+         // check on every file open, class load, etc
+         try {
+            old_sm = System.getSecurityManager();
+            System.setSecurityManager(new NGSecurityManager(old_sm));
+            sm_installed = true;
+            log("Trapping tool exit calls with NGSecurityManager");
+         } catch (UnsupportedOperationException e) {
+            log("WARNING: Unable to trap tool exit calls: System.exit() " +
+                "will stop the server.  Start the server with " +
+                "\"java -jar scramjet.jar\" or " +
+                "\"-javaagent:scramjet.jar\" to fix this.");
+         }
+      }
       System.setIn(new ThreadLocalInputStream(System.in));
       System.setOut(new ThreadLocalPrintStream(System.out));
       System.setErr(new ThreadLocalPrintStream(System.err));
@@ -209,6 +239,8 @@ public class Scramjet {
             }
          });
       
+      SJUsage.start();
+
       // Set up a proxy thread for first named pipe
       addProxy(0);
    }
@@ -238,17 +270,38 @@ public class Scramjet {
     * exception, so we have to cope with that.
     */
    public static void ensureProxiesRunning() {
-      int len = proxies.size();
-      for (int a = 0; a<len; a++) {
-         SJProxy sjp = proxies.get(a);
-         if (sjp != null && !sjp.isAlive()) {
-            synchronized(proxies) {
+      // Hold the lock throughout, otherwise a proxy which addProxy()
+      // has not yet started looks dead
+      synchronized(proxies) {
+         int len = proxies.size();
+         for (int a = 0; a<len; a++) {
+            SJProxy sjp = proxies.get(a);
+            if (sjp != null && !sjp.isAlive())
                proxies.set(a, sjp.restart());
-            }
          }
       }
    }
 
+   /**
+    * Get the sessions currently running: at most one per proxy, and
+    * then any detached from their front-ends (see {@link
+    * SJSession#detach}).
+    */
+   public static List<SJSession> sessions() {
+      List<SJSession> rv = new ArrayList<SJSession>();
+      synchronized(proxies) {
+         for (SJProxy sjp : proxies) {
+            SJSession sess = sjp == null ? null : sjp.session;
+            if (sess != null && !sess.closed)
+               rv.add(sess);
+         }
+      }
+      for (SJSession sess : SJSession.detached())
+         if (!sess.closed && !rv.contains(sess))
+            rv.add(sess);
+      return rv;
+   }
+
    /**
     * Write a message to the log output.
     */
@@ -324,7 +377,8 @@ public class Scramjet {
       System.setIn(old_stdin);
       System.setOut(old_stdout);
       System.setErr(old_stderr);
-      System.setSecurityManager(old_sm);
+      if (sm_installed)
+         System.setSecurityManager(old_sm);
       
       System.exit(0);
    }
@@ -381,6 +435,12 @@ public class Scramjet {
     */
    private static SecurityManager old_sm;
 
+   /**
+    * Was NGSecurityManager installed, i.e. is the ExitAgent not
+    * active?
+    */
+   private static boolean sm_installed;
+
    /**
     * Original System.in stream.
     */
@@ -444,6 +504,42 @@ public class Scramjet {
     */
    public static Map<String,String> aliases = new HashMap<String,String>();
 
+   /**
+    * Session class for aliases which have one given explicitly: true
+    * for interactive, false for batch.  See {@link
+    * SJSession#interactive}.
+    */
+   public static Map<String,Boolean> alias_interactive = new HashMap<String,Boolean>();
+
+   /**
+    * Define an alias, from a spec of the form "&lt;classname&gt;
+    * [interactive|batch]".
+    * @return null on success, or else an error message
+    */
+   public static String setAlias(String alias, String spec) {
+      String[] arr = spec.trim().split("\\s+");
+      if (arr.length > 2 || arr.length == 2 &&
+          !arr[1].equals("interactive") && !arr[1].equals("batch"))
+         return "Invalid alias definition: " + alias + "=" + spec;
+      aliases.put(alias, arr[0]);
+      if (arr.length == 2)
+         alias_interactive.put(alias, arr[1].equals("interactive"));
+      else
+         alias_interactive.remove(alias);
+      return null;
+   }
+
+   /**
+    * Class name for a command: the class its alias gives, or else
+    * the command itself, which may be given path-like with '/' in
+    * place of '.'.
+    */
+   public static String toolClassName(String cmd) {
+      String alias = aliases.get(cmd);
+      if (alias != null) cmd = alias;
+      return cmd.replace("/", ".");
+   }
+
    /**
     * Idle-checking thread, or null
     */
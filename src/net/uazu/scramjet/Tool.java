@@ -14,10 +14,20 @@
 
 package net.uazu.scramjet;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
 
 import net.uazu.scramjet.SJProxy.RunResult;
 
@@ -35,6 +45,26 @@ public abstract class Tool {
     */
    private final SJProxy proxy;
    
+   /**
+    * Session that this tool runs in.
+    */
+   private final SJSession session;
+
+   /**
+    * Session-aware executors and task wrappers.
+    */
+   private final SJExecutors executors;
+
+   /**
+    * Fast writers for stdout and stderr, created when first used.
+    */
+   private ToolWriter out, err;
+
+   /**
+    * Publisher for stdin, created when first used.
+    */
+   private SJFlow.StdinPublisher stdin_pub;
+
    /**
     * Command-line arguments.
     */
@@ -78,6 +108,7 @@ public abstract class Tool {
     */
    public Tool(SJContext sjc) {
       proxy = sjc.proxy;
+      session = sjc.session;
       args = sjc.args;
       env = sjc.env;
       cwd = sjc.cwd;
@@ -85,6 +116,7 @@ public abstract class Tool {
       stdin = sjc.stdin;
       stdout = sjc.stdout;
       stderr = sjc.stderr;
+      executors = new SJExecutors(this, session);
    }
 
    /**
@@ -207,10 +239,7 @@ public abstract class Tool {
     * character-set conversion and buffering of 'stdout' stream.
     */
    public final void writeOut(byte[] data, int count) {
-      if (proxy.curr_tool == this) {
-         proxy.writer.write("1%t", data, count);
-         proxy.writer.flush();
-      }
+      session.write("1%t", data, count);
    }
 
    /**
@@ -218,10 +247,7 @@ public abstract class Tool {
     * character-set conversion and buffering of 'stderr' stream.
     */
    public final void writeErr(byte[] data, int count) {
-      if (proxy.curr_tool == this) {
-         proxy.writer.write("2%t", data, count);
-         proxy.writer.flush();
-      }
+      session.write("2%t", data, count);
    }
 
    /**
@@ -256,25 +282,42 @@ public abstract class Tool {
     * and more direct than doing System.exit(status).
     */
    public final void exit(int status) throws SJTerminateError {
-      proxy.do_exit(this, status);
+      session.do_exit(status);
    }
 
    /**
-    * Test to see whether this Tool has terminated, and throw
-    * SJTerminateError if it has.  If this Tool starts extra threads,
-    * they should check from time to time by calling this method to
-    * see if the parent Tool has finished.  The Tool could die at any
-    * point if the front-end is terminated, leaving its threads
-    * running, and there is no mechanism available in Java to clean
-    * them up.  So they must check themselves and terminate
-    * gracefully.  You can check for runaway threads with the {@link
-    * tool.SJThreads} tool.  The SJTerminateError thrown is an Error
-    * and is intended to bypass all catch clauses and terminate the
-    * thread.
+    * Test to see whether this Tool has terminated or been cancelled,
+    * and throw SJTerminateError if it has.  If this Tool starts extra
+    * threads, they should check from time to time by calling this
+    * method to see if the parent Tool has finished.  When the user
+    * interrupts the front-end (e.g. with ^C), all the tool's threads
+    * are interrupted and this method starts throwing, but if they
+    * don't finish within the grace period they are forcibly stopped,
+    * which may leave shared data in an inconsistent state.  So they
+    * should check and terminate gracefully.  You can check for
+    * runaway threads with the {@link tool.SJThreads} tool.  The
+    * SJTerminateError thrown is an Error and is intended to bypass
+    * all catch clauses and terminate the thread.
     */
    public final void exitCheck() throws SJTerminateError {
-      if (proxy.curr_tool != this || proxy.terminated)
-         throw new SJTerminateError();
+      session.exitCheck();
+   }
+
+   /**
+    * Test whether the front-end has requested cancellation of this
+    * Tool, for example because the user pressed ^C.  Long-running
+    * loops may check this to clean up before calling {@link
+    * #exitCheck}.
+    */
+   public final boolean isCancelled() {
+      return session.isCancelled();
+   }
+
+   /**
+    * Get the session that this tool runs in.
+    */
+   protected final SJSession session() {
+      return session;
    }
 
 //   /**
@@ -296,6 +339,280 @@ public abstract class Tool {
       return proxy.system(cmd);
    }
    
+   /**
+    * Get the fast writer for standard output, which formats text and
+    * numbers straight into a reusable buffer.  See {@link ToolWriter}.
+    * Buffered output is sent when the tool finishes, or on flush().
+    */
+   public final synchronized ToolWriter out() {
+      if (out == null)
+         out = new ToolWriter(session, "1", stdout);
+      return out;
+   }
+
+   /**
+    * Get the fast writer for standard error.  See {@link #out}.
+    */
+   public final synchronized ToolWriter err() {
+      if (err == null)
+         err = new ToolWriter(session, "2", stderr);
+      return err;
+   }
+
+   /**
+    * Flush the fast writers, if used.
+    */
+   final synchronized void flushWriters() {
+      if (err != null)
+         err.flush();
+      if (out != null)
+         out.flush();
+   }
+
+   /**
+    * Get a Flow publisher of stdin data, which delivers data as it
+    * arrives and as the subscriber requests it, without a thread
+    * waiting on stdin.  It accepts one subscriber, and stdin must not
+    * also be read directly.  See {@link SJFlow}.
+    */
+   public final synchronized Flow.Publisher<ByteBuffer> stdinPublisher() {
+      if (stdin_pub == null) {
+         if (!(stdin instanceof SJInputStream))
+            throw new UnsupportedOperationException("No front-end stdin");
+         stdin_pub = new SJFlow.StdinPublisher(this, (SJInputStream) stdin, session);
+      }
+      return stdin_pub;
+   }
+
+   /**
+    * Get a new Flow subscriber which writes to stdout, requesting more
+    * data only as the front-end keeps up.  Data goes directly to the
+    * front-end, so flush stdout and {@link #out} first if they have
+    * been used.  See {@link SJFlow}.
+    */
+   public final SJFlow.Sink stdoutSubscriber() {
+      return new SJFlow.Sink(session, "1%t");
+   }
+
+   /**
+    * Get a new Flow subscriber which writes to stderr.  See {@link
+    * #stdoutSubscriber}.
+    */
+   public final SJFlow.Sink stderrSubscriber() {
+      return new SJFlow.Sink(session, "2%t");
+   }
+
+   /**
+    * Create a fixed-size thread pool whose threads have this tool's
+    * System.* streams and System.exit() handling, like threads
+    * started directly by the tool.  The pool is shut down when the
+    * tool finishes or is cancelled.  See {@link SJExecutors}.
+    * @param threads Number of threads, or 0 for one per processor,
+    * less one for a batch session
+    */
+   public final ExecutorService newThreadPool(int threads) {
+      return executors.newThreadPool(threads);
+   }
+
+   /**
+    * Create a ForkJoinPool whose threads have this tool's context.
+    * Parallel streams started from within a task on this pool run
+    * on the pool.  The pool is shut down when the tool finishes or
+    * is cancelled.  See {@link SJExecutors}.
+    * @param parallelism Number of threads, or 0 for one per
+    * processor, less one for a batch session
+    */
+   public final ForkJoinPool newForkJoinPool(int parallelism) {
+      return executors.newForkJoinPool(parallelism);
+   }
+
+   /**
+    * Wrap a task to run with this tool's context on some other
+    * executor, e.g. one shared between tools.
+    */
+   public final Runnable wrap(Runnable task) {
+      return executors.wrap(task);
+   }
+
+   /**
+    * Wrap a task to run with this tool's context on some other
+    * executor, e.g. one shared between tools.
+    */
+   public final <T> Callable<T> wrap(Callable<T> task) {
+      return executors.wrap(task);
+   }
+
+   /**
+    * Look up the constructor of a tool to run with {@link #runChild},
+    * given as a command with or without the "sj-" prefix, an alias or
+    * a class name.  Reports an error and exits if there is no such
+    * tool, or if it is a console tool, since that needs the
+    * front-end's terminal.
+    */
+   public final Constructor<? extends Tool> childConstructor(String name) {
+      String cname = Scramjet.toolClassName(name.startsWith("sj-") ? name.substring(3) : name);
+      Class<?> clas = null;
+      try {
+         clas = Class.forName(cname);
+      } catch (ClassNotFoundException e) {
+         error("sj-%s: Class or alias not found: %s", cmd, name);
+      }
+      if (!Tool.class.isAssignableFrom(clas))
+         error("sj-%s: Class isn't subclass of Tool: %s", cmd, cname);
+      if (ConsoleTool.class.isAssignableFrom(clas))
+         error("sj-%s: Can't run a console tool: %s", cmd, cname);
+      try {
+         return clas.asSubclass(Tool.class).getConstructor(SJContext.class);
+      } catch (NoSuchMethodException e) {
+         error("sj-%s: Constructor not found: new %s(SJContext)", cmd, cname);
+         return null;
+      }
+   }
+
+   /**
+    * Run another tool in-process on the calling thread, in a child
+    * session of this tool's session.  It gets the given arguments,
+    * this tool's environment and current directory, and empty stdin.
+    * Its output is held in memory until written out with {@link
+    * SJSession#emit}.  Its exit, whether by exit(), System.exit(), an
+    * exception or returning, ends only the child, but if this tool
+    * is cancelled, so is the child.  May be called from several
+    * threads at once, e.g. from a pool from {@link #newThreadPool}.
+    * The tool shouldn't use modules, since they act on this tool's
+    * front-end.
+    * @param cons Constructor of the tool class, from {@link
+    * #childConstructor}
+    * @param cmd Command name for the tool to see
+    * @return The finished child session, giving the exit status
+    */
+   public final SJSession runChild(Constructor<? extends Tool> cons,
+                                   String cmd, String[] args) {
+      return runChild(cons, cmd, args, null);
+   }
+
+   /**
+    * Run another tool in-process as for {@link #runChild(Constructor,
+    * String, String[])}, telling it which files have changed since
+    * its previous run, through {@link #changedFiles}.
+    * @param changed Files changed, or null if not known
+    */
+   public final SJSession runChild(Constructor<? extends Tool> cons,
+                                   String cmd, String[] args, List<File> changed) {
+      SJSession sess = new SJSession(session);
+      sess.thread = Thread.currentThread();
+      sess.changed = changed;
+      PrintStream out = new PrintStream(
+         new SJOutputStream(sess, "1%t"), true, Scramjet.charset);
+      PrintStream err = new PrintStream(
+         new SJOutputStream(sess, "2%t"), true, Scramjet.charset);
+      SJContext sjc = new SJContext(
+         new SJContext(proxy, args, env, cwd, cmd), sess,
+         new ByteArrayInputStream(new byte[0]), out, err);
+
+      Throwable dump = null;
+      try {
+         final Tool tool = cons.newInstance(sjc);
+         sess.tool = tool;
+         tool.wrap(new Callable<Void>() {
+               public Void call() throws Exception {
+                  tool.run();
+                  return null;
+               }
+            }).call();
+      } catch (SJTerminateError e) {
+         // Okay
+      } catch (InvocationTargetException e) {
+         if (!(e.getCause() instanceof SJTerminateError))
+            dump = e.getCause();
+      } catch (Throwable t) {
+         dump = t;
+      }
+      if (dump != null && !sess.isCancelled())
+         sess.exit_status = 1;
+      else
+         dump = null;
+
+      sess.terminated = true;
+      err.flush();
+      out.flush();
+      if (sess.tool != null)
+         sess.tool.flushWriters();
+      while (dump != null) {
+         dump.printStackTrace(err);
+         dump = dump.getCause();
+      }
+      err.flush();
+      sess.finish(sess.getExitStatus());
+      return sess;
+   }
+
+   /**
+    * Files changed since this tool's previous run, when it is re-run
+    * on changes by sj-watch, or null if not known, e.g. on the first
+    * run.  A tool may use this to redo only the work that depends on
+    * those files, if it keeps its results from run to run, e.g. in a
+    * {@link SJService}.  Otherwise it should do the full work.
+    */
+   public final List<File> changedFiles() {
+      return session.changed;
+   }
+
+   /**
+    * Resolve a path given by the user, taking relative paths
+    * relative to the command's current directory.
+    */
+   public final File file(String path) {
+      File file = new File(path);
+      return file.isAbsolute() ? file : new File(cwd, path);
+   }
+
+   /**
+    * Get the contents of a file via the server-wide {@link
+    * SJFileCache}, so that unchanged files are only read once across
+    * invocations.  Relative paths are relative to the command's
+    * current directory.
+    * @return Read-only buffer of the whole contents
+    */
+   public final ByteBuffer readFile(String path) throws IOException {
+      return SJFileCache.read(file(path));
+   }
+
+   /**
+    * Get a value parsed from a file via the server-wide {@link
+    * SJFileCache}, so that unchanged files are only read and parsed
+    * once across invocations.  The value may be shared with other
+    * sessions, so must not be modified.  Relative paths are relative
+    * to the command's current directory.
+    */
+   public final <T> T readFile(String path, SJFileCache.Parser<T> parser)
+      throws IOException {
+      return SJFileCache.get(file(path), parser);
+   }
+
+   /**
+    * Get the shared instance of a resident service, starting it if
+    * necessary.  The instance remains valid for use until this tool
+    * finishes, even if the service is invalidated meanwhile.  See
+    * {@link SJService}.
+    */
+   public final <T extends SJService> T service(Class<T> clas) throws Exception {
+      T svc = SJService.get(clas, session.group.getParent());
+      session.addService(svc);
+      return svc;
+   }
+
+   /**
+    * Declare a file that the output depends on, for a tool marked
+    * with {@link SJMemoize}.  The stored result is only replayed
+    * whilst the file is unchanged, or still missing if it is missing
+    * now.  Does nothing for other tools.
+    */
+   public final void memoDepends(File file) {
+      SJMemoCache.Recorder rec = session.recorder;
+      if (rec != null)
+         rec.depend(file);
+   }
+
    /**
     * Add a module to this session.  A module communicates with the C
     * front-end to give access to additional facilities.  See for
@@ -305,5 +622,17 @@ public abstract class Tool {
    public final void useModule(SJModule mod) {
       proxy.useModule(mod);
    }
+
+   /**
+    * Attach a detached session to this tool's front-end, which then
+    * serves both (see {@link SJSession#attach}).  The tool should wait
+    * until that session finishes, and detach it again if this tool is
+    * cancelled first.
+    * @return The session attached, or null if there is no detached
+    * session with that number, or it is already attached elsewhere
+    */
+   public final SJSession attach(int id) {
+      return SJSession.attach(id, session);
+   }
 }
       
@@ -0,0 +1,430 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet;
+
+import java.io.PrintStream;
+
+/**
+ * Fast output for tools that generate a lot of text, obtained from
+ * {@link Tool#out} or {@link Tool#err}.  Text and numbers are
+ * encoded straight into a reusable byte buffer, which is sent to the
+ * front-end as-is when full or when flushed, so that once the buffer
+ * is allocated there is no further allocation: no Formatter, no
+ * boxing, no intermediate Strings and no charset encoder.  For
+ * example the equivalent of printf("%8d%8d\n", a, b) is:
+ *
+ * <pre>
+ * out().append(a, 8).append(b, 8).newline();
+ * </pre>
+ *
+ * <p>Characters are encoded as UTF-8.  The ascii() methods are
+ * quicker for text known to be plain ASCII.  A ToolWriter is not
+ * thread-safe, so only use it from one thread at a time.  Output
+ * written through the tool's PrintStream is flushed ahead of each
+ * buffer sent, but anything written to the PrintStream after the
+ * last flush() of the ToolWriter comes out before the ToolWriter's
+ * pending output at the end of the tool.  The buffer is flushed
+ * automatically when the tool finishes.
+ */
+public class ToolWriter implements Appendable {
+   private static final int HEAD = MsgWriter.TAIL_HEADROOM;
+   private static final int SIZE = 16384;
+   private static final long[] POW10 = {
+      1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 10000000L,
+      100000000L, 1000000000L
+   };
+
+   private final SJSession session;
+   private final String prefix;
+   private final PrintStream stream;
+   private byte[] buf = new byte[HEAD + SIZE];
+   private int pos = HEAD;
+
+   /**
+    * Construct a ToolWriter.
+    * @param prefix "1" for STDOUT, "2" for STDERR
+    * @param stream PrintStream for the same output, to flush first
+    */
+   ToolWriter(SJSession session, String prefix, PrintStream stream) {
+      this.session = session;
+      this.prefix = prefix;
+      this.stream = stream;
+   }
+
+   /**
+    * Construct a ToolWriter which collects output in memory, growing
+    * as necessary, until moved to another writer with {@link
+    * #moveTo}.  Used for the per-chunk output of {@link
+    * ParallelTool}.
+    */
+   ToolWriter() {
+      this(null, null, null);
+   }
+
+   /**
+    * Make space for 'len' more bytes, sending the buffer if
+    * necessary.
+    */
+   private void space(int len) {
+      if (pos + len <= buf.length)
+         return;
+      if (session == null) {
+         byte[] tmp = new byte[Math.max(buf.length * 2, pos + len)];
+         System.arraycopy(buf, 0, tmp, 0, pos);
+         buf = tmp;
+         return;
+      }
+      flush();
+      if (HEAD + len > buf.length)
+         buf = new byte[HEAD + len];
+   }
+
+   /**
+    * Send any buffered output to the front-end.
+    */
+   public void flush() {
+      if (pos == HEAD || session == null)
+         return;
+      stream.flush();
+      session.writeTail(prefix, buf, HEAD, pos - HEAD);
+      pos = HEAD;
+   }
+
+   /**
+    * Move the output collected by an in-memory writer to the end of
+    * another writer, leaving this one empty.
+    */
+   void moveTo(ToolWriter dest) {
+      dest.append(buf, HEAD, pos - HEAD);
+      pos = HEAD;
+   }
+
+   /**
+    * Append a newline.
+    */
+   public ToolWriter newline() {
+      space(1);
+      buf[pos++] = '\n';
+      return this;
+   }
+
+   /**
+    * Append a character, encoded as UTF-8.  A lone surrogate is
+    * written as '?'.
+    */
+   public ToolWriter append(char ch) {
+      space(3);
+      if (ch < 0x80) {
+         buf[pos++] = (byte) ch;
+      } else if (ch < 0x800) {
+         buf[pos++] = (byte) (0xC0 | (ch >> 6));
+         buf[pos++] = (byte) (0x80 | (ch & 63));
+      } else if (Character.isSurrogate(ch)) {
+         buf[pos++] = '?';
+      } else {
+         put3(ch);
+      }
+      return this;
+   }
+
+   private void put3(int ch) {
+      buf[pos++] = (byte) (0xE0 | (ch >> 12));
+      buf[pos++] = (byte) (0x80 | ((ch >> 6) & 63));
+      buf[pos++] = (byte) (0x80 | (ch & 63));
+   }
+
+   /**
+    * Append text, encoded as UTF-8.  Null appends "null".
+    */
+   public ToolWriter append(CharSequence str) {
+      if (str == null)
+         str = "null";
+      return append(str, 0, str.length());
+   }
+
+   /**
+    * Append part of some text, encoded as UTF-8.
+    */
+   public ToolWriter append(CharSequence str, int start, int end) {
+      if (str == null)
+         str = "null";
+      for (int a = start; a<end; a++) {
+         char ch = str.charAt(a);
+         if (ch < 0x80) {
+            if (pos == buf.length)
+               space(1);
+            buf[pos++] = (byte) ch;
+         } else if (Character.isHighSurrogate(ch) && a+1 < end &&
+                    Character.isLowSurrogate(str.charAt(a+1))) {
+            int cp = Character.toCodePoint(ch, str.charAt(++a));
+            space(4);
+            buf[pos++] = (byte) (0xF0 | (cp >> 18));
+            buf[pos++] = (byte) (0x80 | ((cp >> 12) & 63));
+            buf[pos++] = (byte) (0x80 | ((cp >> 6) & 63));
+            buf[pos++] = (byte) (0x80 | (cp & 63));
+         } else {
+            append(ch);
+         }
+      }
+      return this;
+   }
+
+   /**
+    * Append text, padded with spaces to the given width.  A positive
+    * width right-justifies and a negative width left-justifies, as
+    * for "%10s" and "%-10s".  Longer text is not truncated.  Width is
+    * counted in chars.
+    */
+   public ToolWriter append(CharSequence str, int width) {
+      if (str == null)
+         str = "null";
+      int pad = Math.abs(width) - str.length();
+      if (width > 0)
+         spaces(pad);
+      append(str);
+      if (width < 0)
+         spaces(pad);
+      return this;
+   }
+
+   /**
+    * Append text which is known to be ASCII, or at least ISO-8859-1,
+    * as one byte per char.
+    */
+   @SuppressWarnings("deprecation")
+   public ToolWriter ascii(String str) {
+      int len = str.length();
+      for (int off = 0; off < len; ) {
+         space(1);
+         int cnt = Math.min(len - off, buf.length - pos);
+         str.getBytes(off, off + cnt, buf, pos);
+         pos += cnt;
+         off += cnt;
+      }
+      return this;
+   }
+
+   /**
+    * Append text which is known to be ASCII, or at least ISO-8859-1,
+    * as one byte per char.
+    */
+   public ToolWriter ascii(CharSequence str) {
+      int len = str.length();
+      for (int a = 0; a<len; a++) {
+         if (pos == buf.length)
+            space(1);
+         buf[pos++] = (byte) str.charAt(a);
+      }
+      return this;
+   }
+
+   /**
+    * Append raw bytes, e.g. a line passed to {@link LineTool#line}.
+    */
+   public ToolWriter append(byte[] data, int off, int len) {
+      while (len > 0) {
+         space(1);
+         int cnt = Math.min(len, buf.length - pos);
+         System.arraycopy(data, off, buf, pos, cnt);
+         pos += cnt;
+         off += cnt;
+         len -= cnt;
+      }
+      return this;
+   }
+
+   /**
+    * Append 'count' spaces (none if count is zero or negative).
+    */
+   public ToolWriter spaces(int count) {
+      return repeat(' ', count);
+   }
+
+   /**
+    * Append an ASCII character 'count' times.
+    */
+   public ToolWriter repeat(char ch, int count) {
+      while (count > 0) {
+         space(1);
+         int cnt = Math.min(count, buf.length - pos);
+         for (int a = 0; a<cnt; a++)
+            buf[pos++] = (byte) ch;
+         count -= cnt;
+      }
+      return this;
+   }
+
+   /**
+    * Append an integer in decimal, as for "%d".
+    */
+   public ToolWriter append(int val) {
+      return append((long) val);
+   }
+
+   /**
+    * Append an integer in decimal, as for "%d".
+    */
+   public ToolWriter append(long val) {
+      space(20);
+      if (val < 0)
+         buf[pos++] = '-';
+      put_digits(val, digits(val));
+      return this;
+   }
+
+   /**
+    * Append an integer in decimal padded with spaces to the given
+    * width.  A positive width right-justifies and a negative width
+    * left-justifies, as for "%8d" and "%-8d".
+    */
+   public ToolWriter append(long val, int width) {
+      int dig = digits(val);
+      int len = dig + (val < 0 ? 1 : 0);
+      int pad = Math.abs(width) - len;
+      if (width > 0)
+         spaces(pad);
+      space(20);
+      if (val < 0)
+         buf[pos++] = '-';
+      put_digits(val, dig);
+      if (width < 0)
+         spaces(pad);
+      return this;
+   }
+
+   /**
+    * Append an integer in decimal padded with leading zeros to the
+    * given width, as for "%08d".
+    */
+   public ToolWriter appendZero(long val, int width) {
+      int dig = digits(val);
+      space(20);
+      if (val < 0) {
+         buf[pos++] = '-';
+         width--;
+      }
+      repeat('0', width - dig);
+      space(20);
+      put_digits(val, dig);
+      return this;
+   }
+
+   /**
+    * Append a number with a fixed number of decimal places, as for
+    * "%.2f".  Very large values, NaN, infinities, and more than 9
+    * places fall back to String.format().
+    */
+   public ToolWriter appendFixed(double val, int places) {
+      if (!fast_fixed(val, places))
+         return ascii(slow_fixed(val, places));
+      long scale = POW10[places];
+      long num = Math.round(Math.abs(val) * scale);
+      if (val < 0 || (val == 0 && 1 / val < 0))
+         append('-');
+      append(num / scale);
+      if (places > 0) {
+         append('.');
+         appendZero(num % scale, places);
+      }
+      return this;
+   }
+
+   /**
+    * Append a number with a fixed number of decimal places, padded
+    * with spaces to the given width, as for "%8.2f" or "%-8.2f".
+    */
+   public ToolWriter appendFixed(double val, int places, int width) {
+      if (width == 0)
+         return appendFixed(val, places);
+      if (!fast_fixed(val, places))
+         return append(slow_fixed(val, places), width);
+      // Format at the end of the buffer, then move it as necessary
+      space(Math.abs(width) + 40);
+      int start = pos;
+      appendFixed(val, places);
+      int len = pos - start;
+      int pad = Math.abs(width) - len;
+      if (pad > 0) {
+         if (width > 0) {
+            System.arraycopy(buf, start, buf, start + pad, len);
+            for (int a = 0; a<pad; a++)
+               buf[start + a] = ' ';
+            pos += pad;
+         } else {
+            spaces(pad);
+         }
+      }
+      return this;
+   }
+
+   private static boolean fast_fixed(double val, int places) {
+      return places >= 0 && places < POW10.length &&
+         Math.abs(val) < 1e15 / POW10[places];
+   }
+
+   private static String slow_fixed(double val, int places) {
+      return String.format("%." + Math.max(0, places) + "f", val);
+   }
+
+   /**
+    * Append an integer in hex, lower case, as for "%x".
+    */
+   public ToolWriter hex(long val) {
+      return hex(val, 1);
+   }
+
+   /**
+    * Append an integer in hex, lower case, zero-padded to at least
+    * the given number of digits, as for "%08x".
+    */
+   public ToolWriter hex(long val, int width) {
+      int dig = 1;
+      while (dig < 16 && (val >>> (4 * dig)) != 0)
+         dig++;
+      repeat('0', width - dig);
+      space(16);
+      for (int a = dig - 1; a >= 0; a--)
+         buf[pos++] = (byte) "0123456789abcdef".charAt((int) (val >>> (4 * a)) & 15);
+      return this;
+   }
+
+   /**
+    * Number of decimal digits in the absolute value.
+    */
+   private static int digits(long val) {
+      // Work with negative numbers to cope with Long.MIN_VALUE
+      if (val > 0)
+         val = -val;
+      int dig = 1;
+      for (long lim = -10; dig < 19 && val <= lim; lim *= 10)
+         dig++;
+      return dig;
+   }
+
+   /**
+    * Write the digits of the absolute value.  Space must already be
+    * available.
+    */
+   private void put_digits(long val, int dig) {
+      if (val > 0)
+         val = -val;
+      int end = pos + dig;
+      for (int a = end - 1; a >= pos; a--) {
+         buf[a] = (byte) ('0' - (val % 10));
+         val /= 10;
+      }
+      pos = end;
+   }
+}
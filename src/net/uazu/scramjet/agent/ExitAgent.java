@@ -0,0 +1,94 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.security.ProtectionDomain;
+
+/**
+ * Java agent which redirects System.exit(), Runtime.exit() and
+ * Runtime.halt() calls in loaded classes to {@link ExitHook}, so that
+ * a tool calling System.exit() just exits the tool.  This replaces
+ * installing {@link net.uazu.scramjet.nailgun.NGSecurityManager},
+ * which makes every file open, reflective access and class load in
+ * the JVM go through permission checks, and which is not available
+ * at all on newer JDKs.
+ *
+ * <p>The agent is declared in the scramjet.jar manifest as both
+ * Launcher-Agent-Class, so that it is started automatically with
+ * "java -jar scramjet.jar" on Java 9 and later, and as
+ * Premain-Class, for use with "-javaagent:scramjet.jar" otherwise.
+ * If it isn't running, the server falls back to the security
+ * manager.
+ *
+ * <p>See {@link ExitRewriter} for how the classes are changed.
+ */
+public class ExitAgent implements ClassFileTransformer {
+   private static volatile boolean active = false;
+
+   /**
+    * Package prefixes of classes which are never rewritten.
+    */
+   private static final String[] SKIP = {
+      "java/", "javax/", "jdk/", "sun/", "com/sun/",
+      "net/uazu/scramjet/agent/"
+   };
+
+   private final ClassLoader hook_loader = ExitHook.class.getClassLoader();
+
+   public static void premain(String args, Instrumentation inst) {
+      inst.addTransformer(new ExitAgent());
+      active = true;
+   }
+
+   public static void agentmain(String args, Instrumentation inst) {
+      premain(args, inst);
+   }
+
+   /**
+    * Test whether the agent is installed.
+    */
+   public static boolean isActive() {
+      return active;
+   }
+
+   public byte[] transform(ClassLoader loader, String name, Class<?> redefined,
+                           ProtectionDomain domain, byte[] data) {
+      if (loader == null || name == null || !sees_hook(loader))
+         return null;
+      for (String pre : SKIP)
+         if (name.startsWith(pre))
+            return null;
+      try {
+         return ExitRewriter.rewrite(data);
+      } catch (RuntimeException e) {
+         // Unexpected class file structure; leave it alone rather
+         // than stop the class from loading
+         return null;
+      }
+   }
+
+   /**
+    * Test whether classes in the loader can link to ExitHook, i.e.
+    * that it is the hook's loader or one of its descendants.
+    */
+   private boolean sees_hook(ClassLoader loader) {
+      for (ClassLoader cl = loader; cl != null; cl = cl.getParent())
+         if (cl == hook_loader)
+            return true;
+      return false;
+   }
+}
@@ -0,0 +1,75 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.agent;
+
+import net.uazu.scramjet.Tool;
+
+/**
+ * Replacement for System.exit(), Runtime.exit() and Runtime.halt()
+ * within tools.  Calls to those methods are redirected here by
+ * {@link ExitAgent}, or else the same methods are reached via
+ * checkExit() in {@link net.uazu.scramjet.nailgun.NGSecurityManager}.
+ * A thread running a tool (or started from one) has the tool bound,
+ * and exits just that tool.  Any other thread exits the JVM as
+ * normal.
+ */
+public class ExitHook {
+   private static final ThreadLocal<Tool> TOOL = new InheritableThreadLocal<Tool>();
+
+   /**
+    * Bind the tool for the current thread and any threads it
+    * starts.
+    */
+   public static void setTool(Tool tool) {
+      TOOL.set(tool);
+   }
+
+   /**
+    * Get the tool bound to the current thread, or null.
+    */
+   public static Tool getTool() {
+      return TOOL.get();
+   }
+
+   /**
+    * Replaces System.exit(int).
+    */
+   public static void exit(int status) {
+      Tool tool = TOOL.get();
+      if (tool != null)
+         tool.exit(status);
+      Runtime.getRuntime().exit(status);
+   }
+
+   /**
+    * Replaces Runtime.exit(int).
+    */
+   public static void exit(Runtime runtime, int status) {
+      Tool tool = TOOL.get();
+      if (tool != null)
+         tool.exit(status);
+      runtime.exit(status);
+   }
+
+   /**
+    * Replaces Runtime.halt(int).
+    */
+   public static void halt(Runtime runtime, int status) {
+      Tool tool = TOOL.get();
+      if (tool != null)
+         tool.exit(status);
+      runtime.halt(status);
+   }
+}
@@ -0,0 +1,282 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.agent;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Minimal class file rewriter which redirects exit calls to {@link
+ * ExitHook}.  No instructions are added or removed, so offsets,
+ * branches and stack maps are all left valid:
+ *
+ * <ul>
+ * <li>A constant pool Methodref for System.exit(I)V is pointed at
+ * the ExitHook class instead, so all "invokestatic" instructions
+ * using it call ExitHook.exit(I)V.
+ *
+ * <li>For Runtime.exit(I)V and Runtime.halt(I)V, new Methodrefs are
+ * added for ExitHook.exit/halt(Ljava/lang/Runtime;I)V, and each
+ * "invokevirtual" using the old Methodref is changed to an
+ * "invokestatic" of the new one.  Both take the Runtime instance and
+ * status from the stack, and are the same length.
+ * </ul>
+ *
+ * <p>Classes not making any of those calls are returned unchanged,
+ * which can be determined from the constant pool alone.
+ */
+public class ExitRewriter {
+   private static final String HOOK = "net/uazu/scramjet/agent/ExitHook";
+   private static final String RUNTIME_DESC = "(Ljava/lang/Runtime;I)V";
+
+   private static final int INVOKEVIRTUAL = 0xB6;
+   private static final int INVOKESTATIC = 0xB8;
+
+   /**
+    * Instruction lengths, or 0 for variable-length instructions or
+    * invalid opcodes.
+    */
+   private static final byte[] OPLEN = new byte[256];
+   static {
+      String lens =
+         // 0x00-0x3F
+         "1111111111111111" + "2323322222111111" + "1111111111111111" + "1111112222211111" +
+         // 0x40-0x7F
+         "1111111111111111" + "1111111111111111" + "1111111111111111" + "1111111111111111" +
+         // 0x80-0xBF
+         "1111311111111111" + "1111111113333333" + "3333333332001111" + "1133333335532311" +
+         // 0xC0-0xC9
+         "3311043355";
+      for (int a = 0; a<lens.length(); a++)
+         OPLEN[a] = (byte) (lens.charAt(a) - '0');
+   }
+
+   private final byte[] data;
+   private int count;
+   private int[] off;
+   private int cp_end;
+
+   private ExitRewriter(byte[] data) {
+      this.data = data;
+   }
+
+   /**
+    * Rewrite the class file.
+    * @return New class file, or null if no changes are required
+    */
+   public static byte[] rewrite(byte[] data) {
+      return new ExitRewriter(data).run();
+   }
+
+   private byte[] run() {
+      if (u4(0) != 0xCAFEBABE)
+         throw new IllegalArgumentException("Not a class file");
+      parse_pool();
+
+      // Look for Methodrefs to rewrite
+      List<Integer> sys_exit = new ArrayList<Integer>();
+      Map<Integer,Integer> rt_calls = new HashMap<Integer,Integer>();
+      for (int a = 1; a<count; a++) {
+         if (off[a] == 0 || data[off[a]] != 10)
+            continue;
+         int cls = u2(off[a] + 1);
+         int nat = u2(off[a] + 3);
+         if (!utf8_equals(u2(off[nat] + 3), "(I)V"))
+            continue;
+         int cname = u2(off[cls] + 1);
+         int name = u2(off[nat] + 1);
+         if (utf8_equals(cname, "java/lang/System") &&
+             utf8_equals(name, "exit")) {
+            sys_exit.add(a);
+         } else if (utf8_equals(cname, "java/lang/Runtime") &&
+                    (utf8_equals(name, "exit") || utf8_equals(name, "halt"))) {
+            rt_calls.put(a, name);
+         }
+      }
+      if (sys_exit.isEmpty() && rt_calls.isEmpty())
+         return null;
+
+      // Add new constants
+      ByteArrayOutputStream extra = new ByteArrayOutputStream();
+      int next = count;
+      int hook_utf8 = next++;
+      put_utf8(extra, HOOK);
+      int hook_class = next++;
+      extra.write(7);
+      put2(extra, hook_utf8);
+      int rt_desc = 0;
+      Map<Integer,Integer> replace = new HashMap<Integer,Integer>();
+      for (Map.Entry<Integer,Integer> ent : rt_calls.entrySet()) {
+         if (rt_desc == 0) {
+            rt_desc = next++;
+            put_utf8(extra, RUNTIME_DESC);
+         }
+         int nat = next++;
+         extra.write(12);
+         put2(extra, ent.getValue());
+         put2(extra, rt_desc);
+         int ref = next++;
+         extra.write(10);
+         put2(extra, hook_class);
+         put2(extra, nat);
+         replace.put(ent.getKey(), ref);
+      }
+      if (next > 65535)
+         throw new IllegalArgumentException("Constant pool full");
+
+      // Patch in place, then insert the new constants
+      byte[] out = data.clone();
+      for (int ref : sys_exit)
+         set2(out, off[ref] + 1, hook_class);
+      if (!replace.isEmpty())
+         patch_code(out, replace);
+
+      byte[] add = extra.toByteArray();
+      byte[] rv = new byte[out.length + add.length];
+      System.arraycopy(out, 0, rv, 0, cp_end);
+      System.arraycopy(add, 0, rv, cp_end, add.length);
+      System.arraycopy(out, cp_end, rv, cp_end + add.length, out.length - cp_end);
+      set2(rv, 8, next);
+      return rv;
+   }
+
+   /**
+    * Find the offset of each constant pool entry.
+    */
+   private void parse_pool() {
+      count = u2(8);
+      off = new int[count];
+      int pos = 10;
+      for (int a = 1; a<count; a++) {
+         off[a] = pos;
+         int tag = data[pos] & 255;
+         switch (tag) {
+         case 1:
+            pos += 3 + u2(pos + 1); break;
+         case 3: case 4: case 9: case 10: case 11: case 12: case 17: case 18:
+            pos += 5; break;
+         case 5: case 6:
+            pos += 9; a++; break;
+         case 7: case 8: case 16: case 19: case 20:
+            pos += 3; break;
+         case 15:
+            pos += 4; break;
+         default:
+            throw new IllegalArgumentException("Bad constant pool tag: " + tag);
+         }
+      }
+      cp_end = pos;
+   }
+
+   /**
+    * Change "invokevirtual" instructions of the given Methodrefs into
+    * "invokestatic" of their replacements, in all Code attributes.
+    */
+   private void patch_code(byte[] out, Map<Integer,Integer> replace) {
+      int pos = cp_end + 6;
+      pos += 2 + 2 * u2(pos);               // Interfaces
+      pos = skip_members(pos, null, null);  // Fields
+      skip_members(pos, out, replace);      // Methods
+   }
+
+   /**
+    * Skip a fields or methods table, patching Code attributes if
+    * 'out' is given.
+    * @return Offset after the table
+    */
+   private int skip_members(int pos, byte[] out, Map<Integer,Integer> replace) {
+      int n_memb = u2(pos);
+      pos += 2;
+      for (int a = 0; a<n_memb; a++) {
+         int n_attr = u2(pos + 6);
+         pos += 8;
+         for (int b = 0; b<n_attr; b++) {
+            int len = u4(pos + 2);
+            if (out != null && utf8_equals(u2(pos), "Code"))
+               patch_code_attr(out, pos + 6, replace);
+            pos += 6 + len;
+         }
+      }
+      return pos;
+   }
+
+   private void patch_code_attr(byte[] out, int pos, Map<Integer,Integer> replace) {
+      int code = pos + 8;
+      int len = u4(pos + 4);
+      for (int pc = 0; pc < len; ) {
+         int op = data[code + pc] & 255;
+         int oplen = OPLEN[op];
+         if (op == INVOKEVIRTUAL) {
+            Integer ref = replace.get(u2(code + pc + 1));
+            if (ref != null) {
+               out[code + pc] = (byte) INVOKESTATIC;
+               set2(out, code + pc + 1, ref);
+            }
+         } else if (op == 0xAA) {
+            // tableswitch
+            int base = code + ((pc + 4) & ~3);
+            oplen = base - code - pc + 12 + 4 * (u4(base + 8) - u4(base + 4) + 1);
+         } else if (op == 0xAB) {
+            // lookupswitch
+            int base = code + ((pc + 4) & ~3);
+            oplen = base - code - pc + 8 + 8 * u4(base + 4);
+         } else if (op == 0xC4) {
+            // wide
+            oplen = (data[code + pc + 1] & 255) == 0x84 ? 6 : 4;
+         }
+         if (oplen <= 0)
+            throw new IllegalArgumentException("Bad opcode: " + op);
+         pc += oplen;
+      }
+   }
+
+   private boolean utf8_equals(int index, String str) {
+      int pos = off[index];
+      if (data[pos] != 1 || u2(pos + 1) != str.length())
+         return false;
+      for (int a = 0; a<str.length(); a++)
+         if (data[pos + 3 + a] != str.charAt(a))
+            return false;
+      return true;
+   }
+
+   private int u2(int pos) {
+      return ((data[pos] & 255) << 8) | (data[pos + 1] & 255);
+   }
+
+   private int u4(int pos) {
+      return (u2(pos) << 16) | u2(pos + 2);
+   }
+
+   private static void set2(byte[] arr, int pos, int val) {
+      arr[pos] = (byte) (val >> 8);
+      arr[pos + 1] = (byte) val;
+   }
+
+   private static void put2(ByteArrayOutputStream out, int val) {
+      out.write(val >> 8);
+      out.write(val);
+   }
+
+   private static void put_utf8(ByteArrayOutputStream out, String str) {
+      out.write(1);
+      put2(out, str.length());
+      for (int a = 0; a<str.length(); a++)
+         out.write(str.charAt(a));
+   }
+}
@@ -22,6 +22,12 @@ import net.uazu.scramjet.SJProxy;
 /**
  * Module which handles calls required for managing the console for
  * ncurses-style applications.
+ *
+ * <p>If the session is detached from its front-end, the module is
+ * set up with a null writer, and messages are dropped until it is set
+ * up again on a new front-end.  The size is then requested again, and
+ * the report is passed on as a resize, so that the whole screen gets
+ * redrawn.</p>
  */
 public class ConsoleMod implements SJModule {
    private static final byte[] prefix;
@@ -41,24 +47,40 @@ public class ConsoleMod implements SJModule {
    }
 
    /**
-    * MsgWriter
+    * MsgWriter, or null whilst detached
     */
    private MsgWriter writer;
    
    /**
-    * MsgWriter
+    * SJProxy, or null whilst detached
     */
    private SJProxy proxy;
+
+   /**
+    * Set once the module has first been set up.
+    */
+   private boolean started;
    
    /**
-    * Called by SJProxy to setup module.
+    * Called by SJProxy to setup module, and with nulls if the session
+    * is detached, and then again when it is attached to a new
+    * front-end.
     */
    public void setup(SJProxy proxy, MsgWriter writer) {
       synchronized (this) {
          this.proxy = proxy;
          this.writer = writer;
+         if (writer == null)
+            return;
+         if (started) {
+            // New front-end: force a resize when its size comes in
+            width = height = 0;
+            if (raw_mode)
+               writer.write("con-raw-on");
+         }
          writer.write("con-req-size");
          writer.flush();
+         started = true;
          notifyAll();
       }
    }
@@ -69,7 +91,7 @@ public class ConsoleMod implements SJModule {
     */
    private void startup_wait() {
       synchronized (this) {
-         while (writer == null) {
+         while (!started) {
             try {
                wait();
             } catch (InterruptedException e) {}
@@ -86,30 +108,32 @@ public class ConsoleMod implements SJModule {
     * dumped before exit.
     */
    public void cleanup() {
-      writer.write("con-term");
-      writer.flush();
+      MsgWriter wr = writer;
+      if (wr == null) return;
+      wr.write("con-term");
+      wr.flush();
    }
    
    /**
     * Console window width.  0 initially until size report comes in.
     */
-   public int width = 0;
+   public volatile int width = 0;
 
    /**
     * Console window height.  0 initially until size report comes in.
     */
-   public int height = 0;
+   public volatile int height = 0;
 
    /**
     * Size change-count.  Increments every time the window size
     * changes.  Can be used to detect size changes.
     */
-   public int resize_count = 0;
+   public volatile int resize_count = 0;
 
    /**
     * Current raw input mode: false: off, true: on.
     */
-   public boolean raw_mode = false;
+   public volatile boolean raw_mode = false;
    
    /**
     * Attempt to match incoming messages and act on them.
@@ -141,10 +165,12 @@ public class ConsoleMod implements SJModule {
     * Turn raw input mode on or off.
     */
    public void rawMode(boolean on) {
-      if (writer == null)
-         startup_wait();
+      startup_wait();
       if (on == raw_mode) return;
-      writer.write(on ? "con-raw-on" : "con-raw-off");
+      raw_mode = on;
+      MsgWriter wr = writer;
+      if (wr != null)
+         wr.write(on ? "con-raw-on" : "con-raw-off");
    }
 
    /**
@@ -154,17 +180,21 @@ public class ConsoleMod implements SJModule {
     * at the bottom of the screen.
     */
    public void setCleanup(byte[] data, int count) {
-      if (writer == null)
-         startup_wait();
-      writer.write("con-cleanup %t", data, count);
+      startup_wait();
+      MsgWriter wr = writer;
+      if (wr != null)
+         wr.write("con-cleanup %t", data, count);
    }
 
    /**
-    * Poll for updates from front-end.  This also receives data for
-    * stdin and any other modules.  Doing a read on stdin also does
-    * this same poll operation.
+    * Poll for updates from front-end.  Incoming messages are now
+    * handled by the proxy thread as they arrive, so the size fields
+    * are always up to date, and this does nothing more than give the
+    * proxy thread a chance to run.
     */
    public void poll() {
-      proxy.poll_incoming(false);
+      SJProxy px = proxy;
+      if (px != null)
+         px.poll_incoming(false);
    }
 }
@@ -21,18 +21,18 @@ package net.uazu.scramjet.nailgun;
 
 import java.security.Permission;
 
-import net.uazu.scramjet.Tool;
+import net.uazu.scramjet.agent.ExitHook;
 
 
 /**
  * Security manager which does nothing other than trap
  * checkExit, or delegate all non-deprecated methods to
- * a base manager.
+ * a base manager.  Only used if {@link
+ * net.uazu.scramjet.agent.ExitAgent} isn't running.
  * 
  * @author Pete Kirkham
  */
 public class NGSecurityManager extends SecurityManager {
-   private static final ThreadLocal<Tool> TOOL = new InheritableThreadLocal<Tool>();
    private final SecurityManager base;
    
    /**
@@ -43,19 +43,13 @@ public class NGSecurityManager extends SecurityManager {
       this.base = base;
    }
    
-   public static void setTool(Tool tool) {
-      TOOL.set(tool);
-   }
-   
    public void checkExit(int status) {
       if (base != null) {
          base.checkExit(status);
       }
       
-      final Tool tool = TOOL.get();
-      
-      if (tool != null) {
-         tool.exit(status);
+      if (ExitHook.getTool() != null) {
+         ExitHook.exit(status);
       }
    }
    
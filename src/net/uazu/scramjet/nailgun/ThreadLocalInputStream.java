@@ -60,6 +60,15 @@ public class ThreadLocalInputStream extends InputStream {
         streams.set(streamForCurrentThread);
     }
 
+    /**
+     * Returns the InputStream set for the current thread by init(),
+     * or null if none
+     * @return the InputStream set for the current thread
+     */
+    public InputStream get() {
+        return streams.get();
+    }
+
     /**
      * Returns this thread's InputStream
      * @return this thread's InputStream
@@ -21,6 +21,7 @@ package net.uazu.scramjet.nailgun;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.util.Locale;
 
 /**
  * The class name is pretty descriptive.  This creates a PrintStream
@@ -30,6 +31,10 @@ import java.io.PrintStream;
  * PrintStreams simply by using System.out.  Of course, the init()
  * method must be called by the Thread that wishes to use the 
  * wrapped stream.
+ *
+ * <p>append(), format() and printf() are passed whole to the
+ * thread's PrintStream, so that a formatted or bulk write costs one
+ * thread-local lookup rather than one per fragment.
  *  
  * @author <a href="http://www.martiansoftware.com/contact.html">Marty Lamb</a>
  */
@@ -61,6 +66,15 @@ public class ThreadLocalPrintStream extends PrintStream {
         streams.set(streamForCurrentThread);
     }
 
+    /**
+     * Returns the PrintStream set for the current thread by init(),
+     * or null if none
+     * @return the PrintStream set for the current thread
+     */
+    public PrintStream get() {
+        return streams.get();
+    }
+
     /**
      * Returns this thread's PrintStream
      * @return this thread's PrintStream
@@ -240,6 +254,62 @@ public class ThreadLocalPrintStream extends PrintStream {
         getPrintStream().write(b);
     }
 
+    /**
+     * @see java.io.PrintStream#append(CharSequence)
+     */
+    public PrintStream append(CharSequence csq) {
+        getPrintStream().append(csq);
+        return this;
+    }
+
+    /**
+     * @see java.io.PrintStream#append(CharSequence,int,int)
+     */
+    public PrintStream append(CharSequence csq, int start, int end) {
+        getPrintStream().append(csq, start, end);
+        return this;
+    }
+
+    /**
+     * @see java.io.PrintStream#append(char)
+     */
+    public PrintStream append(char c) {
+        getPrintStream().append(c);
+        return this;
+    }
+
+    /**
+     * @see java.io.PrintStream#format(String,Object[])
+     */
+    public PrintStream format(String format, Object... args) {
+        getPrintStream().format(format, args);
+        return this;
+    }
+
+    /**
+     * @see java.io.PrintStream#format(Locale,String,Object[])
+     */
+    public PrintStream format(Locale l, String format, Object... args) {
+        getPrintStream().format(l, format, args);
+        return this;
+    }
+
+    /**
+     * @see java.io.PrintStream#printf(String,Object[])
+     */
+    public PrintStream printf(String format, Object... args) {
+        getPrintStream().format(format, args);
+        return this;
+    }
+
+    /**
+     * @see java.io.PrintStream#printf(Locale,String,Object[])
+     */
+    public PrintStream printf(Locale l, String format, Object... args) {
+        getPrintStream().format(l, format, args);
+        return this;
+    }
+
 //  END delegated java.io.PrintStream methods
 
 //  BEGIN delegated java.io.FilterOutputStream methods
@@ -0,0 +1,607 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.test;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.uazu.scramjet.MsgReader;
+import net.uazu.scramjet.MsgWriter;
+import net.uazu.scramjet.SJInputStream;
+import net.uazu.scramjet.SJTerminateError;
+
+/**
+ * Load generator which acts as many front-ends at once.  It talks
+ * the FIFO protocol directly to the proxies of an already-running
+ * server in ~/.scramjet, claiming and creating proxies in the same
+ * way as the C front-end, so the server can't tell the difference.
+ * This makes it possible to throw thousands of requests at the
+ * server without the cost of starting thousands of processes, for
+ * sizing pools and for catching regressions in the proxy and message
+ * handling code.  Run it in its own JVM:
+ *
+ * <pre>
+ * java -cp scramjet.jar net.uazu.scramjet.test.LoadGen [options] mix ...
+ * </pre>
+ *
+ * <p>Each mix argument is "weight,stdin-bytes,command [args ...]".
+ * Commands are picked at random in proportion to their weights, and
+ * are sent the given number of bytes of text on stdin, no faster
+ * than the server grants stdin credit, as by the C front-end.  With
+ * a rate given, requests are started on a fixed schedule (open
+ * loop), and latency is measured from the scheduled start time, so
+ * that delays caused by a backed-up server are counted rather than
+ * hidden.  With no rate, each worker starts its next request as soon
+ * as the last one finishes (closed loop).
+ */
+public class LoadGen {
+   /**
+    * Number of free proxies to keep available, as for the C
+    * front-end.
+    */
+   private static final int MIN_FREE_PROXIES = 4;
+
+   /**
+    * Number of times to retry when all proxies are in use, with 10ms
+    * between tries, as for the C front-end.
+    */
+   private static final int GRAB_PROXY_TRIES = 500;
+
+   /**
+    * Size of stdin chunks sent, matching the C front-end's buffer.
+    */
+   private static final int STDIN_CHUNK = 1024;
+
+   /**
+    * One entry of the mix of commands to run.
+    */
+   private static class Mix {
+      final int weight;
+      final byte[] stdin;
+      final String cmd;
+      final String[] args;
+      final String label;
+      final Stats stats = new Stats();
+
+      Mix(String spec) {
+         String[] arr = spec.split(",", 3);
+         if (arr.length != 3)
+            throw new IllegalArgumentException("Invalid mix: " + spec);
+         weight = Integer.parseInt(arr[0].trim());
+         stdin = text(Integer.parseInt(arr[1].trim()));
+         String[] argv = arr[2].trim().split("\\s+");
+         // Strip "sj-" off front as the C front-end does for links
+         cmd = argv[0].startsWith("sj-") ? argv[0].substring(3) : argv[0];
+         args = Arrays.copyOfRange(argv, 1, argv.length);
+         label = spec;
+         if (weight <= 0 || cmd.length() == 0)
+            throw new IllegalArgumentException("Invalid mix: " + spec);
+      }
+   }
+
+   /**
+    * Statistics for a set of requests.
+    */
+   private static class Stats {
+      private long[] lat = new long[1024];
+      private int count;
+      private int failed;
+      private int nonzero;
+      private long out_bytes;
+
+      synchronized void add(long nanos, int status, long out) {
+         if (count == lat.length)
+            lat = Arrays.copyOf(lat, count * 2);
+         lat[count++] = nanos;
+         if (status != 0)
+            nonzero++;
+         out_bytes += out;
+      }
+
+      synchronized void fail() {
+         failed++;
+      }
+
+      synchronized void addAll(Stats st) {
+         for (int a = 0; a<st.count; a++)
+            add(st.lat[a], 0, 0);
+         failed += st.failed;
+         nonzero += st.nonzero;
+         out_bytes += st.out_bytes;
+      }
+
+      /**
+       * Format one line of the report.
+       */
+      synchronized String line(String label) {
+         long[] sorted = Arrays.copyOf(lat, count);
+         Arrays.sort(sorted);
+         long total = 0;
+         for (long val : sorted)
+            total += val;
+         return String.format(
+            "%-24s %7d %6d %6d %8.2f %8.2f %8.2f %8.2f %8.2f %8.2f",
+            label.length() > 24 ? label.substring(0, 21) + "..." : label,
+            count, failed, nonzero,
+            count == 0 ? 0.0 : total / 1e6 / count,
+            pc(sorted, 50), pc(sorted, 90), pc(sorted, 99), pc(sorted, 99.9),
+            count == 0 ? 0.0 : sorted[count-1] / 1e6);
+      }
+
+      private static double pc(long[] sorted, double pc) {
+         if (sorted.length == 0)
+            return 0.0;
+         int ii = (int) Math.ceil(pc / 100 * sorted.length) - 1;
+         return sorted[Math.max(0, ii)] / 1e6;
+      }
+   }
+
+   private final File dotdir;
+   private final String pid;
+   private final List<Mix> mixes = new ArrayList<Mix>();
+   private int total_weight;
+   private double rate = 0;
+   private int concurrency = 1;
+   private long count = -1;
+   private long duration = 0;
+   private long warmup = 0;
+   private final String[] env;
+   private final String cwd;
+   private final AtomicLong next = new AtomicLong();
+   private final Stats total = new Stats();
+   private volatile long start;
+   private volatile boolean verbose;
+
+   private LoadGen() {
+      dotdir = new File(System.getenv("HOME") + File.separator + ".scramjet");
+      String name = ManagementFactory.getRuntimeMXBean().getName();
+      pid = name.substring(0, name.indexOf('@'));
+      List<String> envl = new ArrayList<String>();
+      for (Map.Entry<String,String> ent : System.getenv().entrySet())
+         envl.add(ent.getKey() + "=" + ent.getValue());
+      env = envl.toArray(new String[envl.size()]);
+      cwd = System.getProperty("user.dir");
+   }
+
+   public static void main(String[] args) {
+      LoadGen lg = new LoadGen();
+      try {
+         lg.parse(args);
+      } catch (IllegalArgumentException e) {
+         System.err.println(e.getMessage());
+         usage();
+      }
+      System.exit(lg.run());
+   }
+
+   private static void usage() {
+      System.err.println(
+         "Usage: java -cp scramjet.jar net.uazu.scramjet.test.LoadGen [options] mix ...\n" +
+         "\n" +
+         "Options:\n" +
+         "  -r <rate>      Requests to start per second (open loop).  Default is to\n" +
+         "                 start each as soon as the worker is free (closed loop)\n" +
+         "  -c <count>     Number of concurrent workers (front-ends), default 1\n" +
+         "  -n <count>     Total number of requests to run\n" +
+         "  -d <secs>      Run for this many seconds\n" +
+         "  -w <secs>      Leave requests started in the first <secs> out of the\n" +
+         "                 statistics, to allow for warm-up\n" +
+         "  -v             Report failures as they happen\n" +
+         "\n" +
+         "Each mix is \"weight,stdin-bytes,command [args ...]\", for example\n" +
+         "\"10,0,sj-classpath\" or \"1,100000,mytool -x\".  The server must already\n" +
+         "be running.  Without -n or -d, 1000 requests are run.");
+      System.exit(1);
+   }
+
+   private void parse(String[] args) {
+      int a = 0;
+      try {
+         for (; a<args.length && args[a].startsWith("-"); a++) {
+            String opt = args[a];
+            if (opt.equals("-v")) {
+               verbose = true;
+               continue;
+            }
+            if (a+1 >= args.length)
+               throw new IllegalArgumentException("Missing value for " + opt);
+            String val = args[++a];
+            if (opt.equals("-r"))
+               rate = Double.parseDouble(val);
+            else if (opt.equals("-c"))
+               concurrency = Integer.parseInt(val);
+            else if (opt.equals("-n"))
+               count = Long.parseLong(val);
+            else if (opt.equals("-d"))
+               duration = (long) (Double.parseDouble(val) * 1e9);
+            else if (opt.equals("-w"))
+               warmup = (long) (Double.parseDouble(val) * 1e9);
+            else
+               throw new IllegalArgumentException("Unknown option: " + opt);
+         }
+      } catch (NumberFormatException e) {
+         throw new IllegalArgumentException("Bad value for " + args[a-1]);
+      }
+      if (concurrency < 1 || rate < 0)
+         throw new IllegalArgumentException("Bad option value");
+      for (; a<args.length; a++) {
+         Mix mix = new Mix(args[a]);
+         mixes.add(mix);
+         total_weight += mix.weight;
+      }
+      if (mixes.isEmpty())
+         throw new IllegalArgumentException("No commands given");
+      if (count < 0 && duration == 0)
+         count = 1000;
+   }
+
+   /**
+    * Run the test and print the report.
+    * @return Exit status
+    */
+   private int run() {
+      if (!new File(dotdir, "0-in").exists()) {
+         System.err.println("Server is not running; start it first, e.g. with 'sj-classpath'");
+         return 1;
+      }
+      start = System.nanoTime();
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int a = 0; a<concurrency; a++) {
+         final Random rand = new Random(a);
+         Thread th = new Thread("LoadGen " + a) {
+            public void run() {
+               worker(rand);
+            }
+         };
+         th.setDaemon(true);
+         workers.add(th);
+         th.start();
+      }
+      for (Thread th : workers) {
+         try {
+            th.join();
+         } catch (InterruptedException e) {
+            return 1;
+         }
+      }
+      long end = System.nanoTime();
+
+      double secs = (end - start - warmup) / 1e9;
+      for (Mix mix : mixes)
+         total.addAll(mix.stats);
+      System.out.format(
+         "%d requests in %.2fs: %.1f/s, %d failed, %d non-zero exit, %.1fKB output%n",
+         total.count, secs, total.count / secs, total.failed, total.nonzero,
+         total.out_bytes / 1024.0);
+      System.out.format(
+         "%-24s %7s %6s %6s %8s %8s %8s %8s %8s %8s%n",
+         "latency (ms)", "count", "failed", "status", "mean",
+         "p50", "p90", "p99", "p99.9", "max");
+      if (mixes.size() > 1)
+         for (Mix mix : mixes)
+            System.out.println(mix.stats.line(mix.label));
+      System.out.println(total.line("all"));
+      return total.failed == 0 ? 0 : 2;
+   }
+
+   /**
+    * Worker loop, acting as one front-end at a time.
+    */
+   private void worker(Random rand) {
+      double interval = rate > 0 ? 1e9 / rate : 0;
+      while (true) {
+         long idx = next.getAndIncrement();
+         if (count >= 0 && idx >= count)
+            return;
+         long sched = System.nanoTime();
+         if (rate > 0) {
+            sched = start + (long) (idx * interval);
+            long delay = sched - System.nanoTime();
+            if (delay > 0) {
+               try {
+                  Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+               } catch (InterruptedException e) {
+                  return;
+               }
+            }
+         }
+         if (duration > 0 && sched - start >= duration)
+            return;
+
+         int pick = rand.nextInt(total_weight);
+         Mix mix = null;
+         for (Mix mm : mixes) {
+            mix = mm;
+            if ((pick -= mm.weight) < 0)
+               break;
+         }
+         boolean record = sched - start >= warmup;
+         try {
+            long[] out = new long[1];
+            int status = request(mix, out);
+            if (record)
+               mix.stats.add(System.nanoTime() - sched, status, out[0]);
+         } catch (Exception e) {
+            if (verbose)
+               System.err.println(mix.label + ": " + e);
+            if (record)
+               mix.stats.fail();
+         } catch (SJTerminateError e) {
+            if (verbose)
+               System.err.println(mix.label + ": pipe write failed");
+            if (record)
+               mix.stats.fail();
+         }
+      }
+   }
+
+   /**
+    * Run one request through a proxy, in the same sequence as the C
+    * front-end.
+    * @param out Returns count of stdout/stderr bytes received
+    * @return Exit status
+    */
+   private int request(Mix mix, long[] out) throws IOException {
+      OutputStream pipe_out = null;
+      InputStream pipe_in = null;
+      try {
+         int slot = grab_proxy();
+         pipe_out = new BufferedOutputStream(new FileOutputStream(
+                                                new File(dotdir, slot + "-in")));
+         MsgWriter writer = new MsgWriter(null, pipe_out);
+         add_proxies(writer);
+         for (String arg : mix.args)
+            writer.write("arg %s", arg);
+         for (String ent : env)
+            writer.write("env %s", ent);
+         writer.write("cwd %s", cwd);
+         writer.write("run %s", mix.cmd);
+         writer.flush();
+
+         // The proxy only opens its output once it has the command
+         pipe_in = new BufferedInputStream(new FileInputStream(
+                                              new File(dotdir, slot + "-out")));
+         MsgReader reader = new MsgReader(pipe_in);
+         long credit = SJInputStream.WINDOW;
+         int sent = send_stdin(writer, mix.stdin, 0, credit);
+
+         while (true) {
+            Object[] oa;
+            reader.read();
+            if (null != (oa = reader.match("1%t")) ||
+                null != (oa = reader.match("2%t"))) {
+               out[0] += ((byte[]) oa[0]).length;
+               continue;
+            }
+            if (null != (oa = reader.match("stdin-credit %i"))) {
+               credit += (Integer) oa[0];
+               if (sent < mix.stdin.length)
+                  sent = send_stdin(writer, mix.stdin, sent, credit);
+               continue;
+            }
+            if (null != (oa = reader.match("exit %i")))
+               return (Integer) oa[0];
+            if (null != (oa = reader.match("run %s"))) {
+               // Running external commands is not supported: ENOSYS
+               writer.write("run-status %i %i", -1, 38);
+               writer.flush();
+               continue;
+            }
+            if (null != (oa = reader.match("con-req-size"))) {
+               writer.write("con-size %i %i", 80, 24);
+               writer.flush();
+               continue;
+            }
+            if (reader.msg.length >= 4 &&
+                new String(reader.msg, 0, 4, "ASCII").equals("con-"))
+               continue;
+            throw new IOException("Invalid message received: " +
+                                  new String(reader.msg, "ISO-8859-1"));
+         }
+      } catch (EOFException e) {
+         throw new IOException("Java process hung up pipe");
+      } finally {
+         if (pipe_in != null)
+            try { pipe_in.close(); } catch (IOException e) {}
+         if (pipe_out != null)
+            try { pipe_out.close(); } catch (IOException e) {}
+      }
+   }
+
+   /**
+    * Send stdin from the given offset for as far as the credit
+    * allows, followed by EOF if it has all been sent.
+    * @param credit Total bytes the server allows to be sent so far
+    * @return Offset reached
+    */
+   private static int send_stdin(MsgWriter writer, byte[] data, int off, long credit) {
+      int end = (int) Math.min(data.length, credit);
+      while (off < end) {
+         int len = Math.min(STDIN_CHUNK, end - off);
+         writer.write("0%t", Arrays.copyOfRange(data, off, off + len), len);
+         off += len;
+      }
+      if (off == data.length)
+         writer.write("EOF");
+      writer.flush();
+      return off;
+   }
+
+   /**
+    * Number of proxies seen by the last grab_proxy() call, and
+    * number of those that were free.
+    */
+   private int n_proxies, n_free;
+
+   /**
+    * Lock held whilst holding the dot-dir lock.
+    */
+   private final Object lock_sync = new Object();
+
+   /**
+    * Claim a free proxy, using the owner flag as the C front-end
+    * does.
+    */
+   private int grab_proxy() throws IOException {
+      for (int tries = 0; tries < GRAB_PROXY_TRIES; tries++) {
+         int slot = try_grab();
+         if (slot >= 0)
+            return slot;
+         try {
+            Thread.sleep(10);
+         } catch (InterruptedException e) {
+            throw new IOException("Interrupted");
+         }
+      }
+      throw new IOException("All proxies are in use");
+   }
+
+   /**
+    * Make one pass over the proxies, claiming the first free one.
+    * Synchronized because all the workers share one PID.
+    * @return Proxy number, or -1 if none are free
+    */
+   private synchronized int try_grab() throws IOException {
+      int slot = -1;
+      n_free = 0;
+      for (int a = 0; true; a++) {
+         if (!new File(dotdir, a + "-in").exists()) {
+            n_proxies = a;
+            return slot;
+         }
+         File owner = new File(dotdir, a + "-owner");
+         if (owner.exists())
+            continue;
+         if (slot >= 0) {
+            n_free++;
+            continue;
+         }
+         // Append our PID, and read it back to see who won any race
+         OutputStream app = new FileOutputStream(owner, true);
+         try {
+            app.write((pid + "\n").getBytes("ASCII"));
+         } finally {
+            app.close();
+         }
+         if (pid.equals(first_line(owner)))
+            slot = a;
+      }
+   }
+
+   private static String first_line(File file) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+         StringBuilder buf = new StringBuilder();
+         int ch;
+         while (-1 != (ch = in.read()) && ch != '\n')
+            buf.append((char) ch);
+         return buf.toString();
+      } catch (IOException e) {
+         // Deleted by the proxy in the meantime
+         return "";
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Add new proxies if there are less than MIN_FREE_PROXIES free,
+    * under the same dot-dir lock that the C front-end uses.  The
+    * new_proxy messages go to the server through the proxy that has
+    * just been claimed.  The file lock only excludes other
+    * processes, so the workers take turns using lock_sync.
+    */
+   private void add_proxies(MsgWriter writer) throws IOException {
+      synchronized (lock_sync) {
+         int n, want;
+         synchronized (this) {
+            if (n_free >= MIN_FREE_PROXIES)
+               return;
+            n = n_proxies;
+            want = n + MIN_FREE_PROXIES - n_free;
+         }
+         RandomAccessFile raf = new RandomAccessFile(new File(dotdir, "lock"), "rw");
+         try {
+            FileLock lock = raf.getChannel().lock();
+            try {
+               for (; n < want; n++) {
+                  if (create_proxy(n))
+                     writer.write("new_proxy %i", n);
+               }
+            } finally {
+               lock.release();
+            }
+         } finally {
+            raf.close();
+         }
+         synchronized (this) {
+            n_free = MIN_FREE_PROXIES;
+            n_proxies = Math.max(n_proxies, n);
+         }
+      }
+   }
+
+   /**
+    * Create the FIFOs and owner flag for a proxy, as for the C
+    * front-end.  Must be called with the dot-dir locked.
+    * @return false if the proxy already exists
+    */
+   private boolean create_proxy(int a) throws IOException {
+      File in = new File(dotdir, a + "-in");
+      if (in.exists())
+         return false;
+      new FileOutputStream(new File(dotdir, a + "-owner")).close();
+      File out = new File(dotdir, a + "-out");
+      Process proc = new ProcessBuilder(
+         "mkfifo", "-m", "600", in.getPath(), out.getPath())
+         .redirectErrorStream(true).start();
+      try {
+         if (proc.waitFor() != 0)
+            throw new IOException("Failed to create named pipes: " + in + " " + out);
+      } catch (InterruptedException e) {
+         throw new IOException("Interrupted");
+      }
+      return true;
+   }
+
+   /**
+    * Generate some lines of text of the given length for stdin.
+    */
+   private static byte[] text(int len) {
+      byte[] rv = new byte[len];
+      Random rand = new Random(len);
+      for (int a = 0; a<len; a++) {
+         int col = a % 64;
+         rv[a] = (byte) (col == 63 ? '\n' : col % 8 == 7 ? ' ' : 'a' + rand.nextInt(26));
+      }
+      return rv;
+   }
+}
@@ -31,20 +31,28 @@ public class SJAlias extends Tool {
    }
    public void usage() {
       error("Usage: sj-alias\n" +
-            "       sj-alias <alias> <classname>");
+            "       sj-alias <alias> <classname> [interactive|batch]");
    }
    public void run() {
       if (args.length == 0) {
          List<String> keys =
             new ArrayList<String>(Scramjet.aliases.keySet());
          Collections.sort(keys);
-         for (String key : keys)
-            println(key + "=" + Scramjet.aliases.get(key));
+         for (String key : keys) {
+            Boolean inter = Scramjet.alias_interactive.get(key);
+            println(key + "=" + Scramjet.aliases.get(key) +
+                    (inter == null ? "" : inter ? " interactive" : " batch"));
+         }
          return;
       }
-      if (args.length != 2 || args[0].startsWith("-"))
+      if (args.length < 2 || args.length > 3 || args[0].startsWith("-"))
          usage();
       
-      Scramjet.aliases.put(args[0], args[1]);
+      String spec = args[1];
+      if (args.length == 3)
+         spec += " " + args[2];
+      String err = Scramjet.setAlias(args[0], spec);
+      if (err != null)
+         error(err);
    }
 }
@@ -0,0 +1,98 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.tool;
+
+import java.util.List;
+
+import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJSession;
+import net.uazu.scramjet.Tool;
+
+/**
+ * Attach this front-end to a console tool which was detached from
+ * its own, e.g. sj-top after 'd' or after its terminal was closed,
+ * or list the detached tools.  This is what "scramjet --attach" runs.
+ * The detached tool takes over the front-end, and gets a resize which
+ * makes it repaint the whole screen.  This tool just waits for it to
+ * finish and then exits with its status.  If this front-end goes away
+ * first, the tool is detached again.
+ */
+public class SJAttach extends Tool {
+   public SJAttach(SJContext sjc) {
+      super(sjc);
+   }
+   public void usage() {
+      error("Usage: scramjet --attach [<id>]\n" +
+            "Attaches to the detached console tool with the given number,\n" +
+            "or with no number, lists the detached tools.");
+   }
+
+   /**
+    * Interval between checks that the attached tool has finished, in
+    * ms.
+    */
+   private static final int POLL = 100;
+
+   public void run() {
+      if (args.length > 1 || args.length == 1 && !args[0].matches("[0-9]+"))
+         usage();
+      if (args.length == 0) {
+         list();
+         return;
+      }
+
+      int id = Integer.parseInt(args[0]);
+      SJSession target = attach(id);
+      if (target == null)
+         error("scramjet: No detached session %d", id);
+      try {
+         while (!target.closed) {
+            exitCheck();
+            try {
+               Thread.sleep(POLL);
+            } catch (InterruptedException e) {}
+         }
+      } finally {
+         if (!target.closed && target.isAttachedVia(session()))
+            target.detach(false);
+      }
+      exit(target.getExitStatus());
+   }
+
+   /**
+    * List the detached sessions, and those attached again.
+    */
+   private void list() {
+      List<SJSession> list = SJSession.detached();
+      if (list.isEmpty()) {
+         println("No detached sessions");
+         return;
+      }
+      long now = System.currentTimeMillis();
+      for (SJSession sess : list) {
+         Tool tool = sess.tool;
+         StringBuilder sb = new StringBuilder();
+         sb.append(String.format("%4d  %-8s  up %5ds  %s",
+                                 sess.detach_id,
+                                 sess.isDetached() ? "detached" : "attached",
+                                 (now - sess.start_time) / 1000,
+                                 tool == null ? "?" : tool.cmd));
+         if (tool != null)
+            for (String arg : tool.args)
+               sb.append(' ').append(arg);
+         println(sb.toString());
+      }
+   }
+}
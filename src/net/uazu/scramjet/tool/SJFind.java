@@ -0,0 +1,324 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJFileIndex;
+import net.uazu.scramjet.Tool;
+
+/**
+ * Find files by name, type, size or modification time, like a subset
+ * of find(1), answered from the server's resident index of the tree
+ * (see {@link SJFileIndex}).  The first search under a directory
+ * waits for it to be scanned; later searches under it or anywhere
+ * below it don't touch the filesystem.  Results are in index order,
+ * which is the scan order followed by entries added since.
+ */
+public class SJFind extends Tool {
+   public SJFind(SJContext sjc) {
+      super(sjc);
+   }
+   public void usage() {
+      error("Usage: sj-find [<dir>...] [<test>...] [-print0]\n" +
+            "       sj-find -status|-drop\n" +
+            "Tests, all of which must match:\n" +
+            "  -name <glob>        Name matches glob (* ? [...])\n" +
+            "  -iname <glob>       Same, ignoring case\n" +
+            "  -path <glob>        Path as printed matches glob (* matches / too)\n" +
+            "  -type f|d|l         File, directory or symbolic link\n" +
+            "  -size [+-]<n>[ckMG] Size in units rounded up, default 512 bytes\n" +
+            "  -mtime [+-]<n>      Modified <n> days ago\n" +
+            "  -mmin [+-]<n>       Modified <n> minutes ago\n" +
+            "  -newer <file>       Modified more recently than <file>\n" +
+            "  -mindepth <n>, -maxdepth <n>\n" +
+            "Numbers with + mean more than <n>, with - less than <n>.\n" +
+            "  -status  Show the directory trees indexed\n" +
+            "  -drop    Drop all indexes, to be rescanned on next use");
+   }
+
+   /**
+    * One test on a node.
+    */
+   private static abstract class Test {
+      abstract boolean test(SJFileIndex.Tree tree, int node);
+   }
+
+   /**
+    * Comparison of a number against [+-]N.
+    */
+   private class Num {
+      final int sign;
+      final long val;
+      Num(String arg) {
+         sign = arg.startsWith("+") ? 1 : arg.startsWith("-") ? -1 : 0;
+         val = number(sign == 0 ? arg : arg.substring(1));
+      }
+      boolean test(long vv) {
+         return sign > 0 ? vv > val : sign < 0 ? vv < val : vv == val;
+      }
+   }
+
+   private final List<Test> tests = new ArrayList<Test>();
+   private Pattern name_glob;
+   private Pattern path_glob;
+   private int min_depth = 0;
+   private int max_depth = Integer.MAX_VALUE;
+
+   // Per-name cache of name_glob results: 0 unknown, 1 match, 2 not
+   private byte[] name_match;
+   private Matcher name_matcher;
+   private Matcher path_matcher;
+
+   public void run() throws Exception {
+      List<String> dirs = new ArrayList<String>();
+      boolean print0 = false;
+      int ai = 0;
+      while (ai < args.length && !args[ai].startsWith("-"))
+         dirs.add(args[ai++]);
+      if (dirs.isEmpty())
+         dirs.add(".");
+
+      final long now = TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+      while (ai < args.length) {
+         String opt = args[ai++];
+         if (opt.equals("-status") || opt.equals("-drop")) {
+            if (args.length != 1)
+               usage();
+            SJFileIndex index = service(SJFileIndex.class);
+            if (opt.equals("-drop"))
+               index.clear();
+            for (String line : index.describeTrees())
+               println(line);
+            return;
+         }
+         if (opt.equals("-print0")) {
+            print0 = true;
+            continue;
+         }
+         if (ai >= args.length)
+            usage();
+         String arg = args[ai++];
+         if (opt.equals("-name") || opt.equals("-iname")) {
+            name_glob = glob(arg, opt.equals("-iname"));
+         } else if (opt.equals("-path")) {
+            path_glob = glob(arg, false);
+         } else if (opt.equals("-type")) {
+            if (arg.length() != 1 || "fdl".indexOf(arg.charAt(0)) < 0)
+               error("sj-find: Unknown -type: %s", arg);
+            final byte typ = (byte) arg.charAt(0);
+            tests.add(new Test() {
+                  boolean test(SJFileIndex.Tree tree, int node) {
+                     return tree.type(node) == typ;
+                  }
+               });
+         } else if (opt.equals("-size")) {
+            char suffix = arg.isEmpty() ? 'b' : arg.charAt(arg.length() - 1);
+            int uu = "cwbkMG".indexOf(suffix);
+            final long unit = uu < 0 ? 512 :
+               new long[] { 1, 2, 512, 1024, 1024 * 1024, 1024 * 1024 * 1024 }[uu];
+            final Num num = new Num(uu < 0 ? arg : arg.substring(0, arg.length() - 1));
+            tests.add(new Test() {
+                  boolean test(SJFileIndex.Tree tree, int node) {
+                     return num.test((tree.size(node) + unit - 1) / unit);
+                  }
+               });
+         } else if (opt.equals("-mtime") || opt.equals("-mmin")) {
+            final long unit = opt.equals("-mtime") ?
+               TimeUnit.DAYS.toNanos(1) : TimeUnit.MINUTES.toNanos(1);
+            final Num num = new Num(arg);
+            tests.add(new Test() {
+                  boolean test(SJFileIndex.Tree tree, int node) {
+                     return num.test(Math.floorDiv(now - tree.mtime(node), unit));
+                  }
+               });
+         } else if (opt.equals("-newer")) {
+            final long ref;
+            try {
+               ref = Files.getLastModifiedTime(file(arg).toPath()).to(TimeUnit.NANOSECONDS);
+            } catch (IOException e) {
+               error("sj-find: Can't stat %s: %s", arg, e.getMessage());
+               return;
+            }
+            tests.add(new Test() {
+                  boolean test(SJFileIndex.Tree tree, int node) {
+                     return tree.mtime(node) > ref;
+                  }
+               });
+         } else if (opt.equals("-mindepth")) {
+            min_depth = (int) number(arg);
+         } else if (opt.equals("-maxdepth")) {
+            max_depth = (int) number(arg);
+         } else {
+            usage();
+         }
+      }
+
+      SJFileIndex index = service(SJFileIndex.class);
+      char sep = print0 ? '\0' : '\n';
+      int status = 0;
+      for (String dir : dirs) {
+         File path = file(dir);
+         if (!path.isDirectory()) {
+            stderr.println("sj-find: " + dir + ": " +
+                           (path.exists() ? "Not a directory" : "No such file or directory"));
+            status = 1;
+            continue;
+         }
+         SJFileIndex.Tree tree = index.tree(path);
+         while (!tree.await(200))
+            exitCheck();
+         StringBuilder buf = new StringBuilder();
+         search(tree, path, dir, buf, sep);
+         out().append(buf);
+         out().flush();
+      }
+      if (status != 0)
+         exit(status);
+   }
+
+   /**
+    * Append the matching paths under one directory.
+    */
+   private void search(final SJFileIndex.Tree tree, File path, final String dir,
+                       final StringBuilder out, final char sep) throws IOException {
+      final String prefix = dir.endsWith("/") ? dir : dir + "/";
+      final String base_name = base_name(dir);
+      final StringBuilder tmp = new StringBuilder();
+      name_match = null;
+      tree.scan(path, new SJFileIndex.Visitor() {
+            int base = -1;
+            public void visit(SJFileIndex.Tree tree, int node, int depth) {
+               if (depth == 0)
+                  base = node;
+               if (depth < min_depth || depth > max_depth)
+                  return;
+               if (name_glob != null && !match_name(tree, node, depth == 0 ? base_name : null))
+                  return;
+               for (Test test : tests)
+                  if (!test.test(tree, node))
+                     return;
+               tmp.setLength(0);
+               if (depth == 0) {
+                  tmp.append(dir);
+               } else {
+                  tmp.append(prefix);
+                  tree.path(node, base, tmp);
+               }
+               if (path_glob != null) {
+                  if (path_matcher == null)
+                     path_matcher = path_glob.matcher(tmp);
+                  else
+                     path_matcher.reset(tmp);
+                  if (!path_matcher.matches())
+                     return;
+               }
+               out.append(tmp).append(sep);
+            }
+         });
+   }
+
+   /**
+    * Match the name glob against a node's name, using the per-name
+    * cache unless 'name' is given.
+    */
+   private boolean match_name(SJFileIndex.Tree tree, int node, String name) {
+      if (name == null) {
+         int id = tree.nameId(node);
+         if (name_match == null || name_match.length < tree.nameCount())
+            name_match = new byte[tree.nameCount()];
+         if (name_match[id] == 0)
+            name_match[id] = (byte) (match_name(tree, node, tree.name(node)) ? 1 : 2);
+         return name_match[id] == 1;
+      }
+      if (name_matcher == null)
+         name_matcher = name_glob.matcher(name);
+      else
+         name_matcher.reset(name);
+      return name_matcher.matches();
+   }
+
+   /**
+    * Name of the start directory as find(1) matches it: the last
+    * component as given.
+    */
+   private static String base_name(String dir) {
+      int end = dir.length();
+      while (end > 1 && dir.charAt(end - 1) == '/')
+         end--;
+      String rv = dir.substring(0, end);
+      return rv.equals("/") ? rv : rv.substring(rv.lastIndexOf('/') + 1);
+   }
+
+   private long number(String arg) {
+      try {
+         return Long.parseLong(arg);
+      } catch (NumberFormatException e) {
+         error("sj-find: Bad number: %s", arg);
+         return 0;
+      }
+   }
+
+   /**
+    * Convert a shell glob to a regular expression.  As for find(1),
+    * '*' and '?' match any character including '/' and a leading '.'.
+    */
+   private static Pattern glob(String glob, boolean icase) {
+      StringBuilder re = new StringBuilder();
+      int len = glob.length();
+      for (int ii = 0; ii < len; ii++) {
+         char ch = glob.charAt(ii);
+         if (ch == '*') {
+            re.append(".*");
+         } else if (ch == '?') {
+            re.append('.');
+         } else if (ch == '\\' && ii + 1 < len) {
+            re.append(Pattern.quote(glob.substring(ii + 1, ii + 2)));
+            ii++;
+         } else if (ch == '[') {
+            int jj = ii + 1;
+            boolean neg = jj < len && (glob.charAt(jj) == '!' || glob.charAt(jj) == '^');
+            if (neg) jj++;
+            // A ']' first in the set is part of it
+            int end = glob.indexOf(']', jj < len && glob.charAt(jj) == ']' ? jj + 1 : jj);
+            if (end < 0) {
+               re.append("\\[");
+               continue;
+            }
+            re.append(neg ? "[^" : "[");
+            for (; jj < end; jj++) {
+               char cc = glob.charAt(jj);
+               if (cc != '-' && !Character.isLetterOrDigit(cc))
+                  re.append('\\');
+               re.append(cc);
+            }
+            re.append(']');
+            ii = end;
+         } else {
+            re.append(Pattern.quote(String.valueOf(ch)));
+         }
+      }
+      return Pattern.compile(re.toString(), Pattern.DOTALL |
+                             (icase ? Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE : 0));
+   }
+}
@@ -0,0 +1,863 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJFileCache;
+import net.uazu.scramjet.SJFileIndex;
+import net.uazu.scramjet.LineTool;
+import net.uazu.scramjet.Scramjet;
+import net.uazu.scramjet.Tool;
+import net.uazu.scramjet.ToolWriter;
+
+/**
+ * Search files for lines matching a pattern, like grep(1), using all
+ * processors.  Files are searched on a fork-join pool, large files
+ * memory-mapped and split into segments at line boundaries, and the
+ * results written out in file order.  Matching works on the raw
+ * bytes: a literal pattern is found by a direct byte scan, and a
+ * regular expression is run over a view of the bytes as ISO-8859-1
+ * characters, so nothing is decoded.  A consequence is that in a
+ * regular expression '.' and character classes match single bytes,
+ * and -i only folds ASCII case.
+ *
+ * <p>With -r, files are listed from the server's resident index (see
+ * {@link SJFind}) rather than by walking the directories.  With
+ * --cache, the matches found in each file are kept in the server's
+ * file cache, so a repeated search only has to stat the files which
+ * haven't changed.
+ */
+public class SJGrep extends Tool {
+   /**
+    * Files of at least this size are memory-mapped, smaller ones read.
+    */
+   private static final int MAP_MIN = 1 << 20;
+
+   /**
+    * Size of the segments large files and stdin are split into.
+    */
+   private static final int SEGMENT = 4 << 20;
+
+   /**
+    * Small files are searched in batches of up to this many files or
+    * bytes, to keep the cost of handing out work low.
+    */
+   private static final int BATCH_FILES = 256, BATCH_BYTES = 1 << 20;
+
+   /**
+    * A NUL in this many bytes at the start marks a binary file.
+    */
+   private static final int BINARY_CHECK = 8192;
+
+   public SJGrep(SJContext sjc) {
+      super(sjc);
+   }
+   public void usage() {
+      error("Usage: sj-grep [options] <pattern> [<file-or-dir>...]\n" +
+            "Patterns are Java regular expressions, as for grep -E.\n" +
+            "  -F  Pattern is a fixed string\n" +
+            "  -i  Ignore ASCII case\n" +
+            "  -v  Select non-matching lines\n" +
+            "  -w  Match whole words only\n" +
+            "  -x  Match whole lines only\n" +
+            "  -n  Prefix line numbers\n" +
+            "  -c  Print count of matching lines per file\n" +
+            "  -l  Print names of files with matches\n" +
+            "  -q  Quiet: exit status only\n" +
+            "  -H/-h  Always/never prefix file names\n" +
+            "  -r  Search directories recursively, using the resident index\n" +
+            "  --cache  Keep per-file results in the server's file cache");
+   }
+
+   private boolean opt_fixed, opt_icase, opt_invert, opt_word, opt_line;
+   private boolean opt_number, opt_count, opt_list, opt_quiet, opt_recursive, opt_cache;
+   private int opt_names = -1;
+
+   private String pattern;
+   private Pattern regex;
+   private byte[] literal;
+   private Search search;
+
+   private ForkJoinPool pool;
+   private int max_pending;
+   private final ArrayDeque<Job> pending = new ArrayDeque<Job>();
+   private List<String> batch_names = new ArrayList<String>();
+   private List<File> batch_files = new ArrayList<File>();
+   private long batch_bytes;
+   private boolean matched, failed;
+
+   // Merge state for the file being output
+   private String cur_name;
+   private long cur_base;
+   private long cur_count;
+   private boolean cur_listed;
+
+   public void run() throws Exception {
+      int ai = 0;
+      while (ai < args.length && args[ai].startsWith("-") && args[ai].length() > 1) {
+         String opt = args[ai++];
+         if (opt.equals("--")) break;
+         if (opt.equals("--cache")) {
+            opt_cache = true;
+            continue;
+         }
+         for (int ci = 1; ci < opt.length(); ci++) {
+            switch (opt.charAt(ci)) {
+            case 'F': opt_fixed = true; break;
+            case 'E': break;
+            case 'i': opt_icase = true; break;
+            case 'v': opt_invert = true; break;
+            case 'w': opt_word = true; break;
+            case 'x': opt_line = true; break;
+            case 'n': opt_number = true; break;
+            case 'c': opt_count = true; break;
+            case 'l': opt_list = true; break;
+            case 'q': opt_quiet = true; break;
+            case 'H': opt_names = 1; break;
+            case 'h': opt_names = 0; break;
+            case 'r': opt_recursive = true; break;
+            default: usage();
+            }
+         }
+      }
+      if (ai >= args.length)
+         usage();
+      pattern = args[ai++];
+      List<String> names = new ArrayList<String>();
+      while (ai < args.length)
+         names.add(args[ai++]);
+      if (names.isEmpty())
+         names.add(opt_recursive ? "." : "-");
+      if (opt_names < 0)
+         opt_names = names.size() > 1 || opt_recursive ? 1 : 0;
+
+      compile();
+      search = new Search(pattern, opt_fixed, opt_icase, opt_invert, opt_word, opt_line,
+                          regex, literal);
+      pool = newForkJoinPool(0);
+      max_pending = 4 * pool.getParallelism();
+      for (String name : names) {
+         if (name.equals("-")) {
+            search_stream("(standard input)", stdin);
+            continue;
+         }
+         File file = file(name);
+         if (file.isDirectory()) {
+            if (opt_recursive) {
+               search_tree(name, file);
+            } else {
+               stderr.println("sj-grep: " + name + ": Is a directory");
+               failed = true;
+            }
+            continue;
+         }
+         search_file(name, file);
+      }
+      flush_batch();
+      drain(0);
+      out().flush();
+      exit(failed ? 2 : matched ? 0 : 1);
+   }
+
+   /**
+    * Set up 'regex' or 'literal' from the pattern and options.
+    * Non-ASCII characters in the pattern are converted to the bytes
+    * they are encoded as, one char per byte.
+    */
+   private void compile() {
+      String bytes = new String(pattern.getBytes(Scramjet.charset), StandardCharsets.ISO_8859_1);
+      boolean simple = opt_fixed || !has_meta(pattern);
+      boolean ascii = true;
+      for (int ii = 0; ii < pattern.length(); ii++)
+         if (pattern.charAt(ii) >= 0x80) ascii = false;
+      if (simple && !opt_word && !opt_line && (ascii || !opt_icase)) {
+         literal = bytes.getBytes(StandardCharsets.ISO_8859_1);
+         if (opt_icase)
+            for (int ii = 0; ii < literal.length; ii++)
+               literal[ii] = FOLD[literal[ii] & 255];
+         return;
+      }
+      String re = simple ? Pattern.quote(bytes) : bytes;
+      if (opt_word)
+         re = "(?<![A-Za-z0-9_])(?:" + re + ")(?![A-Za-z0-9_])";
+      if (opt_line)
+         re = "^(?:" + re + ")$";
+      try {
+         // MULTILINE since the search runs over many lines at once
+         regex = Pattern.compile(re, Pattern.MULTILINE |
+                                 (opt_icase ? Pattern.CASE_INSENSITIVE : 0));
+      } catch (PatternSyntaxException e) {
+         error("sj-grep: %s", e.getMessage());
+      }
+   }
+
+   private static boolean has_meta(String pat) {
+      for (int ii = 0; ii < pat.length(); ii++)
+         if ("\\^$.|?*+()[]{}".indexOf(pat.charAt(ii)) >= 0)
+            return true;
+      return false;
+   }
+
+   /**
+    * View of a byte array as longs, and constants for finding a byte
+    * in a long: (x - ONES) & ~x & HIGHS is non-zero if x has a zero
+    * byte, and its lowest set bit marks the first one.
+    */
+   private static final VarHandle LONGS =
+      MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+   private static final long ONES = 0x0101010101010101L;
+   private static final long HIGHS = 0x8080808080808080L;
+
+   /**
+    * Bytes roughly in order of how common they are in text and
+    * source code, most common first.  Others are taken as rarer.
+    */
+   private static final String COMMON = " e\ntaoinsrhldcu\t.m,(;)=fp_g/wy\"b-vk:x'jqz";
+
+   private static int rarity(byte bb) {
+      int ii = COMMON.indexOf((char) (bb & 255));
+      return ii < 0 ? COMMON.length() : ii;
+   }
+
+   /**
+    * ASCII case folding table.
+    */
+   private static final byte[] FOLD = new byte[256];
+   static {
+      for (int ii = 0; ii < 256; ii++)
+         FOLD[ii] = (byte) (ii >= 'A' && ii <= 'Z' ? ii + 32 : ii);
+   }
+
+   // ------------------------------------------------------------
+   // Work generation, on the tool's thread
+
+   /**
+    * Search all regular files found under a directory in the
+    * resident index.
+    */
+   private void search_tree(String name, File dir) throws Exception {
+      SJFileIndex.Tree tree = service(SJFileIndex.class).tree(dir);
+      while (!tree.await(200))
+         exitCheck();
+      final String prefix = name.endsWith("/") ? name : name + "/";
+      final List<String> files = new ArrayList<String>();
+      final StringBuilder buf = new StringBuilder();
+      tree.scan(dir, new SJFileIndex.Visitor() {
+            int base;
+            public void visit(SJFileIndex.Tree tree, int node, int depth) {
+               if (depth == 0)
+                  base = node;
+               if (tree.type(node) != SJFileIndex.FILE)
+                  return;
+               buf.setLength(0);
+               buf.append(prefix);
+               tree.path(node, base, buf);
+               files.add(buf.toString());
+            }
+         });
+      for (String path : files)
+         search_file(path, file(path));
+   }
+
+   private void search_file(String name, File file) throws Exception {
+      long size = opt_cache ? 0 : file.length();
+      if (size > Integer.MAX_VALUE) {
+         stderr.println("sj-grep: " + name + ": File too large to map");
+         failed = true;
+         return;
+      }
+      if (size < MAP_MIN) {
+         batch_names.add(name);
+         batch_files.add(file);
+         batch_bytes += size;
+         if (batch_files.size() >= BATCH_FILES || batch_bytes >= BATCH_BYTES)
+            flush_batch();
+         return;
+      }
+
+      final ByteBuffer map;
+      FileChannel chan = null;
+      try {
+         chan = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+         map = chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size());
+      } catch (IOException e) {
+         stderr.println("sj-grep: " + name + ": " + error_text(e));
+         failed = true;
+         return;
+      } finally {
+         if (chan != null)
+            chan.close();
+      }
+      final boolean binary = is_binary(map);
+      int len = map.limit();
+      for (int start = 0; start < len; ) {
+         int end = segment_end(map, start, len);
+         final int from = start, to = end;
+         submit(name, from == 0, to == len, new Callable<Hits>() {
+               public Hits call() {
+                  return search.run(map, from, to, binary, collect(), stop_first(), opt_number);
+               }
+            });
+         start = end;
+      }
+   }
+
+   /**
+    * Submit the batch of small files collected so far.
+    */
+   private void flush_batch() throws Exception {
+      if (batch_files.isEmpty())
+         return;
+      final List<File> files = batch_files;
+      drain(max_pending - 1);
+      pending.add(new Job(batch_names, true, true, pool.submit(new Callable<Hits[]>() {
+            public Hits[] call() {
+               Hits[] rv = new Hits[files.size()];
+               for (int ii = 0; ii < rv.length; ii++)
+                  rv[ii] = search_small(files.get(ii));
+               return rv;
+            }
+         })));
+      batch_names = new ArrayList<String>();
+      batch_files = new ArrayList<File>();
+      batch_bytes = 0;
+   }
+
+   /**
+    * Search a whole file, read into memory or from the file cache.
+    */
+   private Hits search_small(File file) {
+      try {
+         if (opt_cache)
+            return SJFileCache.get(file, search);
+         byte[] data = Files.readAllBytes(file.toPath());
+         ByteBuffer buf = ByteBuffer.wrap(data);
+         return search.run(buf, 0, data.length, is_binary(buf),
+                           collect(), stop_first(), opt_number);
+      } catch (IOException e) {
+         return new Hits(error_text(e));
+      }
+   }
+
+   /**
+    * Split stdin into segments as it arrives.
+    */
+   private void search_stream(String name, InputStream in) throws Exception {
+      byte[] data = new byte[SEGMENT + SEGMENT / 4];
+      int len = 0;
+      boolean first = true;
+      // Binary or not is decided from the first segment, as for a file
+      boolean binary = false;
+      while (true) {
+         if (len == data.length)
+            data = Arrays.copyOf(data, len * 2);
+         int cnt = in.read(data, len, data.length - len);
+         if (cnt > 0) {
+            len += cnt;
+            exitCheck();
+            if (len < SEGMENT)
+               continue;
+         }
+         int split = len;
+         if (cnt > 0) {
+            while (split > 0 && data[split-1] != '\n')
+               split--;
+            if (split == 0)
+               continue;
+         }
+         final int end = split;
+         final ByteBuffer buf = ByteBuffer.wrap(data, 0, end);
+         if (first)
+            binary = is_binary(buf);
+         final boolean seg_binary = binary;
+         submit(name, first, cnt < 0, new Callable<Hits>() {
+               public Hits call() {
+                  return search.run(buf, 0, end, seg_binary, collect(), stop_first(), opt_number);
+               }
+            });
+         first = false;
+         if (cnt < 0)
+            break;
+         byte[] next = new byte[data.length];
+         System.arraycopy(data, split, next, 0, len - split);
+         data = next;
+         len -= split;
+      }
+   }
+
+   /**
+    * Find the end of the segment starting at 'start': just after the
+    * first newline at or after start + SEGMENT, or the end.
+    */
+   private static int segment_end(ByteBuffer buf, int start, int len) {
+      if (len - start <= SEGMENT)
+         return len;
+      for (int ii = start + SEGMENT - 1; ii < len; ii++)
+         if (buf.get(ii) == '\n')
+            return ii + 1;
+      return len;
+   }
+
+   private static boolean is_binary(ByteBuffer buf) {
+      int end = Math.min(buf.limit(), BINARY_CHECK);
+      for (int ii = 0; ii < end; ii++)
+         if (buf.get(ii) == 0)
+            return true;
+      return false;
+   }
+
+   private static String error_text(IOException e) {
+      if (e instanceof NoSuchFileException)
+         return "No such file or directory";
+      String msg = e.getMessage();
+      return msg == null ? e.toString() : msg;
+   }
+
+   private boolean collect() {
+      return !opt_count && !opt_list && !opt_quiet;
+   }
+
+   private boolean stop_first() {
+      return opt_list || opt_quiet;
+   }
+
+   // ------------------------------------------------------------
+   // Merging, on the tool's thread
+
+   /**
+    * A batch of whole files, or a segment of one file, queued for
+    * searching.
+    */
+   private static class Job {
+      final List<String> names;
+      final boolean first, last;
+      final Future<Hits[]> result;
+      Job(List<String> names, boolean first, boolean last, Future<Hits[]> result) {
+         this.names = names;
+         this.first = first;
+         this.last = last;
+         this.result = result;
+      }
+   }
+
+   /**
+    * Submit a search of one segment of a file, after any batch of
+    * files before it.
+    */
+   private void submit(String name, boolean first, boolean last, final Callable<Hits> task)
+      throws Exception {
+      flush_batch();
+      drain(max_pending - 1);
+      pending.add(new Job(Collections.singletonList(name), first, last,
+                          pool.submit(new Callable<Hits[]>() {
+                                public Hits[] call() throws Exception {
+                                   return new Hits[] { task.call() };
+                                }
+                             })));
+   }
+
+   /**
+    * Write out the results of finished jobs in order, waiting as
+    * necessary, until no more than 'limit' remain in progress.
+    */
+   private void drain(int limit) throws Exception {
+      while (pending.size() > limit) {
+         Job job = pending.peek();
+         Hits[] hits;
+         try {
+            hits = job.result.get();
+         } catch (ExecutionException e) {
+            Throwable ee = e.getCause();
+            if (ee instanceof Exception)
+               throw (Exception) ee;
+            if (ee instanceof Error)
+               throw (Error) ee;
+            throw e;
+         }
+         pending.poll();
+         for (int ii = 0; ii < hits.length; ii++)
+            output(job.names.get(ii), job.first, job.last, hits[ii]);
+      }
+   }
+
+   private void output(String name, boolean first, boolean last, Hits hits) {
+      ToolWriter out = out();
+      if (first) {
+         cur_name = name;
+         cur_base = 0;
+         cur_count = 0;
+         cur_listed = false;
+      }
+      if (hits.error != null) {
+         out.flush();
+         stderr.println("sj-grep: " + name + ": " + hits.error);
+         failed = true;
+         return;
+      }
+      if (hits.count > 0) {
+         matched = true;
+         if (opt_quiet)
+            exit(0);
+      }
+      cur_count += hits.count;
+      if (opt_list) {
+         if (hits.count > 0 && !cur_listed) {
+            out.append(cur_name).newline();
+            cur_listed = true;
+         }
+      } else if (opt_count) {
+         if (last) {
+            if (opt_names > 0)
+               out.append(cur_name).append(':');
+            out.append(cur_count).newline();
+         }
+      } else if (hits.binary) {
+         if (hits.count > 0 && !cur_listed) {
+            out.append("sj-grep: ").append(cur_name).append(": binary file matches").newline();
+            cur_listed = true;
+         }
+      } else {
+         for (int ii = 0; ii < hits.count; ii++) {
+            if (opt_names > 0)
+               out.append(cur_name).append(':');
+            if (opt_number)
+               out.append(cur_base + hits.lineno[ii]).append(':');
+            out.append(hits.data, hits.off[ii], hits.len[ii]).newline();
+         }
+      }
+      cur_base += hits.lines;
+   }
+
+   // ------------------------------------------------------------
+   // Searching, on the pool's threads
+
+   /**
+    * Lines found in a file or segment: their text and line numbers
+    * relative to the segment, or just a count.
+    */
+   private static class Hits {
+      int count;
+      long lines;
+      long[] lineno;
+      int[] off;
+      int[] len;
+      byte[] data;
+      int data_len;
+      boolean binary;
+      final String error;
+
+      Hits() {
+         error = null;
+      }
+
+      Hits(String error) {
+         this.error = error;
+      }
+
+      void add(byte[] buf, int start, int end, long line, boolean collect) {
+         if (collect) {
+            if (lineno == null) {
+               lineno = new long[16];
+               off = new int[16];
+               len = new int[16];
+               data = new byte[Math.max(256, 2 * (end - start))];
+            } else if (count == lineno.length) {
+               lineno = Arrays.copyOf(lineno, count * 2);
+               off = Arrays.copyOf(off, count * 2);
+               len = Arrays.copyOf(len, count * 2);
+            }
+            int ll = end - start;
+            if (data_len + ll > data.length)
+               data = Arrays.copyOf(data, Math.max(data.length * 2, data_len + ll));
+            System.arraycopy(buf, start, data, data_len, ll);
+            lineno[count] = line;
+            off[count] = data_len;
+            len[count] = ll;
+            data_len += ll;
+         }
+         count++;
+      }
+   }
+
+   /**
+    * Per-thread buffer that segments of mapped files are copied into
+    * for searching.
+    */
+   private static final ThreadLocal<byte[]> scratch = new ThreadLocal<byte[]>();
+
+   /**
+    * The compiled search, also the parser for results kept in the
+    * file cache, which match on the options affecting the result.
+    */
+   private static class Search extends SJFileCache.Parser<Hits> {
+      private final String key;
+      private final boolean invert;
+      private final Pattern regex;
+      private final byte[] literal;
+      private final boolean icase;
+      private final int rare;
+
+      Search(String pattern, boolean fixed, boolean icase, boolean invert,
+             boolean word, boolean line, Pattern regex, byte[] literal) {
+         this.key = pattern + '\0' + fixed + icase + invert + word + line;
+         this.invert = invert;
+         this.regex = regex;
+         this.literal = literal;
+         this.icase = icase;
+         // Scan for the byte of the literal least likely to occur
+         int rp = 0;
+         if (literal != null)
+            for (int ii = 1; ii < literal.length; ii++)
+               if (rarity(literal[ii]) >= rarity(literal[rp]))
+                  rp = ii;
+         rare = rp;
+      }
+
+      public Hits parse(ByteBuffer data) {
+         return run(data, 0, data.limit(), is_binary(data), true, false, true);
+      }
+
+      public long weight(Hits value, long file_size) {
+         return 64 + value.data_len + 16L * value.count;
+      }
+
+      public boolean equals(Object obj) {
+         return obj instanceof Search && ((Search) obj).key.equals(key);
+      }
+
+      public int hashCode() {
+         return key.hashCode();
+      }
+
+      /**
+       * Search the lines in buf[from,to).  Unless the buffer is a
+       * plain array, the range is first copied into a per-thread
+       * array with a bulk get, which costs much less than the search.
+       * @param collect Keep the lines found, else only count them
+       * @param stop_first Stop at the first line found
+       * @param number Count all lines, for line numbers
+       */
+      Hits run(ByteBuffer buf, int from, int to, boolean binary,
+               boolean collect, boolean stop_first, boolean number) {
+         if (buf.hasArray() && buf.arrayOffset() == 0)
+            return run(buf.array(), from, to, binary, collect, stop_first, number);
+         byte[] arr = scratch.get();
+         if (arr == null || arr.length < to - from)
+            scratch.set(arr = new byte[Math.max(to - from, SEGMENT + SEGMENT / 4)]);
+         ByteBuffer src = buf.duplicate();
+         src.limit(to).position(from);
+         src.get(arr, 0, to - from);
+         return run(arr, 0, to - from, binary, collect, stop_first, number);
+      }
+
+      private Hits run(byte[] buf, int from, int to, boolean binary,
+                       boolean collect, boolean stop_first, boolean number) {
+         Hits hits = new Hits();
+         hits.binary = binary;
+         if (binary) {
+            // Only whether it matches is reported, not the lines
+            if (collect)
+               stop_first = true;
+            collect = false;
+         }
+         long line = 0;        // Newlines in [from,pos)
+         int pos = from;
+         if (invert) {
+            Matcher mat = regex == null ? null : regex.matcher(new ByteChars(buf));
+            while (pos < to) {
+               int le = index_nl(buf, pos, to);
+               boolean found = mat != null ? mat.region(pos, le).find() : find(buf, pos, le) >= 0;
+               if (!found) {
+                  hits.add(buf, pos, le, line + 1, collect);
+                  if (stop_first)
+                     return hits;
+               }
+               if (le < to)
+                  line++;
+               pos = le + 1;
+            }
+         } else {
+            // Skip straight to each match, then find its line
+            Matcher mat = regex == null ? null : regex.matcher(new ByteChars(buf));
+            Matcher check = null;
+            while (pos < to) {
+               int hit;
+               if (mat == null) {
+                  hit = find(buf, pos, to);
+               } else {
+                  hit = mat.region(pos, to).find() ? mat.start() : -1;
+               }
+               if (hit < 0)
+                  break;
+               int ls = hit;
+               while (ls > pos && buf[ls-1] != '\n')
+                  ls--;
+               int le = index_nl(buf, hit, to);
+               boolean found = true;
+               if (mat != null && mat.end() > le) {
+                  // Match ran over the end of the line, so try the
+                  // line by itself
+                  if (check == null)
+                     check = regex.matcher(new ByteChars(buf));
+                  found = check.region(ls, le).find();
+               }
+               if (number)
+                  line += count_nl(buf, pos, ls);
+               if (found) {
+                  hits.add(buf, ls, le, line + 1, collect);
+                  if (stop_first)
+                     return hits;
+               }
+               if (le < to)
+                  line++;
+               pos = le + 1;
+            }
+            if (number && pos < to)
+               line += count_nl(buf, pos, to);
+         }
+         hits.lines = line;
+         return hits;
+      }
+
+      /**
+       * Find the literal in buf[from,to), or -1.  Looks for its
+       * rarest byte eight bytes at a time, reading each eight as a
+       * long and testing all of them at once for the byte, then
+       * checks the rest of the literal around each one found.
+       */
+      private int find(byte[] buf, int from, int to) {
+         byte[] pat = literal;
+         int plen = pat.length;
+         if (plen == 0)
+            return from;
+         byte rb = pat[rare];
+         long want = (rb & 0xFFL) * ONES;
+         long fold = icase && rb >= 'a' && rb <= 'z' ? 0x2020202020202020L : 0;
+         int end = to - plen + rare;   // Last place the rare byte may be
+         for (int aa = from + rare; aa <= end; ) {
+            int hit;
+            if (aa + 8 <= to) {
+               long xx = ((long) LONGS.get(buf, aa) | fold) ^ want;
+               long tt = (xx - ONES) & ~xx & HIGHS;
+               if (tt == 0) {
+                  aa += 8;
+                  continue;
+               }
+               hit = aa + (Long.numberOfTrailingZeros(tt) >>> 3);
+               if (hit > end)
+                  return -1;
+            } else {
+               byte cc = icase ? FOLD[buf[aa] & 255] : buf[aa];
+               if (cc != rb) {
+                  aa++;
+                  continue;
+               }
+               hit = aa;
+            }
+            int start = hit - rare;
+            int bb = 0;
+            if (icase) {
+               while (bb < plen && FOLD[buf[start + bb] & 255] == pat[bb])
+                  bb++;
+            } else {
+               while (bb < plen && buf[start + bb] == pat[bb])
+                  bb++;
+            }
+            if (bb == plen)
+               return start;
+            aa = hit + 1;
+         }
+         return -1;
+      }
+
+      /**
+       * Index of the next newline, or 'to' if none.
+       */
+      private static int index_nl(byte[] buf, int from, int to) {
+         int nl = LineTool.indexOf(buf, from, to, (byte) '\n');
+         return nl < 0 ? to : nl;
+      }
+
+      private static int count_nl(byte[] buf, int from, int to) {
+         int cnt = 0;
+         for (int aa = from; aa < to; aa++)
+            if (buf[aa] == '\n')
+               cnt++;
+         return cnt;
+      }
+   }
+
+   /**
+    * View of a byte array as ISO-8859-1 characters, for running
+    * regular expressions over undecoded data.
+    */
+   private static class ByteChars implements CharSequence {
+      private final byte[] buf;
+      private final int off, len;
+
+      ByteChars(byte[] buf) {
+         this(buf, 0, buf.length);
+      }
+
+      ByteChars(byte[] buf, int off, int len) {
+         this.buf = buf;
+         this.off = off;
+         this.len = len;
+      }
+
+      public int length() {
+         return len;
+      }
+
+      public char charAt(int index) {
+         return (char) (buf[off + index] & 255);
+      }
+
+      public CharSequence subSequence(int start, int end) {
+         if (start < 0 || end > len || start > end)
+            throw new IndexOutOfBoundsException();
+         return new ByteChars(buf, off + start, end - start);
+      }
+
+      public String toString() {
+         return new String(buf, off, len, StandardCharsets.ISO_8859_1);
+      }
+   }
+}
@@ -0,0 +1,710 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.tool;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJService;
+import net.uazu.scramjet.Scramjet;
+import net.uazu.scramjet.Tool;
+
+/**
+ * Compile Java sources with the JDK's compiler running inside the
+ * server, which is already loaded and JIT-compiled after the first
+ * run.  Arguments are as for javac.
+ *
+ * <p>With -d, compilation is incremental.  The file manager for each
+ * output directory is kept between runs, so the jars on the classpath
+ * are only opened and indexed once, and is replaced if the options or
+ * any jar on the classpath changes.  The classes produced from each
+ * source are recorded, with the classes they refer to and a hash of
+ * their API, i.e. the non-private parts of their class files.  On
+ * later runs only the sources that have changed are compiled, with the
+ * output directory on the classpath so the rest are read from their
+ * class files, and then any sources referring to a class whose API
+ * changed, or to a subclass of it, are compiled too, and so on.  A
+ * change to a compile-time constant, which javac copies into the
+ * classes that use it, causes everything to be compiled.
+ *
+ * <p>Annotation processors only run if requested with -processor or
+ * -processorpath, and then compilation is never incremental.
+ */
+public class SJJavac extends Tool {
+   public SJJavac(SJContext sjc) {
+      super(sjc);
+   }
+   public void usage() {
+      error("Usage: sj-javac [--sj-full] [--sj-verbose] <javac-options> <source-files>\n" +
+            "  --sj-full     Compile all the sources given, not just those changed\n" +
+            "  --sj-verbose  Report which sources are compiled\n" +
+            "Compilation is incremental when -d is given.");
+   }
+
+   /**
+    * javac options taking a path argument, which is resolved against
+    * the command's directory.
+    */
+   private static final Set<String> PATH_OPTS = new HashSet<String>(Arrays.asList(
+         "-d", "-s", "-h"));
+
+   /**
+    * javac options taking a list of paths.
+    */
+   private static final Set<String> PATHLIST_OPTS = new HashSet<String>(Arrays.asList(
+         "-cp", "-classpath", "--class-path", "-sourcepath", "--source-path",
+         "-processorpath", "--processor-path", "--module-path", "-p",
+         "--module-source-path", "--upgrade-module-path", "-bootclasspath",
+         "--boot-class-path", "-extdirs", "-endorseddirs", "--processor-module-path"));
+
+   /**
+    * Other javac options taking an argument.
+    */
+   private static final Set<String> ARG_OPTS = new HashSet<String>(Arrays.asList(
+         "-encoding", "-source", "--source", "-target", "--target", "--release",
+         "-processor", "--add-modules", "--limit-modules", "--add-exports",
+         "--add-reads", "--patch-module", "--system", "--module", "-m",
+         "--default-module-for-created-files", "-Xmaxerrs", "-Xmaxwarns",
+         "-Xdoclint/package:"));
+
+   public void run() throws Exception {
+      List<String> opts = new ArrayList<String>();
+      List<File> sources = new ArrayList<File>();
+      List<String> jars = new ArrayList<String>();
+      File outdir = null;
+      boolean full = false;
+      boolean verbose = false;
+      boolean processors = false;
+
+      List<String> list = expand(args);
+      for (int ai = 0; ai < list.size(); ai++) {
+         String arg = list.get(ai);
+         if (arg.equals("--sj-full")) {
+            full = true;
+         } else if (arg.equals("--sj-verbose")) {
+            verbose = true;
+         } else if (arg.startsWith("-J")) {
+            error("sj-javac: -J options are not supported in the server");
+         } else if (!arg.startsWith("-")) {
+            sources.add(file(arg));
+         } else if (PATH_OPTS.contains(arg) || PATHLIST_OPTS.contains(arg) ||
+                    ARG_OPTS.contains(arg)) {
+            if (ai + 1 >= list.size())
+               error("sj-javac: %s requires an argument", arg);
+            String val = list.get(++ai);
+            if (PATH_OPTS.contains(arg)) {
+               val = file(val).getPath();
+               if (arg.equals("-d"))
+                  outdir = new File(val);
+            } else if (PATHLIST_OPTS.contains(arg)) {
+               StringBuilder buf = new StringBuilder();
+               for (String elem : val.split(File.pathSeparator, -1)) {
+                  if (buf.length() > 0)
+                     buf.append(File.pathSeparatorChar);
+                  String path = elem.isEmpty() ? cwd.getPath() : file(elem).getPath();
+                  buf.append(path);
+                  if (path.endsWith(".jar") || path.endsWith(".zip"))
+                     jars.add(path);
+               }
+               val = buf.toString();
+            }
+            if (arg.startsWith("-processor") || arg.equals("--processor-path") ||
+                arg.equals("--processor-module-path"))
+               processors = true;
+            opts.add(arg);
+            opts.add(val);
+         } else {
+            if (arg.equals("-proc:only") || arg.equals("-proc:full"))
+               processors = true;
+            opts.add(arg);
+         }
+      }
+      if (sources.isEmpty())
+         usage();
+      if (!processors && !opts.contains("-proc:none"))
+         opts.add("-proc:none");
+      if (outdir != null && !outdir.isDirectory() && !outdir.mkdirs())
+         error("sj-javac: Can't create directory %s", outdir);
+      if (outdir != null)
+         add_to_classpath(opts, outdir);
+
+      JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+      if (compiler == null)
+         error("sj-javac: No Java compiler available; the server must run on a JDK");
+
+      Projects projects = service(Projects.class);
+      String key = (outdir == null ? cwd.getPath() : outdir.getCanonicalPath());
+      Project proj = projects.get(key, opts, jars, outdir != null && !processors);
+      int status;
+      synchronized (proj) {
+         status = proj.compile(this, compiler, opts, sources, full, verbose);
+      }
+      exit(status);
+   }
+
+   /**
+    * Put the output directory first on the classpath, so that classes
+    * not being compiled are found there.  Without a classpath option,
+    * javac's default is the CLASSPATH variable or else ".", so that is
+    * made explicit, since the server's own would be used otherwise.
+    */
+   private void add_to_classpath(List<String> opts, File outdir) {
+      for (int ii = 0; ii + 1 < opts.size(); ii++) {
+         String opt = opts.get(ii);
+         if (opt.equals("-cp") || opt.equals("-classpath") || opt.equals("--class-path")) {
+            opts.set(ii + 1, outdir.getPath() + File.pathSeparator + opts.get(ii + 1));
+            return;
+         }
+      }
+      String cp = env.get("CLASSPATH");
+      StringBuilder buf = new StringBuilder(outdir.getPath());
+      for (String elem : (cp == null ? "." : cp).split(File.pathSeparator, -1))
+         buf.append(File.pathSeparatorChar).append(elem.isEmpty() ? cwd.getPath() : file(elem).getPath());
+      opts.add("-classpath");
+      opts.add(buf.toString());
+   }
+
+   /**
+    * Expand @argfiles, whose contents are whitespace-separated
+    * arguments, optionally in double quotes.
+    */
+   private List<String> expand(String[] args) throws IOException {
+      List<String> rv = new ArrayList<String>();
+      for (String arg : args) {
+         if (!arg.startsWith("@")) {
+            rv.add(arg);
+            continue;
+         }
+         String text = new String(Files.readAllBytes(file(arg.substring(1)).toPath()),
+                                  Scramjet.charset);
+         Matcher mat = ARGFILE_WORD.matcher(text);
+         while (mat.find())
+            rv.add(mat.group(1) != null ? mat.group(1) : mat.group(2));
+      }
+      return rv;
+   }
+
+   private static final Pattern ARGFILE_WORD = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+   /**
+    * Resident service holding a {@link Project} per output directory.
+    */
+   public static class Projects extends SJService {
+      private final Map<String,Project> projects = new HashMap<String,Project>();
+
+      protected void start() {}
+
+      protected void stop() {
+         List<Project> list;
+         synchronized (this) {
+            list = new ArrayList<Project>(projects.values());
+            projects.clear();
+         }
+         for (Project proj : list)
+            proj.close();
+      }
+
+      /**
+       * Get the project for an output directory, replacing it if the
+       * options or any of the jars have changed.
+       */
+      Project get(String key, List<String> opts, List<String> jars, boolean incremental) {
+         StringBuilder buf = new StringBuilder();
+         for (String opt : opts)
+            buf.append(opt).append('\0');
+         buf.append(incremental).append('\0');
+         for (String jar : jars)
+            buf.append(fingerprint(new File(jar))).append('\0');
+         String config = buf.toString();
+         Project proj, old;
+         synchronized (this) {
+            proj = old = projects.get(key);
+            if (proj == null || !proj.config.equals(config)) {
+               proj = new Project(config, incremental);
+               projects.put(key, proj);
+            }
+         }
+         if (old != null && old != proj) {
+            Scramjet.log("sj-javac: Options or classpath changed for " + key);
+            old.close();
+         }
+         return proj;
+      }
+   }
+
+   /**
+    * What is known about one source file from its last compilation.
+    */
+   private static class Source {
+      final String print;
+      final List<File> class_files = new ArrayList<File>();
+      final Set<String> classes = new HashSet<String>();
+      final Set<String> refs = new HashSet<String>();
+      Source(String print) {
+         this.print = print;
+      }
+   }
+
+   /**
+    * Compilation state for one output directory.
+    */
+   private static class Project {
+      final String config;
+      final boolean incremental;
+      private StandardJavaFileManager fm;
+      private final Map<File,Source> sources = new HashMap<File,Source>();
+      private final Map<String,ClassInfo> classes = new HashMap<String,ClassInfo>();
+
+      Project(String config, boolean incremental) {
+         this.config = config;
+         this.incremental = incremental;
+      }
+
+      synchronized void close() {
+         if (fm != null) {
+            try {
+               fm.close();
+            } catch (IOException e) {}
+            fm = null;
+         }
+      }
+
+      int compile(Tool tool, JavaCompiler compiler, List<String> opts,
+                  List<File> files, boolean full, boolean verbose) throws IOException {
+         if (fm == null)
+            fm = compiler.getStandardFileManager(null, null, null);
+         if (!incremental)
+            full = true;
+         if (full) {
+            sources.clear();
+            classes.clear();
+         }
+
+         Set<File> wanted = new LinkedHashSet<File>();
+         for (File file : files)
+            wanted.add(file.getCanonicalFile());
+
+         // Sources no longer given: drop their classes
+         Set<String> changed = new HashSet<String>();
+         for (File src : new ArrayList<File>(sources.keySet())) {
+            if (!wanted.contains(src))
+               changed.addAll(forget(src));
+         }
+
+         Set<File> todo = new LinkedHashSet<File>();
+         Map<File,String> prints = new HashMap<File,String>();
+         for (File src : wanted) {
+            String print = fingerprint(src);
+            prints.put(src, print);
+            Source old = sources.get(src);
+            if (old == null || !old.print.equals(print))
+               todo.add(src);
+         }
+         // Sources using the classes dropped above must be compiled
+         // again, even if nothing else changed, to find any now broken
+         if (!changed.isEmpty()) {
+            add_subtypes(changed);
+            for (File src : wanted) {
+               Source info = sources.get(src);
+               if (info != null && !Collections.disjoint(info.refs, changed))
+                  todo.add(src);
+            }
+         }
+
+         Set<File> done = new HashSet<File>();
+         boolean consts_changed = false;
+         PrintWriter err = new PrintWriter(tool.stderr, true);
+         while (!todo.isEmpty()) {
+            tool.exitCheck();
+            if (verbose)
+               tool.stderr.println("sj-javac: compiling " + todo.size() + " source" +
+                                   (todo.size() == 1 ? "" : "s") + ": " + names(todo));
+            Map<String,ClassInfo> old_classes = new HashMap<String,ClassInfo>();
+            for (File src : todo) {
+               Source old = sources.get(src);
+               if (old != null)
+                  for (String name : old.classes)
+                     old_classes.put(name, classes.get(name));
+               forget(src);
+            }
+
+            Recorder rec = new Recorder(fm);
+            Map<URI,File> uris = new HashMap<URI,File>();
+            List<JavaFileObject> units = new ArrayList<JavaFileObject>();
+            for (JavaFileObject jfo : fm.getJavaFileObjectsFromFiles(todo)) {
+               units.add(jfo);
+               uris.put(jfo.toUri(), new File(jfo.toUri()).getCanonicalFile());
+            }
+            boolean ok;
+            try {
+               ok = compiler.getTask(err, rec, null, opts, null, units).call();
+            } catch (IllegalArgumentException e) {
+               err.println("sj-javac: error: " + e.getMessage());
+               return 2;
+            } catch (IllegalStateException e) {
+               err.println("sj-javac: error: " + e.getMessage());
+               return 2;
+            } finally {
+               fm.flush();
+               err.flush();
+            }
+            if (!ok) {
+               // Leave these out of the state, so they're compiled
+               // again next time
+               return 1;
+            }
+            done.addAll(todo);
+
+            // Record what was produced, and see whose API changed
+            for (File src : todo) {
+               Source info = new Source(prints.get(src));
+               sources.put(src, info);
+            }
+            for (Map.Entry<URI,List<File>> ent : rec.outputs.entrySet()) {
+               File src = uris.get(ent.getKey());
+               Source info = src == null ? null : sources.get(src);
+               if (info == null)
+                  continue;
+               for (File cf : ent.getValue()) {
+                  ClassInfo ci;
+                  try {
+                     ci = new ClassInfo(Files.readAllBytes(cf.toPath()));
+                  } catch (IOException e) {
+                     continue;
+                  }
+                  info.class_files.add(cf);
+                  info.classes.add(ci.name);
+                  info.refs.addAll(ci.refs);
+                  classes.put(ci.name, ci);
+                  ClassInfo old = old_classes.remove(ci.name);
+                  if (old == null || !old.api.equals(ci.api))
+                     changed.add(ci.name);
+                  if (old != null && !old.consts.equals(ci.consts))
+                     consts_changed = true;
+               }
+            }
+            changed.addAll(old_classes.keySet());
+            add_subtypes(changed);
+
+            todo.clear();
+            for (File src : wanted) {
+               if (done.contains(src))
+                  continue;
+               Source info = sources.get(src);
+               if (consts_changed || info == null || !Collections.disjoint(info.refs, changed))
+                  todo.add(src);
+            }
+            changed.clear();
+            consts_changed = false;
+         }
+         return 0;
+      }
+
+      /**
+       * Drop a source's state and delete its class files.
+       * @return The classes it produced
+       */
+      private Set<String> forget(File src) {
+         Source info = sources.remove(src);
+         if (info == null)
+            return Collections.emptySet();
+         for (File cf : info.class_files)
+            cf.delete();
+         for (String name : info.classes)
+            classes.remove(name);
+         return info.classes;
+      }
+
+      /**
+       * Add to a set of changed classes all the known classes which
+       * extend or implement them, directly or indirectly.  A call to
+       * an inherited member is recorded against the subtype named in
+       * the source, so a change to a supertype changes the subtype's
+       * API as far as its users are concerned.
+       */
+      private void add_subtypes(Set<String> changed) {
+         boolean more = !changed.isEmpty();
+         while (more) {
+            more = false;
+            for (ClassInfo ci : classes.values()) {
+               if (!changed.contains(ci.name) && !Collections.disjoint(ci.supers, changed)) {
+                  changed.add(ci.name);
+                  more = true;
+               }
+            }
+         }
+      }
+
+      private static String names(Set<File> files) {
+         StringBuilder buf = new StringBuilder();
+         int cnt = 0;
+         for (File file : files) {
+            if (cnt++ == 5) {
+               buf.append(" ...");
+               break;
+            }
+            if (buf.length() > 0)
+               buf.append(' ');
+            buf.append(file.getName());
+         }
+         return buf.toString();
+      }
+   }
+
+   /**
+    * File manager wrapper noting the class files written for each
+    * source.
+    */
+   private static class Recorder extends ForwardingJavaFileManager<StandardJavaFileManager> {
+      final Map<URI,List<File>> outputs = new HashMap<URI,List<File>>();
+
+      Recorder(StandardJavaFileManager fm) {
+         super(fm);
+      }
+
+      public JavaFileObject getJavaFileForOutput(Location loc, String name,
+                                                 JavaFileObject.Kind kind,
+                                                 FileObject sibling) throws IOException {
+         JavaFileObject rv = super.getJavaFileForOutput(loc, name, kind, sibling);
+         if (kind == JavaFileObject.Kind.CLASS && sibling != null &&
+             "file".equals(rv.toUri().getScheme())) {
+            List<File> list = outputs.get(sibling.toUri());
+            if (list == null)
+               outputs.put(sibling.toUri(), list = new ArrayList<File>());
+            list.add(new File(rv.toUri()));
+         }
+         return rv;
+      }
+   }
+
+   /**
+    * Identity, size and modification time of a file, or "-" if
+    * missing.
+    */
+   private static String fingerprint(File file) {
+      try {
+         BasicFileAttributes attr =
+            Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+         return attr.fileKey() + ":" + attr.size() + ":" +
+            attr.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+      } catch (IOException e) {
+         return "-";
+      }
+   }
+
+   /**
+    * What a class file exposes to other classes, and what it refers
+    * to, read from its bytes.
+    */
+   private static class ClassInfo {
+      private static final int ACC_PRIVATE = 0x0002;
+      private static final int ACC_STATIC = 0x0008;
+      private static final int ACC_FINAL = 0x0010;
+
+      /**
+       * Class names in descriptors and signatures.
+       */
+      private static final Pattern DESC_CLASS = Pattern.compile("L([\\w/$]+)[;<]");
+
+      /**
+       * Internal name, e.g. "java/lang/String".
+       */
+      String name;
+
+      /**
+       * Hash of the class header and its non-private members.
+       */
+      String api;
+
+      /**
+       * Hash of the values of non-private compile-time constants.
+       */
+      String consts;
+
+      /**
+       * Internal names of all classes referred to.
+       */
+      final Set<String> refs = new HashSet<String>();
+
+      /**
+       * Internal names of the superclass and direct interfaces.
+       */
+      final Set<String> supers = new HashSet<String>();
+
+      private Object[] pool;
+      private int[] ref;
+
+      ClassInfo(byte[] data) throws IOException {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+         if (in.readInt() != 0xCAFEBABE)
+            throw new IOException("Not a class file");
+         in.readUnsignedShort();
+         in.readUnsignedShort();
+         int count = in.readUnsignedShort();
+         pool = new Object[count];
+         ref = new int[count];
+         int[] tags = new int[count];
+         for (int ii = 1; ii < count; ii++) {
+            int tag = tags[ii] = in.readUnsignedByte();
+            switch (tag) {
+            case 1: pool[ii] = in.readUTF(); break;
+            case 3: pool[ii] = in.readInt(); break;
+            case 4: pool[ii] = in.readFloat(); break;
+            case 5: pool[ii++] = in.readLong(); break;
+            case 6: pool[ii++] = in.readDouble(); break;
+            case 7: case 8: case 16: case 19: case 20:
+               ref[ii] = in.readUnsignedShort();
+               break;
+            case 9: case 10: case 11: case 12: case 17: case 18:
+               ref[ii] = in.readUnsignedShort();
+               in.readUnsignedShort();
+               break;
+            case 15:
+               in.readUnsignedByte();
+               ref[ii] = in.readUnsignedShort();
+               break;
+            default:
+               throw new IOException("Bad constant pool tag: " + tag);
+            }
+         }
+         for (int ii = 1; ii < count; ii++) {
+            if (tags[ii] == 7) {
+               String cn = (String) pool[ref[ii]];
+               if (cn.startsWith("["))
+                  add_desc_refs(cn);
+               else
+                  refs.add(cn);
+            } else if (tags[ii] == 1) {
+               add_desc_refs((String) pool[ii]);
+            }
+         }
+
+         List<String> api_lines = new ArrayList<String>();
+         List<String> const_lines = new ArrayList<String>();
+         int flags = in.readUnsignedShort();
+         name = (String) pool[ref[in.readUnsignedShort()]];
+         int sup = in.readUnsignedShort();
+         StringBuilder head = new StringBuilder();
+         head.append("C ").append(flags).append(' ').append(name).append(' ')
+            .append(sup == 0 ? "" : pool[ref[sup]]);
+         if (sup != 0)
+            supers.add((String) pool[ref[sup]]);
+         int nif = in.readUnsignedShort();
+         for (int ii = 0; ii < nif; ii++) {
+            String iname = (String) pool[ref[in.readUnsignedShort()]];
+            supers.add(iname);
+            head.append(' ').append(iname);
+         }
+         for (int kind = 0; kind < 2; kind++) {
+            int cnt = in.readUnsignedShort();
+            for (int ii = 0; ii < cnt; ii++) {
+               int mflags = in.readUnsignedShort();
+               String mname = (String) pool[in.readUnsignedShort()];
+               String mdesc = (String) pool[in.readUnsignedShort()];
+               String sig = "";
+               Object value = null;
+               int nattr = in.readUnsignedShort();
+               for (int jj = 0; jj < nattr; jj++) {
+                  String aname = (String) pool[in.readUnsignedShort()];
+                  int len = in.readInt();
+                  if (aname.equals("Signature")) {
+                     sig = (String) pool[in.readUnsignedShort()];
+                  } else if (aname.equals("ConstantValue")) {
+                     int idx = in.readUnsignedShort();
+                     value = tags[idx] == 8 ? pool[ref[idx]] : pool[idx];
+                  } else {
+                     in.skipBytes(len);
+                  }
+               }
+               if ((mflags & ACC_PRIVATE) != 0)
+                  continue;
+               api_lines.add((kind == 0 ? "F " : "M ") + mflags + " " + mname + " " +
+                             mdesc + " " + sig);
+               if (value != null && (mflags & (ACC_STATIC | ACC_FINAL)) == (ACC_STATIC | ACC_FINAL))
+                  const_lines.add(mname + "=" + value);
+            }
+         }
+         int nattr = in.readUnsignedShort();
+         for (int jj = 0; jj < nattr; jj++) {
+            String aname = (String) pool[in.readUnsignedShort()];
+            int len = in.readInt();
+            if (aname.equals("Signature"))
+               head.append(" <").append(pool[in.readUnsignedShort()]).append('>');
+            else
+               in.skipBytes(len);
+         }
+         Collections.sort(api_lines);
+         api_lines.add(0, head.toString());
+         Collections.sort(const_lines);
+         api = hash(api_lines);
+         consts = hash(const_lines);
+         pool = null;
+         ref = null;
+      }
+
+      private void add_desc_refs(String str) {
+         if (str.indexOf(';') < 0)
+            return;
+         Matcher mat = DESC_CLASS.matcher(str);
+         while (mat.find())
+            refs.add(mat.group(1));
+      }
+
+      private static String hash(List<String> lines) {
+         MessageDigest md;
+         try {
+            md = MessageDigest.getInstance("SHA-256");
+         } catch (java.security.NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+         }
+         for (String line : lines) {
+            md.update(line.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            md.update((byte) '\n');
+         }
+         StringBuilder hex = new StringBuilder();
+         for (byte bb : md.digest())
+            hex.append(Character.forDigit((bb >> 4) & 15, 16))
+               .append(Character.forDigit(bb & 15, 16));
+         return hex.toString();
+      }
+   }
+}
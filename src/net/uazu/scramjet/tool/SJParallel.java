@@ -0,0 +1,211 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.tool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.Constructor;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJSession;
+import net.uazu.scramjet.Scramjet;
+import net.uazu.scramjet.Tool;
+
+/**
+ * Run a tool once per item read from stdin, like "xargs -P" or GNU
+ * parallel, but in-process on a pool of threads, rather than
+ * starting a front-end for each item.  Each run gets a child session
+ * (see {@link Tool#runChild}) whose output is held back and then
+ * written out all together, so output from different runs is never
+ * interleaved.  Output comes in the order runs finish, or with -k, in
+ * input order.  Only a limited number of runs are queued at once, so
+ * memory use doesn't grow with the number of items.
+ */
+public class SJParallel extends Tool {
+   public SJParallel(SJContext sjc) {
+      super(sjc);
+   }
+   public void usage() {
+      error("Usage: sj-parallel [<opts>] <tool> [<arg>...]\n" +
+            "Runs <tool> in the server once for each item read from stdin, with\n" +
+            "the item as a final argument, or in place of each \"{}\" in the args.\n" +
+            "<tool> is a command like sj-grep, an alias or a class name.  Output\n" +
+            "of each run is written out together.  Exit status is 123 if any\n" +
+            "run exits with a non-zero status.\n" +
+            "  -j <n>  Run <n> at once, default one per processor\n" +
+            "  -n <n>  Pass up to <n> items to each run, if there is no \"{}\"\n" +
+            "  -k      Keep output in the order of the input\n" +
+            "  -0      Items are separated by NUL, not newline");
+   }
+
+   private Constructor<? extends Tool> cons;
+   private String tool_cmd;
+   private String[] tool_args;
+   private boolean replace;
+   private boolean keep_order;
+
+   private ExecutorService pool;
+   private CompletionService<SJSession> completed;
+
+   /**
+    * Runs in progress, in input order, for -k.
+    */
+   private final ArrayDeque<Future<SJSession>> pending = new ArrayDeque<Future<SJSession>>();
+   private int running;
+   private boolean failed;
+
+   public void run() throws Exception {
+      int jobs = 0;
+      int per_run = 1;
+      boolean nul = false;
+      int ai = 0;
+      while (ai < args.length && args[ai].startsWith("-")) {
+         String opt = args[ai++];
+         if (opt.equals("-k")) {
+            keep_order = true;
+         } else if (opt.equals("-0")) {
+            nul = true;
+         } else if ((opt.equals("-j") || opt.equals("-n")) && ai < args.length) {
+            int val = number(args[ai++]);
+            if (opt.equals("-j"))
+               jobs = val;
+            else
+               per_run = Math.max(1, val);
+         } else {
+            usage();
+         }
+      }
+      if (ai >= args.length)
+         usage();
+
+      String name = args[ai++];
+      tool_cmd = name.startsWith("sj-") ? name.substring(3) : name;
+      cons = childConstructor(name);
+      tool_args = new String[args.length - ai];
+      System.arraycopy(args, ai, tool_args, 0, tool_args.length);
+      for (String arg : tool_args)
+         if (arg.contains("{}"))
+            replace = true;
+      if (replace)
+         per_run = 1;
+
+      pool = newThreadPool(jobs);
+      completed = new ExecutorCompletionService<SJSession>(pool);
+      int max_running = 2 * (jobs > 0 ? jobs : Runtime.getRuntime().availableProcessors());
+
+      BufferedReader in = new BufferedReader(new InputStreamReader(stdin, Scramjet.charset));
+      List<String> items = new ArrayList<String>();
+      StringBuilder tmp = new StringBuilder();
+      String item;
+      while ((item = nul ? next_item(in, tmp) : in.readLine()) != null) {
+         exitCheck();
+         if (item.isEmpty())
+            continue;
+         items.add(item);
+         if (items.size() < per_run)
+            continue;
+         collect(max_running - 1);
+         submit(items);
+         items.clear();
+      }
+      if (!items.isEmpty())
+         submit(items);
+      collect(0);
+      if (failed)
+         exit(123);
+   }
+
+   /**
+    * Read one NUL-terminated item, or return null at EOF.
+    */
+   private static String next_item(BufferedReader in, StringBuilder tmp) throws IOException {
+      tmp.setLength(0);
+      int ch;
+      while ((ch = in.read()) > 0)
+         tmp.append((char) ch);
+      return ch < 0 && tmp.length() == 0 ? null : tmp.toString();
+   }
+
+   /**
+    * Start a run for the given items.
+    */
+   private void submit(List<String> items) {
+      final String[] argv;
+      if (replace) {
+         argv = new String[tool_args.length];
+         for (int a = 0; a<argv.length; a++)
+            argv[a] = tool_args[a].replace("{}", items.get(0));
+      } else {
+         argv = new String[tool_args.length + items.size()];
+         System.arraycopy(tool_args, 0, argv, 0, tool_args.length);
+         for (int a = 0; a<items.size(); a++)
+            argv[tool_args.length + a] = items.get(a);
+      }
+      Callable<SJSession> task = new Callable<SJSession>() {
+            public SJSession call() {
+               return runChild(cons, tool_cmd, argv);
+            }
+         };
+      if (keep_order)
+         pending.add(pool.submit(task));
+      else
+         completed.submit(task);
+      running++;
+   }
+
+   /**
+    * Write out the output of finished runs, waiting as necessary,
+    * until no more than 'limit' remain in progress.
+    */
+   private void collect(int limit) throws Exception {
+      while (running > limit) {
+         Future<SJSession> ff = keep_order ? pending.poll() : completed.take();
+         SJSession sess;
+         try {
+            sess = ff.get();
+         } catch (ExecutionException e) {
+            Throwable ee = e.getCause();
+            if (ee instanceof Exception)
+               throw (Exception) ee;
+            if (ee instanceof Error)
+               throw (Error) ee;
+            throw e;
+         }
+         running--;
+         sess.emit();
+         if (sess.exit_status != 0)
+            failed = true;
+      }
+   }
+
+   private int number(String arg) {
+      try {
+         return Integer.parseInt(arg);
+      } catch (NumberFormatException e) {
+         error("sj-parallel: Bad number: %s", arg);
+         return 0;
+      }
+   }
+}
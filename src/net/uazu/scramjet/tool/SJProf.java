@@ -0,0 +1,237 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.tool;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJSession;
+import net.uazu.scramjet.Scramjet;
+import net.uazu.scramjet.Tool;
+import net.uazu.scramjet.ToolWriter;
+
+/**
+ * Sampling profiler for tools running in the server.  The stacks of
+ * the threads of the chosen sessions are sampled through
+ * ThreadMXBean at a fixed interval, and written out in folded form,
+ * one line per distinct stack with its count, root frame first, as
+ * taken by flamegraph.pl and similar.  A summary of the samples and
+ * the CPU time used whilst sampling, per thread, goes to stderr, so
+ * that stdout can be piped straight on.
+ *
+ * <p>Sessions are chosen by the command they run, or by proxy slot
+ * number, and are picked up as they start, so the profiler may be
+ * started before the tool.  Only threads found running are counted
+ * by default, which shows where CPU time goes.  With -a, waiting
+ * threads are counted too, which shows where wall-clock time goes.
+ */
+public class SJProf extends Tool {
+   public SJProf(SJContext sjc) {
+      super(sjc);
+   }
+   public void usage() {
+      error("Usage: sj-prof [<opts>] [<command>|<slot>]\n" +
+            "Samples the threads of running sessions, those running <command>\n" +
+            "or in proxy slot <slot>, or else all others, and writes folded\n" +
+            "stacks for a flame graph to stdout and CPU use per thread to\n" +
+            "stderr.  Stops after the duration, on ^C, or once sessions matching\n" +
+            "<command> or <slot> have been seen and none has run for a second.\n" +
+            "  -d <secs>  Duration, default 10, or 0 to run until interrupted\n" +
+            "  -i <ms>    Sampling interval, default 10\n" +
+            "  -a         Count waiting threads too, for wall-clock time\n" +
+            "  -t         Put the thread name at the root of each stack\n" +
+            "  -l         Include line numbers in frames");
+   }
+
+   /**
+    * What has been seen of one thread.
+    */
+   private static class ThreadStats {
+      final String name;
+      final long cpu_start;
+      long cpu_end;
+      int samples;
+      ThreadStats(String name, long cpu) {
+         this.name = name;
+         cpu_start = cpu_end = cpu;
+      }
+   }
+
+   /**
+    * Time without a matching session after which sampling stops, if
+    * a command or slot was given.
+    */
+   private static final long IDLE_STOP = 1000;
+
+   private final Map<Long,ThreadStats> threads = new HashMap<Long,ThreadStats>();
+   private final Map<String,int[]> stacks = new HashMap<String,int[]>();
+
+   public void run() throws Exception {
+      long duration = 10000;
+      long interval = 10;
+      boolean all_states = false;
+      boolean thread_root = false;
+      boolean lines = false;
+      String target = null;
+      for (int ai = 0; ai < args.length; ai++) {
+         String arg = args[ai];
+         if (arg.equals("-a")) {
+            all_states = true;
+         } else if (arg.equals("-t")) {
+            thread_root = true;
+         } else if (arg.equals("-l")) {
+            lines = true;
+         } else if ((arg.equals("-d") || arg.equals("-i")) && ai+1 < args.length) {
+            double val = 0;
+            try {
+               val = Double.parseDouble(args[++ai]);
+            } catch (NumberFormatException e) {
+               error("sj-prof: Bad number: %s", args[ai]);
+            }
+            if (arg.equals("-d"))
+               duration = (long) (val * 1000);
+            else
+               interval = Math.max(1, (long) val);
+         } else if (arg.startsWith("-") || target != null) {
+            usage();
+         } else {
+            target = arg.startsWith("sj-") ? arg.substring(3) : arg;
+         }
+      }
+      int slot = -1;
+      if (target != null && target.matches("[0-9]+"))
+         slot = Integer.parseInt(target);
+
+      ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+      boolean cpu = mx.isThreadCpuTimeSupported();
+      if (cpu && !mx.isThreadCpuTimeEnabled())
+         mx.setThreadCpuTimeEnabled(true);
+
+      long start = System.currentTimeMillis();
+      long end = duration > 0 ? start + duration : Long.MAX_VALUE;
+      int total = 0;
+      long last_seen = 0;
+      StringBuilder key = new StringBuilder();
+      while (!isCancelled()) {
+         // Threads of the chosen sessions, and their commands
+         List<Thread> list = new ArrayList<Thread>();
+         List<String> cmds = new ArrayList<String>();
+         for (SJSession sess : Scramjet.sessions()) {
+            Tool tool = sess.tool;
+            if (tool == this || tool == null)
+               continue;
+            if (slot >= 0 ? sess.proxy.id != slot :
+                target != null && !target.equals(tool.cmd))
+               continue;
+            for (Thread thr : sess.threads()) {
+               list.add(thr);
+               cmds.add(tool.cmd);
+            }
+         }
+         long now = System.currentTimeMillis();
+         if (!list.isEmpty())
+            last_seen = now;
+         else if (target != null && last_seen != 0 && now - last_seen >= IDLE_STOP)
+            break;
+
+         long[] ids = new long[list.size()];
+         for (int a = 0; a<ids.length; a++)
+            ids[a] = list.get(a).getId();
+         ThreadInfo[] infos = mx.getThreadInfo(ids, Integer.MAX_VALUE);
+         for (int a = 0; a<infos.length; a++) {
+            ThreadInfo info = infos[a];
+            if (info == null)
+               continue;
+            long id = info.getThreadId();
+            long cpu_now = cpu ? mx.getThreadCpuTime(id) : -1;
+            ThreadStats ts = threads.get(id);
+            if (ts == null)
+               threads.put(id, ts = new ThreadStats(
+                              info.getThreadName() + " (" + cmds.get(a) + ")", cpu_now));
+            if (cpu_now >= 0)
+               ts.cpu_end = cpu_now;
+            StackTraceElement[] trace = info.getStackTrace();
+            if (trace.length == 0 ||
+                !all_states && info.getThreadState() != Thread.State.RUNNABLE)
+               continue;
+            ts.samples++;
+            total++;
+            key.setLength(0);
+            if (thread_root)
+               key.append(info.getThreadName().replace(';', ':').replace(' ', '_'));
+            for (int b = trace.length - 1; b >= 0; b--) {
+               if (key.length() > 0)
+                  key.append(';');
+               StackTraceElement st = trace[b];
+               key.append(st.getClassName()).append('.').append(st.getMethodName());
+               if (lines && st.getLineNumber() >= 0)
+                  key.append(':').append(st.getLineNumber());
+            }
+            String kk = key.toString();
+            int[] cnt = stacks.get(kk);
+            if (cnt == null)
+               stacks.put(kk, cnt = new int[1]);
+            cnt[0]++;
+         }
+
+         now = System.currentTimeMillis();
+         if (now >= end)
+            break;
+         try {
+            Thread.sleep(Math.min(interval, end - now));
+         } catch (InterruptedException e) {
+            break;
+         }
+      }
+      long elapsed = System.currentTimeMillis() - start;
+
+      ToolWriter out = out();
+      for (Map.Entry<String,int[]> ent : new TreeMap<String,int[]>(stacks).entrySet())
+         out.append(ent.getKey()).append(' ').append(ent.getValue()[0]).newline();
+      out.flush();
+
+      List<ThreadStats> list = new ArrayList<ThreadStats>(threads.values());
+      Collections.sort(list, new Comparator<ThreadStats>() {
+            public int compare(ThreadStats aa, ThreadStats bb) {
+               long da = aa.cpu_end - aa.cpu_start;
+               long db = bb.cpu_end - bb.cpu_start;
+               return da != db ? (db > da ? 1 : -1) : bb.samples - aa.samples;
+            }
+         });
+      ToolWriter err = err();
+      err.append("sj-prof: ").append(total).append(" samples of ")
+         .append(threads.size()).append(" threads over ")
+         .appendFixed(elapsed / 1000.0, 1).append("s").newline();
+      if (!list.isEmpty())
+         err.append("  CPU ms  samples  thread").newline();
+      for (ThreadStats ts : list) {
+         if (cpu)
+            err.append((ts.cpu_end - ts.cpu_start) / 1000000, 8);
+         else
+            err.append("       -");
+         err.append(ts.samples, 9).append("  ").append(ts.name).newline();
+      }
+      err.flush();
+   }
+}
@@ -0,0 +1,51 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.tool;
+
+import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJFileCache;
+import net.uazu.scramjet.SJMemoCache;
+import net.uazu.scramjet.SJPool;
+import net.uazu.scramjet.SJService;
+import net.uazu.scramjet.SJUsage;
+import net.uazu.scramjet.Tool;
+
+/**
+ * Show session pools: limits, running and queued sessions, and
+ * admission waits.  Also shows file and memo cache usage, resident
+ * services, and CPU and allocation by running session and by
+ * command.
+ */
+public class SJStats extends Tool {
+   public SJStats(SJContext sjc) {
+      super(sjc);
+   }
+   public void usage() {
+      error("Usage: sj-stats");
+   }
+   public void run() {
+      if (args.length != 0)
+         usage();
+      
+      for (SJPool pool : SJPool.list())
+         println(pool.describe());
+      println(SJFileCache.describe());
+      println(SJMemoCache.describe());
+      for (String line : SJService.describe())
+         println(line);
+      for (String line : SJUsage.describe())
+         println(line);
+   }
+}
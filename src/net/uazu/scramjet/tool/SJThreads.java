@@ -17,14 +17,17 @@ package net.uazu.scramjet.tool;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJUsage;
 import net.uazu.scramjet.Tool;
 
 /**
- * List running threads
+ * List running threads, with the CPU time and heap allocation of each
+ * so far.
  */
 public class SJThreads extends Tool {
    public SJThreads(SJContext sjc) {
@@ -32,27 +35,45 @@ public class SJThreads extends Tool {
    }
    public void usage() {
       error("Usage: sj-threads [options]\n" +
-            "  -l  Long listing (with stacktraces)");
+            "  -l  Long listing (with stacktraces)\n" +
+            "  -c  Sort by CPU time used, largest first");
    }
    public void run() {
       boolean long_opt = false;
-      if (args.length == 0)
-         long_opt = false;
-      else if (args.length == 1 && args[0].equals("-l"))
-         long_opt = true;
-      else 
-         usage();
+      boolean cpu_opt = false;
+      for (String arg : args) {
+         if (arg.equals("-l"))
+            long_opt = true;
+         else if (arg.equals("-c"))
+            cpu_opt = true;
+         else
+            usage();
+      }
       
       Map<Thread,StackTraceElement[]> map = Thread.getAllStackTraces();
       List<Thread> keys = new ArrayList<Thread>(map.keySet());
-      Collections.sort(keys, new Comparator<Thread>() {
+      final Map<Thread,long[]> usage = new HashMap<Thread,long[]>();
+      for (Thread thr : keys)
+         usage.put(thr, SJUsage.threadUsage(thr));
+      Collections.sort(keys, cpu_opt ? new Comparator<Thread>() {
+            public int compare(Thread aa, Thread bb) {
+               return Long.compare(usage.get(bb)[0], usage.get(aa)[0]);
+            }
+         } : new Comparator<Thread>() {
             public int compare(Thread aa, Thread bb) {
                return aa.getName().compareTo(bb.getName());
             }
          });
 
       for (Thread thr : keys) {
-         println(thr.getName() + ": " + thr.getState());
+         long[] uu = usage.get(thr);
+         StringBuilder sb = new StringBuilder();
+         sb.append(thr.getName()).append(": ").append(thr.getState());
+         if (uu[0] >= 0)
+            sb.append("  cpu ").append(uu[0] / 1000000).append("ms");
+         if (uu[1] >= 0)
+            sb.append("  alloc ").append(uu[1] / 1024).append("KB");
+         println(sb.toString());
          if (long_opt) {
             for (StackTraceElement st : map.get(thr))
                println("  " + st);
@@ -0,0 +1,522 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.tool;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.uazu.con.KP;
+import net.uazu.con.KeyEvent;
+import net.uazu.con.tile.Page;
+import net.uazu.con.tile.TiledApp;
+import net.uazu.event.Timer;
+import net.uazu.scramjet.ConsoleTool;
+import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJPool;
+import net.uazu.scramjet.SJSession;
+import net.uazu.scramjet.Scramjet;
+import net.uazu.scramjet.Tool;
+
+/**
+ * Full-screen live view of the server, like top(1): heap, GC and
+ * thread figures for the JVM, the state of the session pools, and a
+ * table of the running sessions with their CPU and allocation rates
+ * and the bytes passed to and from their front-ends.  The table may
+ * be sorted on any column, and a selected session may be cancelled
+ * just as if its front-end had received a signal.  The view may be
+ * detached with 'd' and attached again later with "scramjet --attach",
+ * and it is detached rather than cancelled if the terminal goes away.
+ *
+ * <p>Rates are worked out from the difference between one refresh
+ * and the next, so the first figures shown for a session are only
+ * averages since it started.
+ */
+public class SJTop extends ConsoleTool {
+   public SJTop(SJContext sjc) { super(sjc); }
+
+   public void usage() {
+      error("Usage: sj-top [-d <secs>]\n" +
+            "Shows the sessions running in the server, with their CPU use,\n" +
+            "allocation, I/O and uptime, and the server's heap, GC, threads\n" +
+            "and pools, refreshed until 'q' is pressed.  'd' detaches it, to be\n" +
+            "attached again with \"scramjet --attach\".\n" +
+            "  -d <secs>  Refresh interval, default 0.5");
+   }
+
+   // Colours
+   private static final int NORMAL = 070;
+   private static final int TITLE = 0171;
+   private static final int HEADER = 005;
+   private static final int SORTED = 007;
+   private static final int SELECTED = 0174;
+   private static final int CANCELLED = 020;
+
+   /**
+    * Columns of the session table: heading and width, with 0 for the
+    * last, which takes the rest of the line.  Sorting on text columns
+    * is ascending, and on number columns descending, unless reversed.
+    */
+   private static final String[] HEADING = {
+      "SLOT", "STATE", "COMMAND", "UPTIME", "CPU%", "CPU", "ALLOC/s",
+      "ALLOC", "IN", "OUT", "THR", "ARGS" };
+   private static final int[] WIDTH = {
+      5, 6, 12, 8, 6, 8, 8, 8, 8, 8, 4, 0 };
+   private static final int COL_SLOT = 0, COL_STATE = 1, COL_CMD = 2,
+      COL_UP = 3, COL_CPU_RATE = 4, COL_CPU = 5, COL_ALLOC_RATE = 6,
+      COL_ALLOC = 7, COL_IN = 8, COL_OUT = 9, COL_THREADS = 10, COL_ARGS = 11;
+
+   /**
+    * What is shown for one session, and the figures at the previous
+    * refresh, for working out rates.
+    */
+   private static class Row {
+      final SJSession sess;
+      String cmd = "";
+      String args = "";
+      String state;
+      long uptime, cpu, alloc, cpu_rate, alloc_rate, in, out;
+      int threads;
+      long last_time, last_cpu, last_alloc;
+      Row(SJSession sess) {
+         this.sess = sess;
+         last_time = sess.start_time;
+      }
+   }
+
+   private TiledApp tapp;
+   private TopPage page;
+   private int interval = 500;
+
+   private int sort_col = COL_CPU_RATE;
+   private boolean reverse;
+
+   /**
+    * Rows by session, kept between refreshes, and the current rows
+    * in display order.
+    */
+   private Map<SJSession,Row> rows = new HashMap<SJSession,Row>();
+   private final List<Row> order = new ArrayList<Row>();
+
+   /**
+    * Selected session, or null.  Selection follows the session as
+    * the table is resorted.
+    */
+   private SJSession selected;
+
+   /**
+    * Message for the status line, e.g. after a cancel, and when it
+    * was set.
+    */
+   private String message;
+   private long message_time;
+
+   private final ThreadMXBean thread_mx = ManagementFactory.getThreadMXBean();
+   private long gc_count = -1, gc_time, gc_new, gc_new_time;
+
+   /**
+    * Parse the arguments and create the page, before the console is
+    * set up.
+    */
+   public void setup() {
+      setDetachable(true);
+      for (int ai = 0; ai < args.length; ai++) {
+         if (args[ai].equals("-d") && ai+1 < args.length) {
+            try {
+               interval = Math.max(50, (int) (Double.parseDouble(args[++ai]) * 1000));
+            } catch (NumberFormatException e) {
+               error("sj-top: Bad number: %s", args[ai]);
+            }
+         } else {
+            usage();
+         }
+      }
+
+      tapp = new TiledApp(con) {
+            public boolean keyover(KeyEvent kev) {
+               if (kev.tag == KP.C_C) {
+                  con.eloop.reqAbort();
+                  return true;
+               }
+               if (kev.tag == KP.C_L) {
+                  con.reinit();
+                  page.draw();
+                  return true;
+               }
+               return false;
+            }
+         };
+      page = new TopPage(tapp);
+      refresh();
+      eloop.addTimer(new Timer(System.currentTimeMillis() + interval) {
+            public long run(long req, long now) {
+               refresh();
+               page.draw();
+               return Math.max(req + interval, now + interval / 2);
+            }
+         });
+   }
+
+   /**
+    * Take new figures for the JVM and the sessions.
+    */
+   private void refresh() {
+      long now = System.currentTimeMillis();
+      Map<SJSession,Row> prev = rows;
+      rows = new HashMap<SJSession,Row>();
+      for (SJSession sess : Scramjet.sessions()) {
+         Row row = prev.get(sess);
+         if (row == null)
+            row = new Row(sess);
+         rows.put(sess, row);
+         update(row, now);
+      }
+      order.clear();
+      order.addAll(rows.values());
+      sort();
+      if (selected != null && !rows.containsKey(selected))
+         selected = null;
+      if (selected == null && !order.isEmpty())
+         selected = order.get(0).sess;
+
+      long cnt = 0, tim = 0;
+      for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+         cnt += Math.max(0, gc.getCollectionCount());
+         tim += Math.max(0, gc.getCollectionTime());
+      }
+      if (gc_count >= 0) {
+         gc_new = cnt - gc_count;
+         gc_new_time = tim - gc_time;
+      }
+      gc_count = cnt;
+      gc_time = tim;
+   }
+
+   /**
+    * Update the figures of one row.
+    */
+   private void update(Row row, long now) {
+      SJSession sess = row.sess;
+      Tool tool = sess.tool;
+      if (tool != null) {
+         row.cmd = tool.cmd;
+         row.args = join(tool.args);
+      }
+      sess.usage.sample();
+      row.cpu = sess.usage.cpuTime();
+      row.alloc = sess.usage.allocatedBytes();
+      row.threads = sess.threads().length;
+      row.in = sess.bytesIn();
+      row.out = sess.bytesOut();
+      row.uptime = now - sess.start_time;
+      row.state = sess.cancelled ? "cancel" : queued(sess) ? "queued" :
+         sess.isDetached() ? "detach" : sess.interactive ? "inter" : "batch";
+      long dt = now - row.last_time;
+      if (dt > 0) {
+         row.cpu_rate = (row.cpu - row.last_cpu) / 1000 / dt;    // per mille
+         row.alloc_rate = (row.alloc - row.last_alloc) * 1000 / dt;
+         row.last_time = now;
+         row.last_cpu = row.cpu;
+         row.last_alloc = row.alloc;
+      }
+   }
+
+   private static boolean queued(SJSession sess) {
+      for (SJPool pool : SJPool.list())
+         if (pool.isQueued(sess))
+            return true;
+      return false;
+   }
+
+   private static String join(String[] args) {
+      StringBuilder buf = new StringBuilder();
+      for (String arg : args) {
+         if (buf.length() > 0)
+            buf.append(' ');
+         buf.append(arg);
+      }
+      return buf.toString();
+   }
+
+   /**
+    * Sort the rows on the current column.
+    */
+   private void sort() {
+      final int col = sort_col;
+      Collections.sort(order, new Comparator<Row>() {
+            public int compare(Row aa, Row bb) {
+               int rv = compare_col(col, aa, bb);
+               if (rv == 0)
+                  rv = aa.sess.proxy.id - bb.sess.proxy.id;
+               return reverse ? -rv : rv;
+            }
+         });
+   }
+
+   private static int compare_col(int col, Row aa, Row bb) {
+      switch (col) {
+      case COL_SLOT: return aa.sess.proxy.id - bb.sess.proxy.id;
+      case COL_STATE: return aa.state.compareTo(bb.state);
+      case COL_CMD: return aa.cmd.compareTo(bb.cmd);
+      case COL_ARGS: return aa.args.compareTo(bb.args);
+      case COL_UP: return Long.compare(bb.uptime, aa.uptime);
+      case COL_CPU_RATE: return Long.compare(bb.cpu_rate, aa.cpu_rate);
+      case COL_CPU: return Long.compare(bb.cpu, aa.cpu);
+      case COL_ALLOC_RATE: return Long.compare(bb.alloc_rate, aa.alloc_rate);
+      case COL_ALLOC: return Long.compare(bb.alloc, aa.alloc);
+      case COL_IN: return Long.compare(bb.in, aa.in);
+      case COL_OUT: return Long.compare(bb.out, aa.out);
+      case COL_THREADS: return bb.threads - aa.threads;
+      }
+      return 0;
+   }
+
+   /**
+    * Move the selection up or down the table.
+    */
+   private void move(int off) {
+      if (order.isEmpty())
+         return;
+      int ii = 0;
+      for (int a = 0; a<order.size(); a++)
+         if (order.get(a).sess == selected)
+            ii = a;
+      ii = Math.max(0, Math.min(order.size() - 1, ii + off));
+      selected = order.get(ii).sess;
+   }
+
+   /**
+    * Cancel the selected session, as if its front-end had received
+    * the given signal.  A second cancel skips the grace period.
+    */
+   private void cancel(int sig) {
+      SJSession sess = selected;
+      if (sess == null) {
+         con.beep();
+         return;
+      }
+      boolean again = sess.cancelled;
+      sess.cancel(sig);
+      Row row = rows.get(sess);
+      show_message((again ? "Killed " : "Cancelled ") + "slot " + sess.proxy.id +
+                   (row == null || row.cmd.isEmpty() ? "" : " (" + row.cmd + ")"));
+   }
+
+   private void show_message(String msg) {
+      message = msg;
+      message_time = System.currentTimeMillis();
+   }
+
+   private class TopPage extends Page {
+      public TopPage(TiledApp tapp) {
+         super(tapp, NORMAL);
+      }
+
+      public void relayout() {
+         draw();
+      }
+
+      /**
+       * Redraw the whole page from the current figures.
+       */
+      void draw() {
+         area.clear(NORMAL);
+         if (area.rows < 4)
+            return;
+         long now = System.currentTimeMillis();
+         Runtime rt = Runtime.getRuntime();
+
+         // JVM summary
+         MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+         String line = String.format(
+            " sj-top  heap %s/%s max %s  gc %d (+%d, %dms)  threads %d (peak %d)  cpus %d",
+            mem(heap.getUsed()), mem(heap.getCommitted()), mem(rt.maxMemory()),
+            gc_count, gc_new, gc_new_time,
+            thread_mx.getThreadCount(), thread_mx.getPeakThreadCount(),
+            rt.availableProcessors());
+         area.clear(0, 1, TITLE);
+         area.set(0, 0, TITLE, line);
+
+         // Pools
+         StringBuilder buf = new StringBuilder(" pools");
+         List<SJPool> pools = SJPool.list();
+         if (pools.isEmpty())
+            buf.append(": none used yet");
+         for (SJPool pool : pools) {
+            int max = pool.maxRunning();
+            buf.append("  ").append(pool.name).append(' ')
+               .append(pool.runningCount()).append('/')
+               .append(max == 0 ? "-" : "" + max)
+               .append(" queued ").append(pool.queueLength());
+         }
+         area.set(1, 0, NORMAL, buf.toString());
+
+         // Table header, with the sort column marked
+         int yy = 3;
+         int xx = 0;
+         area.clear(yy, 1, HEADER);
+         for (int col = 0; col < HEADING.length; col++) {
+            String head = HEADING[col];
+            if (col == sort_col)
+               head = reverse ? head + "^" : head + "v";
+            area.set(yy, xx + 1, col == sort_col ? SORTED : HEADER,
+                     WIDTH[col] == 0 ? head : pad(head, WIDTH[col], col));
+            xx += WIDTH[col] + 1;
+         }
+         yy++;
+
+         // Sessions
+         int last = area.rows - 1;
+         for (Row row : order) {
+            if (yy >= last)
+               break;
+            int hfb = row.sess == selected ? SELECTED :
+               row.sess.cancelled ? CANCELLED : NORMAL;
+            if (hfb == SELECTED)
+               area.clear(yy, 1, hfb);
+            String[] val = {
+               "" + row.sess.proxy.id, row.state, row.cmd, time(row.uptime),
+               String.format("%d.%d", row.cpu_rate / 10, row.cpu_rate % 10),
+               time(row.cpu / 1000000), mem(row.alloc_rate), mem(row.alloc),
+               mem(row.in), mem(row.out), "" + row.threads, row.args };
+            xx = 0;
+            for (int col = 0; col < val.length; col++) {
+               area.set(yy, xx + 1, hfb,
+                        WIDTH[col] == 0 ? val[col] : pad(val[col], WIDTH[col], col));
+               xx += WIDTH[col] + 1;
+            }
+            yy++;
+         }
+
+         // Status line
+         String status = message != null && now - message_time < 3000 ? " " + message :
+            " q quit  Up/Down select  k cancel (twice to kill)  </> sort column  r reverse" +
+            "  d detach";
+         area.clear(last, 1, TITLE);
+         area.set(last, 0, TITLE, status);
+      }
+
+      public boolean key(KeyEvent kev) {
+         switch (kev.tag) {
+         case KEY:
+            switch (kev.key) {
+            case 'q':
+            case 'Q':
+               con.eloop.reqAbort();
+               return true;
+            case 'k':
+               cancel(2);
+               break;
+            case 'd':
+               detach();
+               return true;
+            case '<':
+            case ',':
+               sort_col = (sort_col + HEADING.length - 1) % HEADING.length;
+               sort();
+               break;
+            case '>':
+            case '.':
+               sort_col = (sort_col + 1) % HEADING.length;
+               sort();
+               break;
+            case 'r':
+               reverse = !reverse;
+               sort();
+               break;
+            case ' ':
+               refresh();
+               break;
+            default:
+               return false;
+            }
+            draw();
+            return true;
+         case Up:
+            move(-1);
+            draw();
+            return true;
+         case Down:
+            move(1);
+            draw();
+            return true;
+         case PgU:
+         case Hom:
+            move(-order.size());
+            draw();
+            return true;
+         case PgD:
+         case End:
+            move(order.size());
+            draw();
+            return true;
+         }
+         return false;
+      }
+   }
+
+   /**
+    * Pad or truncate a value to the column width, left-aligned for
+    * the text columns and right-aligned for the rest.
+    */
+   private static String pad(String val, int wid, int col) {
+      if (val.length() > wid)
+         val = val.substring(0, wid);
+      boolean left = col == COL_STATE || col == COL_CMD;
+      StringBuilder buf = new StringBuilder(wid);
+      if (left)
+         buf.append(val);
+      for (int a = val.length(); a < wid; a++)
+         buf.append(' ');
+      if (!left)
+         buf.append(val);
+      return buf.toString();
+   }
+
+   /**
+    * Format a byte count briefly, e.g. "512", "12.3K", "456M".
+    */
+   private static String mem(long val) {
+      if (val < 1024)
+         return "" + val;
+      String units = "KMGT";
+      double vv = val;
+      int ui = -1;
+      while (vv >= 1024 && ui < units.length() - 1) {
+         vv /= 1024;
+         ui++;
+      }
+      return String.format(vv < 100 ? "%.1f%c" : "%.0f%c", vv, units.charAt(ui));
+   }
+
+   /**
+    * Format a time in ms briefly, e.g. "0.25s", "12:34", "3h05m".
+    */
+   private static String time(long ms) {
+      long ss = ms / 1000;
+      if (ss < 60)
+         return String.format("%d.%02ds", ss, ms % 1000 / 10);
+      if (ss < 3600)
+         return String.format("%d:%02d", ss / 60, ss % 60);
+      return String.format("%dh%02dm", ss / 3600, ss / 60 % 60);
+   }
+}
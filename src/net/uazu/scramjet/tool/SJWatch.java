@@ -0,0 +1,316 @@
+// Copyright (c) 2011-2012 Jim Peters, http://uazu.net
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package net.uazu.scramjet.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import net.uazu.event.DelayAction;
+import net.uazu.event.Event;
+import net.uazu.event.EventHandler;
+import net.uazu.event.EventLoop;
+import net.uazu.scramjet.SJContext;
+import net.uazu.scramjet.SJSession;
+import net.uazu.scramjet.SJTerminateError;
+import net.uazu.scramjet.Tool;
+
+/**
+ * Run a tool, then run it again in-process each time the files it
+ * reads change, until interrupted.  Changes are picked up through a
+ * WatchService, and a burst of changes, e.g. from an editor saving
+ * or a checkout, gives a single re-run once things have been quiet
+ * for a short delay (see {@link DelayAction}).  Each run is a child
+ * session as for sj-parallel (see {@link Tool#runChild}), so a re-run
+ * costs no front-end start-up, and the tool can see which files
+ * changed through {@link Tool#changedFiles}.
+ *
+ * <p>By default the arguments which name existing files or
+ * directories are watched, directories including everything below
+ * them.  Hidden files and editor backup files are ignored.  If the
+ * tool writes output inside a watched directory, give the inputs
+ * with -w instead, or each run would trigger another.
+ */
+public class SJWatch extends Tool {
+   public SJWatch(SJContext sjc) {
+      super(sjc);
+   }
+   public void usage() {
+      error("Usage: sj-watch [<opts>] <tool> [<arg>...]\n" +
+            "Runs <tool> in the server, then again each time a watched file\n" +
+            "changes, until interrupted.  <tool> is a command like sj-grep, an\n" +
+            "alias or a class name.  Watches the arguments which name existing\n" +
+            "files or directories, directories recursively, unless -w is given.\n" +
+            "  -w <path>  Watch this file or directory; may be repeated\n" +
+            "  -d <ms>    Wait for changes to stop for <ms>, default 50\n" +
+            "  -c         Clear the screen before each run\n" +
+            "  -q         Don't report the exit status after each run");
+   }
+
+   private Constructor<? extends Tool> cons;
+   private String tool_cmd;
+   private String[] tool_args;
+   private boolean clear;
+   private boolean quiet;
+
+   private WatchService watcher;
+   private final Map<WatchKey,Path> keys = new HashMap<WatchKey,Path>();
+
+   /**
+    * Directories in which all changes count, i.e. those under a
+    * watched directory.  Guarded by 'keys'.
+    */
+   private final Set<Path> whole_dirs = new HashSet<Path>();
+
+   /**
+    * Files watched individually, whose directories are watched for
+    * changes to just those files.  Guarded by 'keys'.
+    */
+   private final Set<Path> files = new HashSet<Path>();
+
+   /**
+    * Files changed since the last run started, or null if not known,
+    * i.e. before the first run or when changes were lost.  Guarded by
+    * 'this'.
+    */
+   private Set<File> changed;
+
+   private EventLoop eloop;
+
+   public void run() throws Exception {
+      int delay = 50;
+      List<String> paths = new ArrayList<String>();
+      int ai = 0;
+      while (ai < args.length && args[ai].startsWith("-")) {
+         String opt = args[ai++];
+         if (opt.equals("-c")) {
+            clear = true;
+         } else if (opt.equals("-q")) {
+            quiet = true;
+         } else if (opt.equals("-w") && ai < args.length) {
+            paths.add(args[ai++]);
+         } else if (opt.equals("-d") && ai < args.length) {
+            try {
+               delay = Integer.parseInt(args[ai++]);
+            } catch (NumberFormatException e) {
+               error("sj-watch: Bad number: %s", args[ai-1]);
+            }
+         } else {
+            usage();
+         }
+      }
+      if (ai >= args.length)
+         usage();
+
+      String name = args[ai++];
+      tool_cmd = name.startsWith("sj-") ? name.substring(3) : name;
+      cons = childConstructor(name);
+      tool_args = new String[args.length - ai];
+      System.arraycopy(args, ai, tool_args, 0, tool_args.length);
+
+      if (paths.isEmpty()) {
+         for (String arg : tool_args)
+            if (!arg.isEmpty() && file(arg).exists())
+               paths.add(arg);
+         if (paths.isEmpty())
+            error("sj-watch: No files or directories among the arguments; use -w");
+      }
+
+      watcher = FileSystems.getDefault().newWatchService();
+      try {
+         for (String path : paths) {
+            File ff = file(path);
+            if (ff.isDirectory())
+               watch_tree(ff.toPath().toAbsolutePath().normalize());
+            else if (ff.exists())
+               watch_file(ff.toPath().toAbsolutePath().normalize());
+            else
+               error("sj-watch: %s: No such file or directory", path);
+         }
+
+         eloop = new EventLoop();
+         eloop.addHandler(new EventHandler() {
+               public void pass(Event ev, List<Event> out) {}
+            });
+         final DelayAction rerun = new DelayAction(eloop, delay) {
+               public void run() {
+                  run_tool();
+               }
+            };
+         Thread th = new Thread("sj-watch " + tool_cmd) {
+               public void run() {
+                  try {
+                     watch_loop(rerun);
+                  } finally {
+                     eloop.reqAbort();
+                  }
+               }
+            };
+         th.setDaemon(true);
+         th.start();
+
+         run_tool();
+         eloop.loop();
+         exitCheck();
+      } finally {
+         watcher.close();
+      }
+   }
+
+   /**
+    * Run the tool once, with the changes seen since the last run.
+    */
+   private void run_tool() {
+      List<File> list;
+      synchronized (this) {
+         list = changed == null ? null : new ArrayList<File>(changed);
+         changed = new LinkedHashSet<File>();
+      }
+      if (clear)
+         writeOut(new byte[] { 27, '[', 'H', 27, '[', '2', 'J' }, 7);
+      long start = System.nanoTime();
+      SJSession sess = runChild(cons, tool_cmd, tool_args, list);
+      sess.emit();
+      if (!quiet) {
+         long ms = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+         stderr.println("sj-watch: exit status " + sess.exit_status + " after " + ms +
+                        "ms; waiting for changes");
+      }
+   }
+
+   /**
+    * Handle change notifications until the tool is cancelled.
+    */
+   private void watch_loop(DelayAction rerun) {
+      while (true) {
+         WatchKey key;
+         try {
+            key = watcher.poll(1, TimeUnit.SECONDS);
+         } catch (InterruptedException e) {
+            key = null;
+         }
+         try {
+            exitCheck();
+         } catch (SJTerminateError e) {
+            return;
+         }
+         if (key == null)
+            continue;
+         boolean hit = false;
+         synchronized (keys) {
+            Path dir = keys.get(key);
+            for (WatchEvent<?> ev : key.pollEvents()) {
+               if (ev.kind() == StandardWatchEventKinds.OVERFLOW) {
+                  synchronized (this) {
+                     changed = null;
+                  }
+                  hit = true;
+                  continue;
+               }
+               if (dir == null)
+                  continue;
+               Path path = dir.resolve((Path) ev.context());
+               if (ignored(path.getFileName().toString()) ||
+                   !whole_dirs.contains(dir) && !files.contains(path))
+                  continue;
+               if (ev.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+                   whole_dirs.contains(dir) && Files.isDirectory(path))
+                  watch_tree(path);
+               synchronized (this) {
+                  if (changed != null)
+                     changed.add(path.toFile());
+               }
+               hit = true;
+            }
+            if (!key.reset())
+               keys.remove(key);
+         }
+         if (hit)
+            rerun.trigger();
+      }
+   }
+
+   /**
+    * Files not worth a re-run: hidden files, and editor backup and
+    * autosave files.
+    */
+   private static boolean ignored(String name) {
+      return name.startsWith(".") || name.startsWith("#") || name.endsWith("~");
+   }
+
+   /**
+    * Watch a directory and everything below it, skipping hidden
+    * directories.
+    */
+   private void watch_tree(final Path root) {
+      try {
+         Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+               public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                  throws IOException {
+                  if (!dir.equals(root) && ignored(dir.getFileName().toString()))
+                     return FileVisitResult.SKIP_SUBTREE;
+                  register(dir);
+                  synchronized (keys) {
+                     whole_dirs.add(dir);
+                  }
+                  return FileVisitResult.CONTINUE;
+               }
+               public FileVisitResult visitFileFailed(Path file, IOException e) {
+                  return FileVisitResult.CONTINUE;
+               }
+            });
+      } catch (IOException e) {
+         stderr.println("sj-watch: Can't watch " + root + ": " + e.getMessage());
+      }
+   }
+
+   /**
+    * Watch a single file, through its directory.
+    */
+   private void watch_file(Path path) throws IOException {
+      register(path.getParent());
+      synchronized (keys) {
+         files.add(path);
+      }
+   }
+
+   private void register(Path dir) throws IOException {
+      WatchKey key = dir.register(watcher,
+                                  StandardWatchEventKinds.ENTRY_CREATE,
+                                  StandardWatchEventKinds.ENTRY_DELETE,
+                                  StandardWatchEventKinds.ENTRY_MODIFY);
+      synchronized (keys) {
+         keys.put(key, dir);
+      }
+   }
+}